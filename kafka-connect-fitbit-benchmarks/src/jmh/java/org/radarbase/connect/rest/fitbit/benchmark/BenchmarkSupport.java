@@ -0,0 +1,106 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.radarbase.connect.rest.fitbit.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.radarbase.connect.rest.fitbit.FitbitRestSourceConnectorConfig;
+import org.radarbase.connect.rest.fitbit.request.FitbitRequestGenerator;
+
+/** Shared setup of the benchmarks. */
+public final class BenchmarkSupport {
+  private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+  private BenchmarkSupport() {
+    // utility class
+  }
+
+  /**
+   * Connector configuration with intraday access that uses {@link SyntheticUserRepository}.
+   * @param overrides additional configuration properties.
+   */
+  public static FitbitRestSourceConnectorConfig config(Map<String, String> overrides) {
+    Map<String, String> props = new HashMap<>();
+    props.put("rest.source.base.url", "https://api.fitbit.com");
+    props.put("rest.source.destination.topics", "connect_fitbit");
+    props.put("rest.source.request.generator.class", FitbitRequestGenerator.class.getName());
+    props.put("fitbit.api.client", "benchmark");
+    props.put("fitbit.api.secret", "benchmark");
+    props.put("fitbit.api.intraday", "true");
+    props.put("fitbit.user.repository.class", SyntheticUserRepository.class.getName());
+    props.putAll(overrides);
+    return new FitbitRestSourceConnectorConfig(props, false);
+  }
+
+  /**
+   * Request generator that polls given users. All routes are initialized, but no requests are
+   * executed.
+   */
+  public static FitbitRequestGenerator generator(SyntheticUserRepository repository) {
+    return generator(repository, Collections.emptyMap());
+  }
+
+  /**
+   * Request generator that polls given users, with additional configuration.
+   * @see #config(Map)
+   */
+  public static FitbitRequestGenerator generator(SyntheticUserRepository repository,
+      Map<String, String> overrides) {
+    FitbitRestSourceConnectorConfig config = config(overrides);
+    config.getUserRepository(repository);
+    return (FitbitRequestGenerator) config.getRequestGenerator();
+  }
+
+  /** Read a JSON fixture from the benchmark resources. */
+  public static byte[] fixture(String name) {
+    try (InputStream in = BenchmarkSupport.class.getResourceAsStream("/fixtures/" + name)) {
+      if (in == null) {
+        throw new IllegalArgumentException("Fixture " + name + " does not exist");
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        out.write(buffer, 0, n);
+      }
+      return out.toByteArray();
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  /** Successful response to given request with given JSON body. */
+  public static Response response(Request request, byte[] body) {
+    return new Response.Builder()
+        .request(request)
+        .protocol(Protocol.HTTP_1_1)
+        .code(200)
+        .message("OK")
+        .body(ResponseBody.create(JSON, body))
+        .build();
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.radarbase.connect.rest.fitbit.benchmark;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Request;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.radarbase.connect.rest.fitbit.request.FitbitRequestGenerator;
+import org.radarbase.connect.rest.fitbit.request.FitbitRestRequest;
+import org.radarbase.connect.rest.fitbit.route.FitbitActivityLogRoute;
+import org.radarbase.connect.rest.fitbit.route.FitbitIntradayHeartRateRoute;
+import org.radarbase.connect.rest.fitbit.route.FitbitPollingRoute;
+import org.radarbase.connect.rest.fitbit.route.FitbitSleepRoute;
+import org.radarbase.connect.rest.fitbit.user.User;
+import org.radarbase.connect.rest.fitbit.util.DateRange;
+
+/**
+ * Throughput of converting recorded Fitbit responses to source records. Each invocation converts
+ * a complete response with the converter of the production route. Besides responses per second,
+ * the {@code records} counter reports the number of source records per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ConverterBenchmark {
+  private Fixture heartRate;
+  private Fixture sleep;
+  private Fixture activityLog;
+
+  /** Number of converted records, reported per second. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class RecordCounter {
+    public long records;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      records = 0;
+    }
+  }
+
+  /** Load fixtures and initialize the routes. */
+  @Setup(Level.Trial)
+  public void setUp() {
+    SyntheticUserRepository repository = new SyntheticUserRepository(1, Duration.ofDays(30));
+    FitbitRequestGenerator generator = BenchmarkSupport.generator(repository);
+    User user = repository.stream().findFirst().orElseThrow(IllegalStateException::new);
+
+    ZonedDateTime day = ZonedDateTime.of(2020, 5, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+    DateRange dateRange = new DateRange(day, day.plusDays(1).minusNanos(1));
+
+    heartRate = new Fixture(generator, FitbitIntradayHeartRateRoute.class, user, dateRange,
+        "intraday-heart-rate.json");
+    sleep = new Fixture(generator, FitbitSleepRoute.class, user, dateRange, "sleep.json");
+    activityLog = new Fixture(generator, FitbitActivityLogRoute.class, user, dateRange,
+        "activity-log.json");
+  }
+
+  @Benchmark
+  public Collection<SourceRecord> intradayHeartRate(RecordCounter counter) throws IOException {
+    return heartRate.convert(counter);
+  }
+
+  @Benchmark
+  public Collection<SourceRecord> sleep(RecordCounter counter) throws IOException {
+    return sleep.convert(counter);
+  }
+
+  @Benchmark
+  public Collection<SourceRecord> activityLog(RecordCounter counter) throws IOException {
+    return activityLog.convert(counter);
+  }
+
+  /** Recorded response of a single route. */
+  private static final class Fixture {
+    private final FitbitPollingRoute route;
+    private final FitbitRestRequest request;
+    private final byte[] body;
+
+    private Fixture(FitbitRequestGenerator generator,
+        Class<? extends FitbitPollingRoute> routeClass, User user, DateRange dateRange,
+        String fixture) {
+      route = generator.routes()
+          .filter(routeClass::isInstance)
+          .map(FitbitPollingRoute.class::cast)
+          .findAny()
+          .orElseThrow(() -> new IllegalStateException("Route " + routeClass + " not enabled"));
+
+      Request httpRequest = new Request.Builder()
+          .url("https://api.fitbit.com/benchmark")
+          .tag(User.class, user)
+          .build();
+      request = new FitbitRestRequest(route, httpRequest, user,
+          generator.getPartition(routeClass.getSimpleName(), user),
+          generator.getObservationKey(user), generator.getClient(), dateRange, null);
+      body = BenchmarkSupport.fixture(fixture);
+    }
+
+    private Collection<SourceRecord> convert(RecordCounter counter) throws IOException {
+      Collection<SourceRecord> records = route.converter()
+          .convert(request, BenchmarkSupport.response(request.getRequest(), body));
+      counter.records += records.size();
+      return records;
+    }
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.radarbase.connect.rest.fitbit.benchmark;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.radarbase.connect.rest.fitbit.request.FitbitRequestGenerator;
+
+/**
+ * Cost of generating requests for many users. {@link #firstPoll} generates the requests of a
+ * fresh generator, where all users are due. {@link #idlePoll} polls a generator where no users
+ * are due, which is the common case between two polls of the same user.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PollingRouteBenchmark {
+  /** Users that started recording two days ago, so every route has some backlog. */
+  @State(Scope.Benchmark)
+  public static class Users {
+    @Param({"1000", "10000", "100000"})
+    public int numberOfUsers;
+
+    SyntheticUserRepository repository;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      repository = new SyntheticUserRepository(numberOfUsers, Duration.ofDays(2));
+    }
+  }
+
+  /** New generator for every invocation, so that all users are due. */
+  @State(Scope.Thread)
+  public static class FreshGenerator {
+    FitbitRequestGenerator generator;
+
+    @Setup(Level.Invocation)
+    public void setUp(Users users) {
+      generator = BenchmarkSupport.generator(users.repository);
+    }
+  }
+
+  /** Generator that has already polled all users. */
+  @State(Scope.Thread)
+  public static class PolledGenerator {
+    FitbitRequestGenerator generator;
+
+    @Setup(Level.Trial)
+    public void setUp(Users users) {
+      generator = BenchmarkSupport.generator(users.repository);
+      generator.requests().forEach(r -> { });
+    }
+  }
+
+  @Benchmark
+  public long firstPoll(FreshGenerator state) {
+    return state.generator.requests().count();
+  }
+
+  @Benchmark
+  public long idlePoll(PolledGenerator state) {
+    return state.generator.requests().count();
+  }
+}
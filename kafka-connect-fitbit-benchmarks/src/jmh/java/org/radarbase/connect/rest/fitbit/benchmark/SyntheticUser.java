@@ -0,0 +1,95 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.radarbase.connect.rest.fitbit.benchmark;
+
+import io.confluent.connect.avro.AvroData;
+import java.time.Instant;
+import org.apache.kafka.connect.data.SchemaAndValue;
+import org.radarbase.connect.rest.fitbit.user.User;
+
+/** Immutable user for benchmarks. */
+public class SyntheticUser implements User {
+  private final String id;
+  private final Instant startDate;
+  private final Instant endDate;
+  private SchemaAndValue observationKey;
+
+  /**
+   * User with given ID, that is also used as Fitbit user ID and RADAR user ID.
+   * @param id user ID.
+   * @param startDate first time to poll.
+   * @param endDate last time to poll.
+   */
+  public SyntheticUser(String id, Instant startDate, Instant endDate) {
+    this.id = id;
+    this.startDate = startDate;
+    this.endDate = endDate;
+  }
+
+  @Override
+  public String getId() {
+    return id;
+  }
+
+  @Override
+  public String getVersion() {
+    return null;
+  }
+
+  @Override
+  public String getExternalUserId() {
+    return id;
+  }
+
+  @Override
+  public String getProjectId() {
+    return "benchmark";
+  }
+
+  @Override
+  public String getUserId() {
+    return id;
+  }
+
+  @Override
+  public Instant getStartDate() {
+    return startDate;
+  }
+
+  @Override
+  public Instant getEndDate() {
+    return endDate;
+  }
+
+  @Override
+  public String getSourceId() {
+    return "fitbit";
+  }
+
+  @Override
+  public synchronized SchemaAndValue getObservationKey(AvroData avroData) {
+    if (observationKey == null) {
+      observationKey = User.computeObservationKey(avroData, this);
+    }
+    return observationKey;
+  }
+
+  @Override
+  public String toString() {
+    return "SyntheticUser{id=" + id + '}';
+  }
+}
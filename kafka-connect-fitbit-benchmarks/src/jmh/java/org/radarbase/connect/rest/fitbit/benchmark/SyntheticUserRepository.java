@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.radarbase.connect.rest.fitbit.benchmark;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+import org.radarbase.connect.rest.RestSourceConnectorConfig;
+import org.radarbase.connect.rest.fitbit.user.User;
+import org.radarbase.connect.rest.fitbit.user.UserRepository;
+
+/**
+ * In-memory user repository with a fixed number of users that all started recording at the same
+ * time. Access tokens are not checked, so no requests should actually be executed.
+ */
+public class SyntheticUserRepository implements UserRepository {
+  private final List<SyntheticUser> users;
+
+  /** Empty repository, used when the repository is created from configuration. */
+  public SyntheticUserRepository() {
+    this(0, Duration.ofDays(30));
+  }
+
+  /**
+   * Repository with given number of users.
+   * @param numberOfUsers number of users.
+   * @param history time before now that all users started recording.
+   */
+  public SyntheticUserRepository(int numberOfUsers, Duration history) {
+    Instant startDate = Instant.now().minus(history);
+    Instant endDate = startDate.plus(Duration.ofDays(3650));
+    List<SyntheticUser> localUsers = new ArrayList<>(numberOfUsers);
+    for (int i = 0; i < numberOfUsers; i++) {
+      localUsers.add(new SyntheticUser("user-" + i, startDate, endDate));
+    }
+    this.users = Collections.unmodifiableList(localUsers);
+  }
+
+  @Override
+  public void initialize(RestSourceConnectorConfig config) {
+    // nothing to initialize
+  }
+
+  @Override
+  public User get(String key) {
+    return users.stream()
+        .filter(u -> u.getId().equals(key))
+        .findAny()
+        .orElseThrow(() -> new NoSuchElementException("User " + key + " does not exist"));
+  }
+
+  @Override
+  public Stream<? extends User> stream() {
+    return users.stream();
+  }
+
+  @Override
+  public String getAccessToken(User user) {
+    return "token-" + user.getId();
+  }
+
+  @Override
+  public String refreshAccessToken(User user) {
+    return getAccessToken(user);
+  }
+
+  @Override
+  public boolean hasPendingUpdates() {
+    return false;
+  }
+
+  @Override
+  public void applyPendingUpdates() {
+    // no updates
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.radarbase.connect.rest.fitbit.route;
+
+import static org.radarbase.connect.rest.converter.PayloadToSourceRecordConverter.MIN_INSTANT;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.radarbase.connect.rest.fitbit.benchmark.BenchmarkSupport;
+import org.radarbase.connect.rest.fitbit.benchmark.SyntheticUserRepository;
+import org.radarbase.connect.rest.fitbit.request.FitbitRequestGenerator;
+import org.radarbase.connect.rest.fitbit.util.DateRange;
+
+/**
+ * Cost of splitting the backlog of a user into date ranges. This is in the route package to
+ * access the package-private generators.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StartDateGeneratorBenchmark {
+  /** Days between the offset and the current time. */
+  @Param({"1", "14", "365"})
+  public int backlogDays;
+
+  private FitbitIntradayRangeRoute route;
+  private Instant startDate;
+
+  /** Initialize a steps route with multi-day backfill. */
+  @Setup(Level.Trial)
+  public void setUp() {
+    FitbitRequestGenerator generator = BenchmarkSupport.generator(
+        new SyntheticUserRepository(1, Duration.ofDays(1)),
+        Collections.singletonMap("fitbit.intraday.backfill.max.days", "7"));
+    route = generator.routes()
+        .filter(FitbitIntradayStepsRoute.class::isInstance)
+        .map(FitbitIntradayRangeRoute.class::cast)
+        .findAny()
+        .orElseThrow(IllegalStateException::new);
+    route.startPoll();
+    startDate = Instant.now().minus(Duration.ofDays(backlogDays)).plusSeconds(123);
+  }
+
+  @Benchmark
+  public List<DateRange> startDateGenerator() {
+    return route.startDateGenerator(startDate).collect(Collectors.toList());
+  }
+
+  @Benchmark
+  public List<DateRange> backfillDateGenerator() {
+    return route.backfillDateGenerator(startDate, MIN_INSTANT).collect(Collectors.toList());
+  }
+}
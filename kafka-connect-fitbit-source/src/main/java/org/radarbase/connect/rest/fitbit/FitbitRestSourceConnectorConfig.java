@@ -69,6 +69,11 @@ public class FitbitRestSourceConnectorConfig extends RestSourceConnectorConfig {
   private static final String FITBIT_API_SECRET_DOC = "Secret for the Fitbit API client set in fitbit.api.client.";
   private static final String FITBIT_API_SECRET_DISPLAY = "Fitbit API client secret";
 
+  public static final String FITBIT_API_TOKEN_URL_CONFIG = "fitbit.api.token.url";
+  private static final String FITBIT_API_TOKEN_URL_DOC = "Fitbit OAuth 2.0 token endpoint, used to refresh the access tokens of users.";
+  private static final String FITBIT_API_TOKEN_URL_DISPLAY = "Fitbit OAuth 2.0 token URL";
+  private static final String FITBIT_API_TOKEN_URL_DEFAULT = "https://api.fitbit.com/oauth2/token";
+
   public static final String FITBIT_USER_REPOSITORY_CONFIG = "fitbit.user.repository.class";
   private static final String FITBIT_USER_REPOSITORY_DOC = "Class for managing users and authentication.";
   private static final String FITBIT_USER_REPOSITORY_DISPLAY = "User repository class";
@@ -78,6 +83,11 @@ public class FitbitRestSourceConnectorConfig extends RestSourceConnectorConfig {
   private static final boolean FITBIT_API_INTRADAY_ACCESS_DEFAULT = false;
   private static final String FITBIT_API_INTRADAY_ACCESS_DISPLAY = "Is Fitbit Intraday API available?";
 
+  public static final String FITBIT_INTRADAY_BACKFILL_MAX_DAYS_CONFIG = "fitbit.intraday.backfill.max.days";
+  private static final String FITBIT_INTRADAY_BACKFILL_MAX_DAYS_DOC = "Maximum number of full days that a single intraday steps or calories request may cover while catching up on history. At most one such request is made per user and poll. Set to 1 to request each day separately.";
+  private static final int FITBIT_INTRADAY_BACKFILL_MAX_DAYS_DEFAULT = 1;
+  private static final String FITBIT_INTRADAY_BACKFILL_MAX_DAYS_DISPLAY = "Maximum days per intraday backfill request";
+
   public static final String FITBIT_USER_POLL_INTERVAL = "fitbit.user.poll.interval";
   private static final String FITBIT_USER_POLL_INTERVAL_DOC = "Polling interval per Fitbit user per request route in seconds.";
   // 150 requests per hour -> 2.5 per minute. There are currently 5 paths, that limits us to 1
@@ -161,6 +171,21 @@ public class FitbitRestSourceConnectorConfig extends RestSourceConnectorConfig {
   private static final String FITBIT_TASK_RECONFIGURE_INTERVAL_DISPLAY = "Task reconfiguration " +
       "interval in minutes.";
 
+  public static final String FITBIT_TASK_ASSIGNMENT_WEIGHTED_CONFIG = "fitbit.task.assignment.weighted";
+  private static final String FITBIT_TASK_ASSIGNMENT_WEIGHTED_DOC = "Whether to balance users over tasks by their estimated cost instead of by their number. The cost of a user grows with the number of days between its start date and its end date or now.";
+  private static final String FITBIT_TASK_ASSIGNMENT_WEIGHTED_DISPLAY = "Weighted task assignment";
+  private static final boolean FITBIT_TASK_ASSIGNMENT_WEIGHTED_DEFAULT = false;
+
+  public static final String FITBIT_TASK_ASSIGNMENT_DYNAMIC_CONFIG = "fitbit.task.assignment.dynamic";
+  private static final String FITBIT_TASK_ASSIGNMENT_DYNAMIC_DOC = "Whether tasks determine their own users by rendezvous hashing and follow users that are added or removed in the user repository, instead of getting a fixed list of users. The connector then only reconfigures its tasks when the number of tasks changes. Users are not weighted in this mode.";
+  private static final String FITBIT_TASK_ASSIGNMENT_DYNAMIC_DISPLAY = "Dynamic task assignment";
+  private static final boolean FITBIT_TASK_ASSIGNMENT_DYNAMIC_DEFAULT = false;
+
+  /** Number of the task among all tasks of the connector, set by the connector. */
+  public static final String FITBIT_TASK_NUMBER_CONFIG = "fitbit.task.number";
+  /** Number of tasks of the connector, set by the connector. */
+  public static final String FITBIT_TASK_COUNT_CONFIG = "fitbit.task.count";
+
   private UserRepository userRepository;
   private final Headers clientCredentials;
 
@@ -230,6 +255,16 @@ public class FitbitRestSourceConnectorConfig extends RestSourceConnectorConfig {
             Width.SHORT,
             FITBIT_API_SECRET_DISPLAY)
 
+        .define(FITBIT_API_TOKEN_URL_CONFIG,
+            Type.STRING,
+            FITBIT_API_TOKEN_URL_DEFAULT,
+            Importance.LOW,
+            FITBIT_API_TOKEN_URL_DOC,
+            group,
+            ++orderInGroup,
+            Width.SHORT,
+            FITBIT_API_TOKEN_URL_DISPLAY)
+
         .define(FITBIT_USER_POLL_INTERVAL,
             Type.INT,
             FITBIT_USER_POLL_INTERVAL_DEFAULT,
@@ -250,6 +285,17 @@ public class FitbitRestSourceConnectorConfig extends RestSourceConnectorConfig {
             Width.SHORT,
             FITBIT_API_INTRADAY_ACCESS_DISPLAY)
 
+        .define(FITBIT_INTRADAY_BACKFILL_MAX_DAYS_CONFIG,
+            Type.INT,
+            FITBIT_INTRADAY_BACKFILL_MAX_DAYS_DEFAULT,
+            ConfigDef.Range.atLeast(1),
+            Importance.LOW,
+            FITBIT_INTRADAY_BACKFILL_MAX_DAYS_DOC,
+            group,
+            ++orderInGroup,
+            Width.SHORT,
+            FITBIT_INTRADAY_BACKFILL_MAX_DAYS_DISPLAY)
+
         .define(FITBIT_USER_REPOSITORY_CONFIG,
             Type.CLASS,
             YamlUserRepository.class,
@@ -418,6 +464,29 @@ public class FitbitRestSourceConnectorConfig extends RestSourceConnectorConfig {
             ++orderInGroup,
             Width.SHORT,
             FITBIT_TASK_RECONFIGURE_INTERVAL_DISPLAY)
+
+        .define(FITBIT_TASK_ASSIGNMENT_WEIGHTED_CONFIG,
+            Type.BOOLEAN,
+            FITBIT_TASK_ASSIGNMENT_WEIGHTED_DEFAULT,
+            Importance.LOW,
+            FITBIT_TASK_ASSIGNMENT_WEIGHTED_DOC,
+            group,
+            ++orderInGroup,
+            Width.SHORT,
+            FITBIT_TASK_ASSIGNMENT_WEIGHTED_DISPLAY)
+
+        .define(FITBIT_TASK_ASSIGNMENT_DYNAMIC_CONFIG,
+            Type.BOOLEAN,
+            FITBIT_TASK_ASSIGNMENT_DYNAMIC_DEFAULT,
+            Importance.LOW,
+            FITBIT_TASK_ASSIGNMENT_DYNAMIC_DOC,
+            group,
+            ++orderInGroup,
+            Width.SHORT,
+            FITBIT_TASK_ASSIGNMENT_DYNAMIC_DISPLAY)
+
+        .defineInternal(FITBIT_TASK_NUMBER_CONFIG, Type.INT, 0, Importance.LOW)
+        .defineInternal(FITBIT_TASK_COUNT_CONFIG, Type.INT, 1, Importance.LOW)
         ;
   }
 
@@ -437,6 +506,16 @@ public class FitbitRestSourceConnectorConfig extends RestSourceConnectorConfig {
     return getPassword(FITBIT_API_SECRET_CONFIG).value();
   }
 
+  public HttpUrl getFitbitTokenUrl() {
+    String urlString = getString(FITBIT_API_TOKEN_URL_CONFIG).trim();
+    HttpUrl url = HttpUrl.parse(urlString);
+    if (url == null) {
+      throw new ConfigException(FITBIT_API_TOKEN_URL_CONFIG, urlString,
+          "Fitbit token URL " + urlString + " cannot be parsed as URL.");
+    }
+    return url;
+  }
+
   public UserRepository getUserRepository(UserRepository reuse) {
     if (reuse != null &&  reuse.getClass().equals(getClass(FITBIT_USER_REPOSITORY_CONFIG))) {
       userRepository = reuse;
@@ -512,6 +591,10 @@ public class FitbitRestSourceConnectorConfig extends RestSourceConnectorConfig {
     return getBoolean(FITBIT_API_INTRADAY_ACCESS_CONFIG);
   }
 
+  public int getIntradayBackfillMaxDays() {
+    return getInt(FITBIT_INTRADAY_BACKFILL_MAX_DAYS_CONFIG);
+  }
+
   public Duration getPollIntervalPerUser() {
     return Duration.ofSeconds(getInt(FITBIT_USER_POLL_INTERVAL));
   }
@@ -556,4 +639,20 @@ public class FitbitRestSourceConnectorConfig extends RestSourceConnectorConfig {
   public int getFitbitTaskReconfigureInterval() {
     return getInt(FITBIT_TASK_RECONFIGURE_INTERVAL);
   }
+
+  public boolean isTaskAssignmentWeighted() {
+    return getBoolean(FITBIT_TASK_ASSIGNMENT_WEIGHTED_CONFIG);
+  }
+
+  public boolean isTaskAssignmentDynamic() {
+    return getBoolean(FITBIT_TASK_ASSIGNMENT_DYNAMIC_CONFIG);
+  }
+
+  public int getTaskNumber() {
+    return getInt(FITBIT_TASK_NUMBER_CONFIG);
+  }
+
+  public int getTaskCount() {
+    return getInt(FITBIT_TASK_COUNT_CONFIG);
+  }
 }
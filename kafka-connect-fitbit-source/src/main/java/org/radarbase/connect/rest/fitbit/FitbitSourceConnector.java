@@ -17,10 +17,14 @@
 
 package org.radarbase.connect.rest.fitbit;
 
+import static org.radarbase.connect.rest.fitbit.FitbitRestSourceConnectorConfig.FITBIT_TASK_COUNT_CONFIG;
+import static org.radarbase.connect.rest.fitbit.FitbitRestSourceConnectorConfig.FITBIT_TASK_NUMBER_CONFIG;
 import static org.radarbase.connect.rest.fitbit.FitbitRestSourceConnectorConfig.FITBIT_USERS_CONFIG;
 
 import java.io.IOException;
+import java.time.Instant;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -28,20 +32,26 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.apache.kafka.common.config.ConfigDef;
 import org.apache.kafka.common.config.ConfigException;
 import org.radarbase.connect.rest.AbstractRestSourceConnector;
 import org.radarbase.connect.rest.fitbit.user.User;
 import org.radarbase.connect.rest.fitbit.user.UserRepository;
+import org.radarbase.connect.rest.fitbit.util.UserTaskAssignor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class FitbitSourceConnector extends AbstractRestSourceConnector {
 
   private static final Logger logger = LoggerFactory.getLogger(FitbitSourceConnector.class);
+  /** Maximum ratio of the load of a task to the average load of a task. */
+  private static final double TASK_LOAD_FACTOR = 1.25;
   private ScheduledExecutorService executor;
   private Set<? extends User> configuredUsers;
   private UserRepository repository;
+  private volatile int maxTasks = 1;
+  private volatile int configuredTaskCount;
 
   @Override
   public void start(Map<String, String> props) {
@@ -53,12 +63,18 @@ public class FitbitSourceConnector extends AbstractRestSourceConnector {
         try {
           logger.info("Requesting latest user details...");
           repository.applyPendingUpdates();
-          Set<? extends User> newUsers =
-              getConfig(props, false).getUserRepository(repository).stream()
-                  .collect(Collectors.toSet());
+          FitbitRestSourceConnectorConfig fitbitConfig = getConfig(props, false);
+          Set<? extends User> newUsers = fitbitConfig.getUserRepository(repository).stream()
+              .collect(Collectors.toSet());
           if (configuredUsers!=null && !newUsers.equals(configuredUsers)) {
-            logger.info("User info mismatch found. Requesting reconfiguration...");
-            reconfigure();
+            if (fitbitConfig.isTaskAssignmentDynamic()
+                && dynamicTaskCount(newUsers.size()) == configuredTaskCount) {
+              logger.info("User info mismatch found. Tasks update their own users.");
+              configuredUsers = newUsers;
+            } else {
+              logger.info("User info mismatch found. Requesting reconfiguration...");
+              reconfigure();
+            }
           }
         } catch (IOException e) {
           logger.warn("Failed to refresh users: {}", e.toString());
@@ -73,6 +89,9 @@ public class FitbitSourceConnector extends AbstractRestSourceConnector {
   public void stop() {
     super.stop();
     executor.shutdown();
+    if (repository != null) {
+      repository.close();
+    }
 
     configuredUsers = null;
   }
@@ -104,25 +123,31 @@ public class FitbitSourceConnector extends AbstractRestSourceConnector {
     if (repository==null) {
       repository = fitbitConfig.getUserRepository(null);
     }
-    // Divide the users over tasks
+    this.maxTasks = maxTasks;
+    if (fitbitConfig.isTaskAssignmentDynamic()) {
+      return configureDynamicTasks(baseConfig, fitbitConfig);
+    }
+    // Divide the users over tasks. Users are assigned with rendezvous hashing, so a change
+    // in the number of tasks or users only moves a small part of the users to another task.
+    UserTaskAssignor assignor = new UserTaskAssignor(
+        fitbitConfig.isTaskAssignmentWeighted()
+            ? UserTaskAssignor.historyWeight(Instant.now())
+            : UserTaskAssignor::uniformWeight,
+        TASK_LOAD_FACTOR);
     try {
-      List<Map<String, String>> userTasks = fitbitConfig.getUserRepository(repository).stream()
-          .map(User::getVersionedId)
-          // group users based on their hashCode, in principle, this allows for more efficient
-          // reconfigurations for a fixed number of tasks, since that allows existing tasks to
-          // only handle small modifications users to handle.
-          .collect(Collectors.groupingBy(
-              u -> Math.abs(u.hashCode()) % maxTasks,
-              Collectors.joining(",")))
-          .values().stream()
-          .map(u -> {
+      List<? extends User> users = fitbitConfig.getUserRepository(repository).stream()
+          .collect(Collectors.toList());
+      List<Map<String, String>> userTasks = assignor.assign(users, maxTasks).stream()
+          .filter(taskUsers -> !taskUsers.isEmpty())
+          .map(taskUsers -> {
             Map<String, String> config = new HashMap<>(baseConfig);
-            config.put(FITBIT_USERS_CONFIG, u);
+            config.put(FITBIT_USERS_CONFIG, taskUsers.stream()
+                .map(User::getVersionedId)
+                .collect(Collectors.joining(",")));
             return config;
           })
           .collect(Collectors.toList());
-      this.configuredUsers = fitbitConfig.getUserRepository(repository).stream()
-          .collect(Collectors.toSet());
+      this.configuredUsers = new HashSet<>(users);
       logger.info("Received userTask Configs {}", userTasks);
       return userTasks;
     } catch (IOException ex) {
@@ -130,6 +155,38 @@ public class FitbitSourceConnector extends AbstractRestSourceConnector {
     }
   }
 
+  /**
+   * Configure tasks that each determine their own users, given their task number and the number
+   * of tasks. Tasks follow changes in the user repository without being reconfigured.
+   */
+  private List<Map<String, String>> configureDynamicTasks(Map<String, String> baseConfig,
+      FitbitRestSourceConnectorConfig fitbitConfig) {
+    try {
+      this.configuredUsers = fitbitConfig.getUserRepository(repository).stream()
+          .collect(Collectors.toSet());
+    } catch (IOException ex) {
+      throw new ConfigException("Cannot read users", ex);
+    }
+    int numTasks = dynamicTaskCount(configuredUsers.size());
+    this.configuredTaskCount = numTasks;
+    List<Map<String, String>> taskConfigs = IntStream.range(0, numTasks)
+        .mapToObj(i -> {
+          Map<String, String> config = new HashMap<>(baseConfig);
+          config.put(FITBIT_TASK_NUMBER_CONFIG, String.valueOf(i));
+          config.put(FITBIT_TASK_COUNT_CONFIG, String.valueOf(numTasks));
+          return config;
+        })
+        .collect(Collectors.toList());
+    logger.info("Configured {} tasks for {} users with dynamic assignment",
+        numTasks, configuredUsers.size());
+    return taskConfigs;
+  }
+
+  /** Number of tasks with dynamic assignment: one per user, up to the maximum. */
+  private int dynamicTaskCount(int numUsers) {
+    return Math.max(1, Math.min(maxTasks, numUsers));
+  }
+
   public void reconfigure() {
     new Thread(() -> {
       logger.info("Requesting reconfiguration");
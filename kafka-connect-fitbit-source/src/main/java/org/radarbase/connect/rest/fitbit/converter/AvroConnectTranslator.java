@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.fitbit.converter;
+
+import io.confluent.connect.avro.AvroData;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.kafka.connect.data.Field;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaAndValue;
+import org.apache.kafka.connect.data.Struct;
+
+/**
+ * Translates Avro records to Kafka Connect structs with a translator that is compiled once per
+ * Avro schema. The Connect schema is taken from {@link AvroData}, so the result is the same as
+ * that of {@link AvroData#toConnectData(org.apache.avro.Schema, Object)}, but record fields of
+ * primitive, string, enum, optional and record types are copied directly, without inspecting
+ * their schemas for each value. Values of other types, and values with an Avro logical type or
+ * Connect properties, are still translated by AvroData. This class is thread-safe.
+ */
+public class AvroConnectTranslator {
+  private final AvroData avroData;
+  private final ConcurrentMap<org.apache.avro.Schema, RecordTranslator> translators =
+      new ConcurrentHashMap<>();
+
+  public AvroConnectTranslator(AvroData avroData) {
+    this.avroData = avroData;
+  }
+
+  /** Translate given record to a Connect struct with its Connect schema. */
+  public SchemaAndValue toConnectData(IndexedRecord record) {
+    org.apache.avro.Schema avroSchema = record.getSchema();
+    RecordTranslator translator = translators.get(avroSchema);
+    if (translator == null) {
+      translator = translators.computeIfAbsent(avroSchema,
+          s -> new RecordTranslator(s, avroData.toConnectSchema(s)));
+    }
+    return new SchemaAndValue(translator.schema, translator.translate(record));
+  }
+
+  private ValueTranslator compile(org.apache.avro.Schema avroSchema, Schema connectSchema) {
+    if (hasConversion(avroSchema)) {
+      return v -> avroData.toConnectData(avroSchema, v).value();
+    }
+    switch (avroSchema.getType()) {
+      case RECORD:
+        return new RecordTranslator(avroSchema, connectSchema);
+      case UNION:
+        List<org.apache.avro.Schema> types = avroSchema.getTypes();
+        if (types.size() == 2 && types.get(0).getType() == org.apache.avro.Schema.Type.NULL) {
+          // optional value, which has the Connect schema of the non-null type
+          ValueTranslator valueTranslator = compile(types.get(1), connectSchema);
+          return v -> v != null ? valueTranslator.translate(v) : null;
+        }
+        break;
+      case STRING:
+      case ENUM:
+        return v -> v != null ? v.toString() : null;
+      case INT:
+      case LONG:
+      case FLOAT:
+      case DOUBLE:
+      case BOOLEAN:
+        return v -> v;
+      default:
+        break;
+    }
+    return v -> avroData.toConnectData(avroSchema, v).value();
+  }
+
+  /**
+   * Whether AvroData converts values of given schema, because it has a logical type like date or
+   * timestamp-millis, or Connect properties like {@code connect.type}.
+   */
+  private static boolean hasConversion(org.apache.avro.Schema avroSchema) {
+    return avroSchema.getLogicalType() != null
+        || avroSchema.getProp("logicalType") != null
+        || avroSchema.getObjectProps().keySet().stream().anyMatch(k -> k.startsWith("connect."));
+  }
+
+  /** Translates a single Avro value to a Connect value. */
+  private interface ValueTranslator {
+    Object translate(Object value);
+  }
+
+  /** Translates an Avro record to a Connect struct. */
+  private final class RecordTranslator implements ValueTranslator {
+    private final Schema schema;
+    private final Field[] fields;
+    private final ValueTranslator[] fieldTranslators;
+
+    private RecordTranslator(org.apache.avro.Schema avroSchema, Schema connectSchema) {
+      this.schema = connectSchema;
+      List<org.apache.avro.Schema.Field> avroFields = avroSchema.getFields();
+      this.fields = new Field[avroFields.size()];
+      this.fieldTranslators = new ValueTranslator[avroFields.size()];
+      for (org.apache.avro.Schema.Field avroField : avroFields) {
+        Field field = connectSchema.field(avroField.name());
+        if (field == null) {
+          throw new IllegalArgumentException("Connect schema " + connectSchema.name()
+              + " does not contain field " + avroField.name());
+        }
+        fields[avroField.pos()] = field;
+        fieldTranslators[avroField.pos()] = compile(avroField.schema(), field.schema());
+      }
+    }
+
+    @Override
+    public Object translate(Object value) {
+      if (value == null) {
+        return null;
+      }
+      IndexedRecord record = (IndexedRecord) value;
+      Struct struct = new Struct(schema);
+      for (int i = 0; i < fields.length; i++) {
+        struct.put(fields[i], fieldTranslators[i].translate(record.get(i)));
+      }
+      return struct;
+    }
+  }
+}
@@ -44,16 +44,12 @@ import org.apache.kafka.connect.data.SchemaAndValue;
 import org.apache.kafka.connect.source.SourceRecord;
 import org.radarbase.connect.rest.converter.PayloadToSourceRecordConverter;
 import org.radarbase.connect.rest.fitbit.request.FitbitRestRequest;
-import org.radarbase.connect.rest.fitbit.user.User;
 import org.radarbase.connect.rest.request.RestRequest;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /**
  * Abstract class to help convert Fitbit data to Avro Data.
  */
 public abstract class FitbitAvroConverter implements PayloadToSourceRecordConverter {
-  private static final Logger logger = LoggerFactory.getLogger(FitbitAvroConverter.class);
   private static final Map<String, TimeUnit> TIME_UNIT_MAP = new HashMap<>();
 
   static {
@@ -66,10 +62,10 @@ public abstract class FitbitAvroConverter implements PayloadToSourceRecordConver
     TIME_UNIT_MAP.put("microsecond", TimeUnit.MICROSECONDS);
   }
 
-  private final AvroData avroData;
+  private final AvroConnectTranslator translator;
 
   public FitbitAvroConverter(AvroData avroData) {
-    this.avroData = avroData;
+    this.translator = new AvroConnectTranslator(avroData);
   }
 
   @Override
@@ -81,40 +77,37 @@ public abstract class FitbitAvroConverter implements PayloadToSourceRecordConver
     }
     JsonNode activities = JSON_READER.readTree(body.charStream());
 
-    User user = ((FitbitRestRequest) restRequest).getUser();
-    final SchemaAndValue key = user.getObservationKey(avroData);
+    SchemaAndValue key = ((FitbitRestRequest) restRequest).getObservationKey();
     double timeReceived = System.currentTimeMillis() / 1000d;
 
     return processRecords((FitbitRestRequest)restRequest, activities, timeReceived)
         .filter(Objects::nonNull)
-        .map(t -> {
-          SchemaAndValue avro = avroData.toConnectData(t.value.getSchema(), t.value);
-          Map<String, ?> offset = Collections.singletonMap(
-              TIMESTAMP_OFFSET_KEY, t.sourceOffset.toEpochMilli());
-
-          return new SourceRecord(restRequest.getPartition(), offset, t.topic,
-              key.schema(), key.value(), avro.schema(), avro.value());
-        })
+        .map(t -> toSourceRecord(restRequest, key, t))
         .collect(Collectors.toList());
   }
 
+  /** Convert a single value to a source record with the partition of given request. */
+  protected SourceRecord toSourceRecord(RestRequest restRequest, SchemaAndValue key,
+      TopicData data) {
+    SchemaAndValue avro = translator.toConnectData(data.value);
+    Map<String, ?> offset = Collections.singletonMap(
+        TIMESTAMP_OFFSET_KEY, data.sourceOffset);
+
+    return new SourceRecord(restRequest.getPartition(), offset, data.topic,
+        key.schema(), key.value(), avro.schema(), avro.value());
+  }
+
   /** Process the JSON records generated by given request. */
   protected abstract Stream<TopicData> processRecords(
       FitbitRestRequest request,
       JsonNode root,
       double timeReceived);
 
-  /** Get Fitbit dataset interval used in some intraday API calls. */
-  protected static int getRecordInterval(JsonNode root, int defaultValue) {
-    JsonNode type = root.get("datasetType");
-    JsonNode interval = root.get("datasetInterval");
-    if (type == null || interval == null) {
-      logger.warn("Failed to get data interval; using {} instead", defaultValue);
-      return defaultValue;
-    }
+  /** Get Fitbit dataset interval in seconds from its dataset type and interval. */
+  protected static int getRecordInterval(String type, long interval) {
     return (int)TIME_UNIT_MAP
-        .getOrDefault(type.asText(), TimeUnit.SECONDS)
-        .toSeconds(interval.asLong());
+        .getOrDefault(type, TimeUnit.SECONDS)
+        .toSeconds(interval);
   }
 
   /** Converts an iterable (like a JsonNode containing an array) to a stream. */
@@ -160,11 +153,16 @@ public abstract class FitbitAvroConverter implements PayloadToSourceRecordConver
 
   /** Single value for a topic. */
   protected static class TopicData {
-    Instant sourceOffset;
+    /** Source offset in epoch milliseconds. */
+    long sourceOffset;
     final String topic;
     final IndexedRecord value;
 
     public TopicData(Instant sourceOffset, String topic, IndexedRecord value) {
+      this(sourceOffset.toEpochMilli(), topic, value);
+    }
+
+    public TopicData(long sourceOffset, String topic, IndexedRecord value) {
       this.sourceOffset = sourceOffset;
       this.topic = topic;
       this.value = value;
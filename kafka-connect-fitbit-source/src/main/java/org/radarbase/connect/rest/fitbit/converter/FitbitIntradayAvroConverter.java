@@ -0,0 +1,375 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.fitbit.converter;
+
+import static java.time.temporal.ChronoUnit.DAYS;
+import static org.radarbase.connect.rest.fitbit.request.FitbitRequestGenerator.JSON_FACTORY;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import io.confluent.connect.avro.AvroData;
+import java.io.IOException;
+import java.time.LocalTime;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.kafka.connect.data.SchemaAndValue;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.radarbase.connect.rest.fitbit.request.FitbitRestRequest;
+import org.radarbase.connect.rest.fitbit.util.DateRange;
+import org.radarbase.connect.rest.fitbit.util.TimeOfDayParser;
+import org.radarbase.connect.rest.request.RestRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converter for Fitbit intraday time series. The response is parsed as a token stream and
+ * dataset entries are converted while they are read, so no JSON tree is built for the often
+ * very large dataset.
+ *
+ * <p>If the request covers multiple days, the dataset only contains times of day. The dataset is
+ * then assumed to be ordered, and a new day starts whenever the time of day does not increase.
+ * If that does not give the number of requested days, for example because one day ends before
+ * the time that the next day starts, the dataset cannot be split into days. The response then
+ * fails with an IOException, so that the route can request the days separately.
+ *
+ * <p>Times of day are parsed by {@link TimeOfDayParser} and added to the start of the day in
+ * epoch milliseconds, so no date or time objects are created per sample.
+ */
+public abstract class FitbitIntradayAvroConverter extends FitbitAvroConverter {
+  private static final Logger logger = LoggerFactory.getLogger(FitbitIntradayAvroConverter.class);
+
+  private final String intradayField;
+  private final int defaultInterval;
+
+  /**
+   * Intraday converter.
+   * @param avroData Avro data to convert records with.
+   * @param intradayField name of the JSON object containing the dataset.
+   * @param defaultInterval interval in seconds that the data was requested with. It is used when
+   *                        the response does not mention the interval before the dataset.
+   */
+  public FitbitIntradayAvroConverter(AvroData avroData, String intradayField,
+      int defaultInterval) {
+    super(avroData);
+    this.intradayField = intradayField;
+    this.defaultInterval = defaultInterval;
+  }
+
+  @Override
+  public Collection<SourceRecord> convert(
+      RestRequest restRequest, Response response) throws IOException {
+    ResponseBody body = response.body();
+    if (body == null) {
+      throw new IOException("Failed to read body");
+    }
+    FitbitRestRequest request = (FitbitRestRequest) restRequest;
+    SchemaAndValue key = request.getObservationKey();
+    double timeReceived = System.currentTimeMillis() / 1000d;
+
+    List<SourceRecord> records = new ArrayList<>();
+    try (JsonParser parser = JSON_FACTORY.createParser(body.charStream())) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return records;
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        if (parser.nextToken() == JsonToken.START_OBJECT && field.equals(intradayField)) {
+          parseIntraday(parser, request, timeReceived,
+              t -> records.add(toSourceRecord(request, key, t)));
+        } else {
+          parser.skipChildren();
+        }
+      }
+    }
+    return records;
+  }
+
+  /**
+   * Not used, since {@link #convert(RestRequest, Response)} reads the response without building
+   * a JSON tree.
+   * @throws UnsupportedOperationException always.
+   */
+  @Override
+  protected final Stream<TopicData> processRecords(
+      FitbitRestRequest request, JsonNode root, double timeReceived) {
+    throw new UnsupportedOperationException(
+        "Intraday responses are converted while they are read");
+  }
+
+  /**
+   * Parse the intraday object that the parser is currently at the start of.
+   * @throws IOException if the dataset cannot be parsed or split into the requested days.
+   */
+  private void parseIntraday(JsonParser parser, FitbitRestRequest request, double timeReceived,
+      Consumer<TopicData> consumer) throws IOException {
+    DayClock clock = newDayClock(request);
+    IntradaySample sample = new IntradaySample();
+    String datasetType = null;
+    long datasetInterval = -1L;
+    int interval = -1;
+
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      switch (field) {
+        case "datasetType":
+          datasetType = parser.getValueAsString();
+          break;
+        case "datasetInterval":
+          datasetInterval = parser.getValueAsLong(-1L);
+          break;
+        case "dataset":
+          if (token != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            break;
+          }
+          interval = datasetType != null && datasetInterval >= 0
+              ? getRecordInterval(datasetType, datasetInterval)
+              : defaultInterval;
+          while (parser.nextToken() == JsonToken.START_OBJECT) {
+            sample.read(parser);
+            TopicData data = convertSample(request, clock, sample, timeReceived, interval);
+            if (data != null) {
+              consumer.accept(data);
+            }
+          }
+          break;
+        default:
+          parser.skipChildren();
+          break;
+      }
+    }
+
+    if (interval != -1 && datasetType != null && datasetInterval >= 0
+        && interval != getRecordInterval(datasetType, datasetInterval)) {
+      logger.warn("Dataset interval of {} {} in request {} does not match expected {} seconds",
+          datasetInterval, datasetType, request.getRequest().url(), interval);
+    }
+
+    if (clock.spansMultipleDays && clock.days > 0) {
+      DateRange dateRange = request.getDateRange();
+      long expectedDays = DAYS.between(
+          dateRange.start().toLocalDate(), dateRange.end().toLocalDate()) + 1;
+      if (clock.days != expectedDays) {
+        throw new IOException("Cannot split " + intradayField + " dataset of request "
+            + request.getRequest().url() + " into days: found " + clock.days + " of "
+            + expectedDays + " days");
+      }
+    }
+  }
+
+  private DayClock newDayClock(FitbitRestRequest request) {
+    if (request.getDateRange().spansMultipleDays()) {
+      return new DayClock(request.getDateRange().start(), true);
+    } else {
+      return new DayClock(getStartDate(request), false);
+    }
+  }
+
+  private TopicData convertSample(FitbitRestRequest request, DayClock clock,
+      IntradaySample sample, double timeReceived, int interval) {
+    try {
+      long time = clock.toEpochMilli(sample.getMillisOfDay());
+      IndexedRecord record = createRecord(time / 1000d, timeReceived, interval, sample);
+      return new TopicData(time, getTopic(), record);
+    } catch (RuntimeException ex) {
+      logger.warn("Failed to convert {} from request {} of user {}, {}",
+          intradayField, request.getRequest().url(), request.getUser(), sample, ex);
+      return null;
+    }
+  }
+
+  /** Date used to convert the local times in the dataset to absolute times. */
+  protected abstract ZonedDateTime getStartDate(FitbitRestRequest request);
+
+  /** Topic to send records to. */
+  protected abstract String getTopic();
+
+  /**
+   * Create a record from a single dataset entry. The sample is reused for the next entry, so its
+   * values should be copied.
+   * @throws IllegalStateException if a field that the record requires is missing.
+   */
+  protected abstract IndexedRecord createRecord(
+      double time, double timeReceived, int interval, IntradaySample sample);
+
+  /** Converts times of day in a dataset to epoch milliseconds. */
+  private static final class DayClock {
+    private final boolean spansMultipleDays;
+    /** Whether the start of the day can be offset by the time of day. */
+    private final boolean isFixedOffset;
+    private ZonedDateTime day;
+    private long dayStart;
+    private int previousTime = -1;
+    /** Number of days that samples were found for. */
+    private int days;
+
+    private DayClock(ZonedDateTime day, boolean spansMultipleDays) {
+      this.day = day;
+      this.spansMultipleDays = spansMultipleDays;
+      this.isFixedOffset = day.getZone().getRules().isFixedOffset();
+      this.dayStart = startOfDay(day);
+    }
+
+    private long toEpochMilli(int millisOfDay) {
+      if (previousTime == -1) {
+        days = 1;
+      } else if (spansMultipleDays && millisOfDay <= previousTime) {
+        day = day.plusDays(1);
+        dayStart = startOfDay(day);
+        days++;
+      }
+      previousTime = millisOfDay;
+      if (isFixedOffset) {
+        return dayStart + millisOfDay;
+      } else {
+        return day.with(LocalTime.ofNanoOfDay(millisOfDay * 1_000_000L))
+            .toInstant().toEpochMilli();
+      }
+    }
+
+    private static long startOfDay(ZonedDateTime day) {
+      return day.truncatedTo(DAYS).toInstant().toEpochMilli();
+    }
+  }
+
+  /** Mutable holder of a single intraday dataset entry. */
+  protected static class IntradaySample {
+    private int millisOfDay;
+    /** Time that is not formatted as HH:mm:ss or HH:mm, if any. */
+    private String unparsedTime;
+    private double value;
+    private int level;
+    private double mets;
+    private boolean hasTime;
+    private boolean hasValue;
+    private boolean hasLevel;
+    private boolean hasMets;
+
+    private void reset() {
+      hasTime = false;
+      unparsedTime = null;
+      hasValue = false;
+      hasLevel = false;
+      hasMets = false;
+    }
+
+    /** Read a sample from a parser that is at the start of a dataset entry. */
+    void read(JsonParser parser) throws IOException {
+      reset();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (!token.isScalarValue()) {
+          parser.skipChildren();
+          continue;
+        }
+        switch (field) {
+          case "time":
+            if (token == JsonToken.VALUE_STRING) {
+              setTime(parser.getTextCharacters(), parser.getTextOffset(),
+                  parser.getTextLength());
+            } else if (token != JsonToken.VALUE_NULL) {
+              setTime(parser.getValueAsString());
+            }
+            break;
+          case "value":
+            hasValue = token.isNumeric();
+            value = parser.getValueAsDouble();
+            break;
+          case "level":
+            hasLevel = token.isNumeric();
+            level = parser.getValueAsInt();
+            break;
+          case "mets":
+            hasMets = token.isNumeric();
+            mets = parser.getValueAsDouble();
+            break;
+          default:
+            break;
+        }
+      }
+    }
+
+    /**
+     * Time of the sample, in milliseconds since the start of the day.
+     * @throws java.time.format.DateTimeParseException if the time cannot be parsed.
+     */
+    private void setTime(String time) {
+      char[] chars = time.toCharArray();
+      setTime(chars, 0, chars.length);
+    }
+
+    private void setTime(char[] text, int offset, int length) {
+      hasTime = true;
+      millisOfDay = TimeOfDayParser.parseMillisOfDay(text, offset, length);
+      if (millisOfDay == -1) {
+        unparsedTime = new String(text, offset, length);
+      }
+    }
+
+    public int getMillisOfDay() {
+      requirePresent(hasTime, "time");
+      return unparsedTime != null ? TimeOfDayParser.parseMillisOfDay(unparsedTime) : millisOfDay;
+    }
+
+    public double getValue() {
+      requirePresent(hasValue, "value");
+      return value;
+    }
+
+    public int getLevel() {
+      requirePresent(hasLevel, "level");
+      return level;
+    }
+
+    public double getMets() {
+      requirePresent(hasMets, "mets");
+      return mets;
+    }
+
+    private static void requirePresent(boolean isPresent, String field) {
+      if (!isPresent) {
+        throw new IllegalStateException("Missing field " + field);
+      }
+    }
+
+    @Override
+    public String toString() {
+      String time = null;
+      if (unparsedTime != null) {
+        time = unparsedTime;
+      } else if (hasTime) {
+        time = LocalTime.ofNanoOfDay(millisOfDay * 1_000_000L).toString();
+      }
+      return "{time=" + time
+          + (hasValue ? ", value=" + value : "")
+          + (hasLevel ? ", level=" + level : "")
+          + (hasMets ? ", mets=" + mets : "")
+          + '}';
+    }
+  }
+}
@@ -17,14 +17,9 @@
 
 package org.radarbase.connect.rest.fitbit.converter;
 
-import static org.radarbase.connect.rest.util.ThrowingFunction.tryOrNull;
-
-import com.fasterxml.jackson.databind.JsonNode;
 import io.confluent.connect.avro.AvroData;
-import java.time.Instant;
-import java.time.LocalTime;
 import java.time.ZonedDateTime;
-import java.util.stream.Stream;
+import org.apache.avro.generic.IndexedRecord;
 import org.radarbase.connect.rest.RestSourceConnectorConfig;
 import org.radarbase.connect.rest.fitbit.FitbitRestSourceConnectorConfig;
 import org.radarbase.connect.rest.fitbit.request.FitbitRestRequest;
@@ -32,13 +27,13 @@ import org.radarcns.connector.fitbit.FitbitIntradayHeartRate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class FitbitIntradayHeartRateAvroConverter extends FitbitAvroConverter {
+public class FitbitIntradayHeartRateAvroConverter extends FitbitIntradayAvroConverter {
   private static final Logger logger = LoggerFactory.getLogger(
       FitbitIntradayHeartRateAvroConverter.class);
   private String heartRateTopic;
 
   public FitbitIntradayHeartRateAvroConverter(AvroData avroData) {
-    super(avroData);
+    super(avroData, "activities-heart-intraday", 1);
   }
 
   @Override
@@ -48,37 +43,22 @@ public class FitbitIntradayHeartRateAvroConverter extends FitbitAvroConverter {
   }
 
   @Override
-  protected Stream<TopicData> processRecords(
-      FitbitRestRequest request, JsonNode root, double timeReceived) {
-    JsonNode intraday = root.get("activities-heart-intraday");
-    if (intraday == null || !intraday.isObject()) {
-      return Stream.empty();
-    }
-
-    JsonNode dataset = intraday.get("dataset");
-    if (dataset == null || !dataset.isArray()) {
-      return Stream.empty();
-    }
-
-    int interval = getRecordInterval(intraday, 1);
-
-    // Used as the date to convert the local times in the dataset to absolute times.
-    ZonedDateTime startDate = request.getDateRange().start();
-
-    return iterableToStream(dataset)
-        .map(tryOrNull(activity -> {
-          Instant time = startDate.with(LocalTime.parse(activity.get("time").asText()))
-              .toInstant();
+  protected ZonedDateTime getStartDate(FitbitRestRequest request) {
+    return request.getDateRange().start();
+  }
 
-          FitbitIntradayHeartRate heartRate = new FitbitIntradayHeartRate(
-              time.toEpochMilli() / 1000d,
-              timeReceived,
-              interval,
-              activity.get("value").asInt());
+  @Override
+  protected String getTopic() {
+    return heartRateTopic;
+  }
 
-          return new TopicData(time, heartRateTopic, heartRate);
-        }, (a, ex) -> logger.warn(
-            "Failed to convert heart rate from request {} of user {}, {}",
-            request.getRequest().url(), request.getUser(), a, ex)));
+  @Override
+  protected IndexedRecord createRecord(
+      double time, double timeReceived, int interval, IntradaySample sample) {
+    return new FitbitIntradayHeartRate(
+        time,
+        timeReceived,
+        interval,
+        (int) sample.getValue());
   }
 }
@@ -129,7 +129,7 @@ public class FitbitSleepAvroConverter extends FitbitAvroConverter {
 
           // The final group gets the actual offset, to ensure that the group does not get queried
           // again.
-          allRecords.get(allRecords.size() - 1).sourceOffset = startTime;
+          allRecords.get(allRecords.size() - 1).sourceOffset = startTime.toEpochMilli();
 
           return allRecords.stream();
         }, (s, ex) -> logger.warn(
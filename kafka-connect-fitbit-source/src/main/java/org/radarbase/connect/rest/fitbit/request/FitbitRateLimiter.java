@@ -0,0 +1,172 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.fitbit.request;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+import org.radarbase.connect.rest.fitbit.user.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the remaining Fitbit API budget of each user, shared by all routes. The budget is read
+ * from the {@code Fitbit-Rate-Limit-Remaining} and {@code Fitbit-Rate-Limit-Reset} headers of
+ * every response, and reduced locally for every request that is sent. Requests and responses are
+ * matched to users by the {@link User} tag of the request. Users without a known budget are not
+ * limited. This should be added as a network interceptor, so that retries and redirects are
+ * counted as well.
+ */
+public class FitbitRateLimiter implements Interceptor {
+  private static final Logger logger = LoggerFactory.getLogger(FitbitRateLimiter.class);
+
+  public static final String RATE_LIMIT_REMAINING_HEADER = "Fitbit-Rate-Limit-Remaining";
+  public static final String RATE_LIMIT_RESET_HEADER = "Fitbit-Rate-Limit-Reset";
+
+  /**
+   * Margin by which a reset time must be later than the current one to start a new window. Reset
+   * times are computed from a number of seconds when a response arrives, so responses of the same
+   * window have slightly different reset times.
+   */
+  private static final Duration WINDOW_TOLERANCE = Duration.ofMinutes(1);
+
+  private final ConcurrentMap<String, Budget> budgets = new ConcurrentHashMap<>();
+  private final int numberOfRoutes;
+
+  /**
+   * Rate limiter.
+   * @param numberOfRoutes number of routes that the budget of a user is spread over.
+   */
+  public FitbitRateLimiter(int numberOfRoutes) {
+    this.numberOfRoutes = Math.max(1, numberOfRoutes);
+  }
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    User user = chain.request().tag(User.class);
+    if (user == null) {
+      return chain.proceed(chain.request());
+    }
+    consume(user);
+    Response response = chain.proceed(chain.request());
+    update(user.getId(), response);
+    return response;
+  }
+
+  /**
+   * Update the budget of given user from the headers of a response. A 429 response exhausts the
+   * budget until the reset time, or if that is not given, until the Retry-After time.
+   */
+  public void update(String userId, Response response) {
+    boolean isTooManyRequests = response.code() == 429;
+    String remainingHeader = response.header(RATE_LIMIT_REMAINING_HEADER);
+    String resetHeader = response.header(RATE_LIMIT_RESET_HEADER);
+    if (resetHeader == null && isTooManyRequests) {
+      resetHeader = response.header("Retry-After");
+    }
+    if (resetHeader == null || (remainingHeader == null && !isTooManyRequests)) {
+      return;
+    }
+
+    try {
+      int remaining = isTooManyRequests ? 0 : Integer.parseInt(remainingHeader.trim());
+      Instant reset = Instant.now().plusSeconds(Long.parseLong(resetHeader.trim()));
+      budgets.computeIfAbsent(userId, k -> new Budget()).set(remaining, reset);
+    } catch (NumberFormatException ex) {
+      logger.warn("Cannot parse rate limit headers {}={} and {}={} for user {}",
+          RATE_LIMIT_REMAINING_HEADER, remainingHeader, RATE_LIMIT_RESET_HEADER, resetHeader,
+          userId);
+    }
+  }
+
+  /**
+   * Number of requests that a single route may make for given user now. This is the remaining
+   * budget divided over all routes, but at least one request while any budget remains.
+   * @return number of requests, {@link Integer#MAX_VALUE} if the budget is not known, or 0 if
+   *         the budget is exhausted until {@link #getReset(User)}.
+   */
+  public int getRouteShare(User user) {
+    Budget budget = budgets.get(user.getId());
+    if (budget == null) {
+      return Integer.MAX_VALUE;
+    }
+    int remaining = budget.getRemaining();
+    if (remaining == Integer.MAX_VALUE || remaining <= 0) {
+      return remaining;
+    }
+    return Math.max(1, remaining / numberOfRoutes);
+  }
+
+  /** Register that a request is sent for given user. */
+  public void consume(User user) {
+    Budget budget = budgets.get(user.getId());
+    if (budget != null) {
+      budget.consume();
+    }
+  }
+
+  /** Time that the budget of given user is reset, or {@code null} if it is not known. */
+  public Instant getReset(User user) {
+    Budget budget = budgets.get(user.getId());
+    return budget != null ? budget.getReset() : null;
+  }
+
+  /** Budget of a single user. */
+  private static final class Budget {
+    private int remaining;
+    private Instant reset;
+
+    /**
+     * Set the budget from response headers. Responses may be processed out of order, so within
+     * the current window only a lower remaining budget is taken over.
+     */
+    synchronized void set(int remaining, Instant reset) {
+      if (this.reset == null || !Instant.now().isBefore(this.reset)
+          || reset.isAfter(this.reset.plus(WINDOW_TOLERANCE))) {
+        this.remaining = remaining;
+        this.reset = reset;
+      } else if (remaining < this.remaining) {
+        this.remaining = remaining;
+        if (reset.isAfter(this.reset)) {
+          this.reset = reset;
+        }
+      }
+    }
+
+    synchronized int getRemaining() {
+      if (reset == null || !Instant.now().isBefore(reset)) {
+        return Integer.MAX_VALUE;
+      }
+      return remaining;
+    }
+
+    synchronized void consume() {
+      if (remaining > 0) {
+        remaining--;
+      }
+    }
+
+    synchronized Instant getReset() {
+      return reset;
+    }
+  }
+}
@@ -23,32 +23,51 @@ import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import io.confluent.connect.avro.AvroData;
 import java.io.IOException;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import okhttp3.OkHttpClient;
+import org.apache.kafka.connect.data.SchemaAndValue;
+import org.apache.kafka.connect.storage.OffsetStorageReader;
 import org.radarbase.connect.rest.RestSourceConnectorConfig;
 import org.radarbase.connect.rest.fitbit.FitbitRestSourceConnectorConfig;
 import org.radarbase.connect.rest.fitbit.route.FitbitActivityLogRoute;
 import org.radarbase.connect.rest.fitbit.route.FitbitIntradayCaloriesRoute;
 import org.radarbase.connect.rest.fitbit.route.FitbitIntradayHeartRateRoute;
 import org.radarbase.connect.rest.fitbit.route.FitbitIntradayStepsRoute;
+import org.radarbase.connect.rest.fitbit.route.FitbitPollingRoute;
 import org.radarbase.connect.rest.fitbit.route.FitbitSleepRoute;
 import org.radarbase.connect.rest.fitbit.route.FitbitTimeZoneRoute;
+import org.radarbase.connect.rest.fitbit.user.TaskUserRepository;
 import org.radarbase.connect.rest.fitbit.user.User;
+import org.radarbase.connect.rest.fitbit.user.UserListener;
 import org.radarbase.connect.rest.fitbit.user.UserRepository;
+import org.radarbase.connect.rest.fitbit.util.UserStateStore;
+import org.radarbase.connect.rest.fitbit.util.UserStateStore.ValueColumn;
+import org.radarbase.connect.rest.fitbit.util.UserTaskAssignor;
 import org.radarbase.connect.rest.request.RequestGeneratorRouter;
 import org.radarbase.connect.rest.request.RequestRoute;
+import org.radarbase.connect.rest.request.RestRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Generate all requests for Fitbit API.
+ * Generate all requests for Fitbit API. Requests of all routes of a single user are generated
+ * together, so they are made concurrently. Access tokens are added to the requests when they
+ * are made, so generating requests never waits for a token to be refreshed.
  */
 public class FitbitRequestGenerator extends RequestGeneratorRouter {
   public static final JsonFactory JSON_FACTORY = new JsonFactory();
@@ -57,34 +76,158 @@ public class FitbitRequestGenerator extends RequestGeneratorRouter {
       .reader();
   private static final Logger logger = LoggerFactory.getLogger(FitbitRequestGenerator.class);
 
-  private OkHttpClient baseClient;
-  private final Map<String, OkHttpClient> clients;
+  private OkHttpClient client;
+  private FitbitRateLimiter rateLimiter;
   private UserRepository userRepository;
-  private List<RequestRoute> routes;
+  private List<FitbitPollingRoute> routes;
+  private final UserStateStore userStates = new UserStateStore();
+  /** Observation keys of the current user version, by user index. */
+  private final ValueColumn<SchemaAndValue> observationKeys = userStates.newValueColumn();
+  /** Source partitions of the current user version, by route name and user index. */
+  private final Map<String, ValueColumn<Map<String, Object>>> partitions =
+      new ConcurrentHashMap<>();
+  private AvroData avroData;
+  private final UserListener userListener = new UserListener() {
+    @Override
+    public void userUpdated(User user) {
+      routes.forEach(r -> r.userUpdated(user));
+      // Only a user that is new or has a new version can have requests that are due earlier.
+      if (!user.getVersionedId().equals(knownVersions.put(user.getId(), user.getVersionedId()))) {
+        wakeup.run();
+      }
+    }
 
-  public FitbitRequestGenerator() {
-    clients = new HashMap<>();
-  }
+    @Override
+    public void userRemoved(User user) {
+      routes.forEach(r -> r.userRemoved(user));
+      knownVersions.remove(user.getId());
+    }
+  };
+  /** Versioned ID of users that were reported by the user listener, by user ID. */
+  private final Map<String, String> knownVersions = new ConcurrentHashMap<>();
+  private volatile Runnable wakeup = () -> { };
 
   @Override
   public Stream<RequestRoute> routes() {
-    return this.routes.stream();
+    return this.routes.stream().map(RequestRoute.class::cast);
+  }
+
+  /**
+   * Requests of all due users. Users are taken in order of the earliest next poll time over all
+   * routes, and for each user the requests of all routes where it is due are returned together.
+   */
+  @Override
+  public Stream<RestRequest> requests() {
+    routes.forEach(FitbitPollingRoute::startPoll);
+
+    Iterator<Stream<FitbitRestRequest>> userRequests = new Iterator<Stream<FitbitRestRequest>>() {
+      private Stream<FitbitRestRequest> next;
+
+      @Override
+      public boolean hasNext() {
+        while (next == null) {
+          FitbitPollingRoute firstRoute = null;
+          Instant firstTime = null;
+          for (FitbitPollingRoute route : routes) {
+            Instant time = route.peekDueTime();
+            if (time != null && (firstTime == null || time.isBefore(firstTime))) {
+              firstRoute = route;
+              firstTime = time;
+            }
+          }
+          if (firstRoute == null) {
+            return false;
+          }
+          User user = firstRoute.pollDueUser();
+          if (user != null) {
+            next = userRequests(firstRoute, user);
+          }
+        }
+        return true;
+      }
+
+      @Override
+      public Stream<FitbitRestRequest> next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        Stream<FitbitRestRequest> result = next;
+        next = null;
+        return result;
+      }
+    };
+
+    return StreamSupport.stream(
+        Spliterators.spliteratorUnknownSize(userRequests, Spliterator.ORDERED), false)
+        .flatMap(Function.identity());
+  }
+
+  /** Requests of given user for given route and all other routes where the user is due. */
+  private Stream<FitbitRestRequest> userRequests(FitbitPollingRoute firstRoute, User user) {
+    return Stream.concat(
+        Stream.of(firstRoute),
+        routes.stream().filter(r -> r != firstRoute && r.pollDueUser(user)))
+        .flatMap(r -> r.requests(user));
   }
 
   @Override
   public void initialize(RestSourceConnectorConfig config) {
     FitbitRestSourceConnectorConfig fitbitConfig = (FitbitRestSourceConnectorConfig) config;
-    this.baseClient = new OkHttpClient();
-
-    this.userRepository = fitbitConfig.getUserRepository();
+    UserRepository repository = fitbitConfig.getUserRepository();
+    if (fitbitConfig.isTaskAssignmentDynamic()) {
+      int taskNumber = fitbitConfig.getTaskNumber();
+      int taskCount = fitbitConfig.getTaskCount();
+      repository = new TaskUserRepository(repository,
+          u -> UserTaskAssignor.firstChoice(u, taskCount) == taskNumber);
+    }
+    this.userRepository = repository;
+    this.avroData = new AvroData(20);
     this.routes = getRoutes(fitbitConfig);
+    this.rateLimiter = new FitbitRateLimiter(routes.size());
+    TokenAuthenticator authenticator = new TokenAuthenticator(userRepository);
+    this.client = fitbitConfig.getHttpClient().newBuilder()
+        .addInterceptor(authenticator)
+        .authenticator(authenticator)
+        .addNetworkInterceptor(rateLimiter)
+        .build();
 
     super.initialize(config);
+    userRepository.addListener(userListener);
   }
 
-  private List<RequestRoute> getRoutes(FitbitRestSourceConnectorConfig config) {
-    AvroData avroData = new AvroData(20);
-    List<RequestRoute> localRoutes = new ArrayList<>(5);
+  /**
+   * Read the committed offsets of all routes. The users are only read from the user repository
+   * once for all routes.
+   */
+  @Override
+  public void setOffsetStorageReader(OffsetStorageReader offsetStorageReader) {
+    List<User> users;
+    try {
+      users = userRepository.stream().collect(Collectors.toList());
+    } catch (IOException e) {
+      logger.warn("Failed to read users to initialize offsets: {}", e.toString());
+      users = Collections.emptyList();
+    }
+    for (FitbitPollingRoute route : routes) {
+      route.readOffsets(offsetStorageReader, users);
+    }
+  }
+
+  @Override
+  public void setWakeup(Runnable wakeup) {
+    this.wakeup = wakeup;
+  }
+
+  @Override
+  public void close() {
+    if (userRepository != null) {
+      userRepository.removeListener(userListener);
+      userRepository.close();
+    }
+  }
+
+  private List<FitbitPollingRoute> getRoutes(FitbitRestSourceConnectorConfig config) {
+    List<FitbitPollingRoute> localRoutes = new ArrayList<>(5);
     localRoutes.add(new FitbitSleepRoute(this, userRepository, avroData));
     localRoutes.add(new FitbitTimeZoneRoute(this, userRepository, avroData));
     localRoutes.add(new FitbitActivityLogRoute(this, userRepository, avroData));
@@ -96,26 +239,43 @@ public class FitbitRequestGenerator extends RequestGeneratorRouter {
     return localRoutes;
   }
 
-  public OkHttpClient getClient(User user) {
-    return clients.computeIfAbsent(user.getId(), u -> baseClient.newBuilder()
-          .authenticator(new TokenAuthenticator(user, userRepository))
-          .build());
+  /**
+   * Client for all Fitbit requests. Requests should be tagged with their {@link User}, so that
+   * their access token can be refreshed.
+   */
+  public OkHttpClient getClient() {
+    return client;
   }
 
-  public Map<String, Map<String, Object>> getPartitions(String route) {
-    try {
-      return userRepository.stream()
-          .collect(Collectors.toMap(User::getVersionedId, u -> getPartition(route, u)));
-    } catch (IOException e) {
-      logger.warn("Failed to initialize user partitions for route {}: {}", route, e.toString());
-      return Collections.emptyMap();
-    }
+  /** Rate limit budget of all users, shared by all routes. */
+  public FitbitRateLimiter getRateLimiter() {
+    return rateLimiter;
   }
 
+  /** Compact per-user state, shared by all routes. */
+  public UserStateStore getUserStates() {
+    return userStates;
+  }
+
+  /**
+   * Source partition of given user on given route. It is created once per user version and
+   * route, and cannot be modified.
+   */
   public Map<String, Object> getPartition(String route, User user) {
-    Map<String, Object> partition = new HashMap<>(4);
-    partition.put("user", user.getVersionedId());
-    partition.put("route", route);
-    return partition;
+    ValueColumn<Map<String, Object>> routePartitions = partitions.computeIfAbsent(
+        route, r -> userStates.newValueColumn());
+    return userStates.computeForVersion(user.getId(), user.getVersion(),
+        index -> routePartitions.computeIfAbsent(index, i -> {
+          Map<String, Object> partition = new HashMap<>(4);
+          partition.put("user", user.getVersionedId());
+          partition.put("route", route);
+          return Collections.unmodifiableMap(partition);
+        }));
+  }
+
+  /** Observation key of given user. It is computed once per user version. */
+  public SchemaAndValue getObservationKey(User user) {
+    return userStates.computeForVersion(user.getId(), user.getVersion(),
+        index -> observationKeys.computeIfAbsent(index, i -> user.getObservationKey(avroData)));
   }
 }
@@ -21,6 +21,7 @@ import java.util.Map;
 import java.util.function.Predicate;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
+import org.apache.kafka.connect.data.SchemaAndValue;
 import org.radarbase.connect.rest.fitbit.user.User;
 import org.radarbase.connect.rest.fitbit.util.DateRange;
 import org.radarbase.connect.rest.request.RequestRoute;
@@ -32,14 +33,16 @@ import org.radarbase.connect.rest.request.RestRequest;
  */
 public class FitbitRestRequest extends RestRequest {
   private final User user;
+  private final SchemaAndValue observationKey;
   private final DateRange dateRange;
 
   public FitbitRestRequest(
       RequestRoute requestRoute, Request request, User user,
-      Map<String, Object> partition, OkHttpClient client, DateRange dateRange,
-      Predicate<RestRequest> isValid) {
+      Map<String, Object> partition, SchemaAndValue observationKey, OkHttpClient client,
+      DateRange dateRange, Predicate<RestRequest> isValid) {
     super(requestRoute, client, request, partition, isValid);
     this.user = user;
+    this.observationKey = observationKey;
     this.dateRange = dateRange;
   }
 
@@ -47,6 +50,11 @@ public class FitbitRestRequest extends RestRequest {
     return user;
   }
 
+  /** Observation key of the user, to use as key of all records of this request. */
+  public SchemaAndValue getObservationKey() {
+    return observationKey;
+  }
+
   public DateRange getDateRange() {
     return dateRange;
   }
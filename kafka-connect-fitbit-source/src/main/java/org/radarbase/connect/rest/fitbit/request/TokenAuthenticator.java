@@ -20,6 +20,7 @@ package org.radarbase.connect.rest.fitbit.request;
 import java.io.IOException;
 import javax.ws.rs.NotAuthorizedException;
 import okhttp3.Authenticator;
+import okhttp3.Interceptor;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.Route;
@@ -29,30 +30,61 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Authenticator for Fitbit, which tries to refresh the access token if a request is unauthorized.
+ * Authenticator for Fitbit. As an interceptor, it adds the access token of the user to each
+ * request when the request is made, so looking up or refreshing a token happens on the HTTP
+ * dispatcher threads and not while generating requests. As an authenticator, it tries to
+ * refresh the access token if a request is unauthorized. The user that made the request is read
+ * from the {@link User} tag of the request, so a single client can be shared by all users.
  */
-public class TokenAuthenticator implements Authenticator {
+public class TokenAuthenticator implements Authenticator, Interceptor {
   private static final Logger logger = LoggerFactory.getLogger(TokenAuthenticator.class);
+  private static final String AUTHORIZATION = "Authorization";
 
-  private final User user;
   private final UserRepository userRepository;
 
-  TokenAuthenticator(User user, UserRepository userRepository) {
-    this.user = user;
+  TokenAuthenticator(UserRepository userRepository) {
     this.userRepository = userRepository;
   }
 
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    User user = request.tag(User.class);
+    if (user == null || request.header(AUTHORIZATION) != null) {
+      return chain.proceed(request);
+    }
+    String accessToken;
+    try {
+      accessToken = userRepository.getAccessToken(user);
+    } catch (NotAuthorizedException ex) {
+      throw new IOException("User " + user + " does not have a valid access token", ex);
+    }
+    return chain.proceed(request.newBuilder()
+        .header(AUTHORIZATION, "Bearer " + accessToken)
+        .build());
+  }
+
   @Override
   public Request authenticate(Route requestRoute, Response response) throws IOException {
     if (response.code() != 401) {
       return null;
     }
+    User user = response.request().tag(User.class);
+    if (user == null) {
+      return null;
+    }
 
     try {
-      String newAccessToken = userRepository.refreshAccessToken(user);
+      // Another request may have refreshed the token since this request was made.
+      String newAccessToken = userRepository.getAccessToken(user);
+      String newAuthorization = "Bearer " + newAccessToken;
+      if (newAuthorization.equals(response.request().header(AUTHORIZATION))) {
+        newAccessToken = userRepository.refreshAccessToken(user);
+        newAuthorization = "Bearer " + newAccessToken;
+      }
 
       return response.request().newBuilder()
-          .header("Authorization", "Bearer " + newAccessToken)
+          .header(AUTHORIZATION, newAuthorization)
           .build();
     } catch (NotAuthorizedException ex) {
       logger.error("Cannot get a new refresh token for user {}. Cancelling request.", user, ex);
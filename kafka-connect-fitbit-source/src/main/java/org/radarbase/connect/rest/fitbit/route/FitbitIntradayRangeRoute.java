@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.fitbit.route;
+
+import static java.time.temporal.ChronoUnit.DAYS;
+import static java.time.temporal.ChronoUnit.MINUTES;
+import static org.radarbase.connect.rest.converter.PayloadToSourceRecordConverter.MIN_INSTANT;
+
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Stream;
+import okhttp3.Response;
+import org.radarbase.connect.rest.RestSourceConnectorConfig;
+import org.radarbase.connect.rest.fitbit.FitbitRestSourceConnectorConfig;
+import org.radarbase.connect.rest.fitbit.request.FitbitRequestGenerator;
+import org.radarbase.connect.rest.fitbit.request.FitbitRestRequest;
+import org.radarbase.connect.rest.fitbit.user.User;
+import org.radarbase.connect.rest.fitbit.user.UserRepository;
+import org.radarbase.connect.rest.fitbit.util.DateRange;
+import org.radarbase.connect.rest.request.PollingRequestRoute;
+import org.radarbase.connect.rest.request.RestRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Intraday route that can request multiple full days at once during backfill, up to
+ * {@code fitbit.intraday.backfill.max.days} days. A multi-day response only contains times of
+ * day, so if it fails or cannot be split into days, the days it covered are requested one by one
+ * instead. No later ranges are requested in the same poll as a multi-day range, because their
+ * offsets would otherwise pass the days of the multi-day range if it fails.
+ */
+public abstract class FitbitIntradayRangeRoute extends FitbitPollingRoute {
+  private static final Logger logger = LoggerFactory.getLogger(FitbitIntradayRangeRoute.class);
+
+  /** End of failed multi-day requests, by user ID. Days up to this time are not merged. */
+  private final ConcurrentMap<String, Instant> singleDaysUntil;
+  private int backfillMaxDays;
+
+  public FitbitIntradayRangeRoute(FitbitRequestGenerator generator,
+      UserRepository userRepository, String routeName) {
+    super(generator, userRepository, routeName);
+    this.singleDaysUntil = new ConcurrentHashMap<>();
+  }
+
+  @Override
+  public void initialize(RestSourceConnectorConfig config) {
+    super.initialize(config);
+    this.backfillMaxDays = ((FitbitRestSourceConnectorConfig) config)
+        .getIntradayBackfillMaxDays();
+  }
+
+  /**
+   * URL String format for requesting full days at once, with format arguments external user ID,
+   * start date and end date.
+   */
+  protected abstract String getDateRangeUrlFormat(String baseUrl);
+
+  /**
+   * Requests of a single day use {@link #getUrlFormat(String)} with format arguments external
+   * user ID, date, start time and end time.
+   */
+  @Override
+  protected Stream<FitbitRestRequest> createRequests(User user) {
+    Instant offset = getOffset(user);
+    Instant splitUntil = singleDaysUntil.getOrDefault(user.getId(), MIN_INSTANT);
+    if (!splitUntil.isAfter(offset)) {
+      singleDaysUntil.remove(user.getId(), splitUntil);
+    }
+    return backfillDateGenerator(offset.plus(ONE_MINUTE).truncatedTo(MINUTES), splitUntil)
+        .map(dateRange -> dateRange.spansMultipleDays()
+            ? newDateRangeRequest(user, dateRange)
+            : newRequest(user, dateRange,
+                user.getExternalUserId(), DATE_FORMAT.format(dateRange.start()),
+                TIME_FORMAT.format(dateRange.start()), TIME_FORMAT.format(dateRange.end())));
+  }
+
+  /**
+   * Create a FitbitRestRequest that covers all days of given date range, using
+   * {@link #getDateRangeUrlFormat(String)}.
+   * @param user Fitbit user
+   * @param dateRange dates to query, covering full days.
+   * @return request.
+   */
+  protected FitbitRestRequest newDateRangeRequest(User user, DateRange dateRange) {
+    return newRequestForUrl(user, dateRange, String.format(getDateRangeUrlFormat(getBaseUrl()),
+        user.getExternalUserId(), DATE_FORMAT.format(dateRange.start()),
+        DATE_FORMAT.format(dateRange.end())));
+  }
+
+  @Override
+  public void requestFailed(RestRequest request, Response response) {
+    super.requestFailed(request, response);
+    FitbitRestRequest fitbitRequest = (FitbitRestRequest) request;
+    DateRange dateRange = fitbitRequest.getDateRange();
+    if (dateRange.spansMultipleDays() && (response == null || response.code() != 429)) {
+      User user = fitbitRequest.getUser();
+      logger.info("Requesting days {} to {} of user {} separately", dateRange.start(),
+          dateRange.end(), user);
+      singleDaysUntil.merge(user.getId(), dateRange.end().toInstant(), PollingRequestRoute::max);
+    }
+  }
+
+  /**
+   * Same as {@link #startDateGenerator(Instant)}, but consecutive full days are merged into a
+   * single range of at most {@code fitbit.intraday.backfill.max.days} days. Partial days and
+   * days that end before {@code singleDaysUntil} are still returned separately. The first range
+   * that spans multiple days is the last range returned.
+   */
+  Stream<DateRange> backfillDateGenerator(Instant startDate, Instant singleDaysUntil) {
+    if (backfillMaxDays <= 1) {
+      return startDateGenerator(startDate);
+    }
+    List<DateRange> ranges = new ArrayList<>();
+    List<DateRange> fullDays = new ArrayList<>(backfillMaxDays);
+    Iterator<DateRange> days = startDateGenerator(startDate).iterator();
+    while (days.hasNext()) {
+      DateRange range = days.next();
+      ZonedDateTime dayStart = range.start().truncatedTo(DAYS);
+      if (range.start().equals(dayStart)
+          && range.end().equals(dayStart.plus(ONE_DAY).minus(ONE_NANO))
+          && range.end().toInstant().isAfter(singleDaysUntil)) {
+        fullDays.add(range);
+        if (fullDays.size() == backfillMaxDays && addMerged(ranges, fullDays)) {
+          return ranges.stream();
+        }
+      } else {
+        if (!fullDays.isEmpty() && addMerged(ranges, fullDays)) {
+          return ranges.stream();
+        }
+        ranges.add(range);
+      }
+    }
+    if (!fullDays.isEmpty()) {
+      addMerged(ranges, fullDays);
+    }
+    return ranges.stream();
+  }
+
+  /**
+   * Merge consecutive days into one range, add it to given ranges and clear the days.
+   * @return whether the merged range spans multiple days.
+   */
+  private static boolean addMerged(List<DateRange> ranges, List<DateRange> days) {
+    DateRange merged = new DateRange(days.get(0).start(), days.get(days.size() - 1).end());
+    days.clear();
+    ranges.add(merged);
+    return merged.spansMultipleDays();
+  }
+}
@@ -17,18 +17,12 @@
 
 package org.radarbase.connect.rest.fitbit.route;
 
-import static java.time.temporal.ChronoUnit.MINUTES;
-
 import io.confluent.connect.avro.AvroData;
-import java.time.temporal.TemporalAmount;
-import java.util.stream.Stream;
 import org.radarbase.connect.rest.fitbit.converter.FitbitIntradayStepsAvroConverter;
 import org.radarbase.connect.rest.fitbit.request.FitbitRequestGenerator;
-import org.radarbase.connect.rest.fitbit.request.FitbitRestRequest;
-import org.radarbase.connect.rest.fitbit.user.User;
 import org.radarbase.connect.rest.fitbit.user.UserRepository;
 
-public class FitbitIntradayStepsRoute extends FitbitPollingRoute {
+public class FitbitIntradayStepsRoute extends FitbitIntradayRangeRoute {
   private final FitbitIntradayStepsAvroConverter converter;
 
   public FitbitIntradayStepsRoute(FitbitRequestGenerator generator,
@@ -42,11 +36,9 @@ public class FitbitIntradayStepsRoute extends FitbitPollingRoute {
     return baseUrl + "/1/user/%s/activities/steps/date/%s/1d/1min/time/%s/%s.json?timezone=UTC";
   }
 
-  protected Stream<FitbitRestRequest> createRequests(User user) {
-    return startDateGenerator(this.getOffset(user).plus(ONE_MINUTE).truncatedTo(MINUTES))
-        .map(dateRange -> newRequest(user, dateRange,
-            user.getExternalUserId(), DATE_FORMAT.format(dateRange.start()),
-            TIME_FORMAT.format(dateRange.start()), TIME_FORMAT.format(dateRange.end())));
+  @Override
+  protected String getDateRangeUrlFormat(String baseUrl) {
+    return baseUrl + "/1/user/%s/activities/steps/date/%s/%s/1min.json?timezone=UTC";
   }
 
   @Override
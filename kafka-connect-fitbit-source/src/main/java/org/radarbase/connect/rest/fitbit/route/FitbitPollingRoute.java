@@ -33,28 +33,39 @@ import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.TemporalAmount;
-import java.util.AbstractMap;
-import java.util.Comparator;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import javax.ws.rs.NotAuthorizedException;
+import java.util.stream.StreamSupport;
 import okhttp3.Request;
 import okhttp3.Response;
 import org.apache.kafka.connect.source.SourceRecord;
 import org.apache.kafka.connect.storage.OffsetStorageReader;
 import org.radarbase.connect.rest.RestSourceConnectorConfig;
 import org.radarbase.connect.rest.fitbit.FitbitRestSourceConnectorConfig;
+import org.radarbase.connect.rest.fitbit.request.FitbitRateLimiter;
 import org.radarbase.connect.rest.fitbit.request.FitbitRequestGenerator;
 import org.radarbase.connect.rest.fitbit.request.FitbitRestRequest;
 import org.radarbase.connect.rest.fitbit.user.User;
 import org.radarbase.connect.rest.fitbit.user.UserRepository;
 import org.radarbase.connect.rest.fitbit.util.DateRange;
+import org.radarbase.connect.rest.fitbit.util.PollSchedule;
+import org.radarbase.connect.rest.fitbit.util.UserStateStore;
+import org.radarbase.connect.rest.fitbit.util.UserStateStore.TimeColumn;
 import org.radarbase.connect.rest.request.PollingRequestRoute;
 import org.radarbase.connect.rest.request.RestRequest;
 import org.slf4j.Logger;
@@ -89,6 +100,15 @@ import org.slf4j.LoggerFactory;
  *    added.
  * 7. When a too many records exception occurs, do not poll for given user for
  *    {@code TOO_MANY_REQUESTS_COOLDOWN}.
+ * 8. Spread the remaining Fitbit rate limit budget of a user over all routes. If a user has no
+ *    budget left, do not poll it until the budget is reset.
+ *
+ * <p>The next poll time of each user is kept in a {@link PollSchedule}. It is only updated when a
+ * request of that user completes or when the set of users changes. Offsets and poll times are
+ * kept as epoch milliseconds in the {@link UserStateStore} that all routes of a task share, by
+ * the interned index of the user. The user set is read from the
+ * user repository at most once every {@link #getPollInterval()}. Users that the repository
+ * reports as added or removed in the meantime are applied at the start of the next poll.
  */
 public abstract class FitbitPollingRoute implements PollingRequestRoute {
   protected static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ISO_LOCAL_DATE;
@@ -102,33 +122,51 @@ public abstract class FitbitPollingRoute implements PollingRequestRoute {
 
   private static final Logger logger = LoggerFactory.getLogger(FitbitSleepRoute.class);
 
-  /** Committed offsets. */
-  private Map<String, Instant> offsets;
-
-  private final Map<String, Map<String, Object>> partitions;
-  private final Map<String, Instant> lastPollPerUser;
+  private final UserStateStore userStates;
+  /** Committed offsets of the current user version, by user index. */
+  private final TimeColumn offsets;
+  /** Last poll time or back-off time, by user ID index. */
+  private final TimeColumn lastPollPerUser;
   private final FitbitRequestGenerator generator;
   private final UserRepository userRepository;
   private final String routeName;
   private Duration pollInterval;
-  private Instant lastPoll;
+  private volatile Instant lastPoll;
   private String baseUrl;
   private Duration pollIntervalPerUser;
   private final Set<User> tooManyRequestsForUser;
   private Duration tooManyRequestsCooldown;
 
+  /** Next poll time per user index. Only used from the polling thread. */
+  private final PollSchedule schedule;
+  /** Scheduled users by user index. Only used from the polling thread. */
+  private User[] scheduledUsers;
+  /**
+   * Indices of users whose next poll time may have changed by a request result. Access is
+   * guarded by the set itself.
+   */
+  private final BitSet updatedUsers;
+  /** Users that were updated, or removed if empty, since the last poll, by user ID. */
+  private final Map<String, Optional<User>> userChanges;
+  private Instant nextUserSync;
+
   public FitbitPollingRoute(
       FitbitRequestGenerator generator,
       UserRepository userRepository,
       String routeName) {
     this.generator = generator;
     this.userRepository = userRepository;
-    this.offsets = new HashMap<>();
-    this.partitions = new HashMap<>(generator.getPartitions(routeName));
+    this.userStates = generator.getUserStates();
+    this.offsets = userStates.newVersionedTimeColumn();
     this.routeName = routeName;
     this.lastPoll = MIN_INSTANT;
-    this.lastPollPerUser = new HashMap<>();
+    this.lastPollPerUser = userStates.newTimeColumn();
     this.tooManyRequestsForUser = ConcurrentHashMap.newKeySet();
+    this.schedule = new PollSchedule();
+    this.scheduledUsers = new User[0];
+    this.updatedUsers = new BitSet();
+    this.userChanges = new ConcurrentHashMap<>();
+    this.nextUserSync = MIN_INSTANT;
   }
 
   @Override
@@ -142,23 +180,34 @@ public abstract class FitbitPollingRoute implements PollingRequestRoute {
     this.converter().initialize(fitbitConfig);
   }
 
+  @Override
+  public String getName() {
+    return routeName;
+  }
+
   @Override
   public void requestSucceeded(RestRequest request, SourceRecord record) {
-    lastPollPerUser.put(((FitbitRestRequest) request).getUser().getId(), lastPoll);
-    String userKey = ((FitbitRestRequest) request).getUser().getVersionedId();
-    Instant offset = Instant.ofEpochMilli((Long) record.sourceOffset().get(TIMESTAMP_OFFSET_KEY));
-    offsets.put(userKey, offset);
+    User user = ((FitbitRestRequest) request).getUser();
+    lastPollPerUser.set(userStates.intern(user.getId()), lastPoll.toEpochMilli());
+    // requests of the same user may complete out of order
+    userStates.forVersion(user.getId(), user.getVersion(), index -> {
+      offsets.max(index, (Long) record.sourceOffset().get(TIMESTAMP_OFFSET_KEY));
+      markUpdated(index);
+    });
   }
 
   @Override
   public void requestEmpty(RestRequest request) {
-    lastPollPerUser.put(((FitbitRestRequest) request).getUser().getId(), lastPoll);
     FitbitRestRequest fitbitRequest = (FitbitRestRequest) request;
+    User user = fitbitRequest.getUser();
+    lastPollPerUser.set(userStates.intern(user.getId()), lastPoll.toEpochMilli());
     Instant endOffset = fitbitRequest.getDateRange().end().toInstant();
-    if (DAYS.between(endOffset, lastPoll) >= HISTORICAL_TIME_DAYS) {
-      String key = fitbitRequest.getUser().getVersionedId();
-      offsets.put(key, endOffset);
-    }
+    userStates.forVersion(user.getId(), user.getVersion(), index -> {
+      if (DAYS.between(endOffset, lastPoll) >= HISTORICAL_TIME_DAYS) {
+        offsets.max(index, endOffset.toEpochMilli());
+      }
+      markUpdated(index);
+    });
   }
 
   @Override
@@ -176,7 +225,9 @@ public abstract class FitbitPollingRoute implements PollingRequestRoute {
         }
       }
       Instant backOff = lastPoll.plus(cooldown);
-      lastPollPerUser.put(user.getId(), backOff);
+      int index = userStates.intern(user.getId());
+      lastPollPerUser.set(index, backOff.toEpochMilli());
+      markUpdated(index);
       logger.info("Too many requests for user {}. Backing off until {}",
           user, backOff.plus(getPollIntervalPerUser()));
     } else {
@@ -191,35 +242,240 @@ public abstract class FitbitPollingRoute implements PollingRequestRoute {
    */
   protected abstract Stream<FitbitRestRequest> createRequests(User user);
 
+  /**
+   * Requests of all users that are due, in order of their next poll time. Users are only taken
+   * from the schedule when the stream is consumed. A user that is taken is rescheduled after
+   * {@link #getPollInterval()}, which is refined when one of its requests completes.
+   */
   @Override
   public Stream<FitbitRestRequest> requests() {
+    startPoll();
+
+    Iterator<User> dueUsers = new Iterator<User>() {
+      private User next;
+
+      @Override
+      public boolean hasNext() {
+        if (next == null) {
+          next = pollDueUser();
+        }
+        return next != null;
+      }
+
+      @Override
+      public User next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        User user = next;
+        next = null;
+        return user;
+      }
+    };
+
+    return StreamSupport.stream(
+        Spliterators.spliteratorUnknownSize(dueUsers, Spliterator.ORDERED | Spliterator.NONNULL),
+        false)
+        .flatMap(this::requests);
+  }
+
+  /** Start a new poll. This updates the schedule and determines which users are due. */
+  public void startPoll() {
     tooManyRequestsForUser.clear();
     lastPoll = Instant.now();
-    try {
-      return userRepository.stream()
-          .map(u -> new AbstractMap.SimpleImmutableEntry<>(u, nextPoll(u)))
-          .filter(u -> lastPoll.isAfter(u.getValue()))
-          .sorted(Map.Entry.comparingByValue())
-          .flatMap(u -> this.createRequests(u.getKey()))
-          .filter(Objects::nonNull);
-    } catch (IOException e) {
-      logger.warn("Cannot read users");
-      return Stream.empty();
+    updateSchedule();
+  }
+
+  /**
+   * Next poll time of the first user that is due in the current poll.
+   * @return next poll time or {@code null} if no users are due.
+   */
+  public Instant peekDueTime() {
+    if (schedule.isEmpty() || schedule.peekTime() >= lastPoll.toEpochMilli()) {
+      return null;
     }
+    return Instant.ofEpochMilli(schedule.peekTime());
   }
 
+  /**
+   * Take the first user that is due in the current poll off the schedule. Users without rate
+   * limit budget are deferred until their budget is reset.
+   * @return user or {@code null} if no users are due.
+   */
+  public User pollDueUser() {
+    long lastPollTime = lastPoll.toEpochMilli();
+    int index;
+    while ((index = schedule.pollBefore(lastPollTime)) != -1) {
+      User user = scheduledUsers[index];
+      if (acceptDueUser(index, user)) {
+        return user;
+      }
+    }
+    return null;
+  }
 
-  /** Get the time that this route should be polled again. */
+  /**
+   * Take given user off the schedule if it is due in the current poll and has rate limit budget.
+   * @return whether the user should be polled.
+   */
+  public boolean pollDueUser(User user) {
+    int index = userStates.indexOf(user.getId());
+    User scheduledUser = getScheduledUser(index);
+    return scheduledUser != null
+        && scheduledUser.getVersionedId().equals(user.getVersionedId())
+        && schedule.get(index, Long.MAX_VALUE) < lastPoll.toEpochMilli()
+        && acceptDueUser(index, scheduledUser);
+  }
+
+  private boolean acceptDueUser(int index, User user) {
+    FitbitRateLimiter rateLimiter = generator.getRateLimiter();
+    if (rateLimiter.getRouteShare(user) > 0) {
+      schedule.schedule(index, lastPoll.plus(getPollInterval()).toEpochMilli());
+      return true;
+    } else {
+      Instant reset = max(rateLimiter.getReset(user), lastPoll.plus(getPollInterval()));
+      logger.debug("Rate limit of user {} reached. Deferring until {}", user, reset);
+      schedule.schedule(index, reset.toEpochMilli());
+      return false;
+    }
+  }
+
+  /**
+   * Requests of given user in the current poll, limited by the rate limit budget of the user.
+   * The budget itself is consumed when a request is sent. The user should first be taken off the
+   * schedule with {@link #pollDueUser()} or {@link #pollDueUser(User)}.
+   */
+  public Stream<FitbitRestRequest> requests(User user) {
+    return createRequests(user)
+        .filter(Objects::nonNull)
+        .limit(generator.getRateLimiter().getRouteShare(user));
+  }
+
+  /**
+   * Get the time that this route should be polled again. This is the first scheduled poll, or
+   * the next synchronization with the user repository if that is earlier, so that new users are
+   * picked up in time.
+   */
   @Override
   public Instant getTimeOfNextRequest() {
-    return nextPolls()
-            .min(Comparator.naturalOrder())
-            .orElse(Instant.now().plus(Duration.ofMinutes(30)));
+    updateSchedule();
+    if (schedule.isEmpty() || schedule.peekTime() >= nextUserSync.toEpochMilli()) {
+      return nextUserSync;
+    }
+    return Instant.ofEpochMilli(schedule.peekTime());
   }
 
-  private Map<String, Object> getPartition(User user) {
-    return partitions.computeIfAbsent(user.getVersionedId(),
-        k -> generator.getPartition(routeName, user));
+  /**
+   * Reschedule users that had a request complete, and synchronize the scheduled users with the
+   * user repository if {@link #getPollInterval()} has passed since the last synchronization.
+   */
+  private void updateSchedule() {
+    Instant now = Instant.now();
+    if (!now.isBefore(nextUserSync)) {
+      nextUserSync = now.plus(getPollInterval());
+      syncUsers();
+    }
+
+    for (String id : userChanges.keySet()) {
+      Optional<User> change = userChanges.remove(id);
+      if (change == null) {
+        continue;
+      }
+      if (change.isPresent()) {
+        addUser(change.get());
+      } else {
+        removeUser(userStates.indexOf(id));
+      }
+    }
+
+    BitSet updated;
+    synchronized (updatedUsers) {
+      if (updatedUsers.isEmpty()) {
+        return;
+      }
+      updated = (BitSet) updatedUsers.clone();
+      updatedUsers.clear();
+    }
+    for (int index = updated.nextSetBit(0); index != -1; index = updated.nextSetBit(index + 1)) {
+      User user = getScheduledUser(index);
+      if (user != null) {
+        schedule.schedule(index, nextPoll(user).toEpochMilli());
+      }
+    }
+  }
+
+  private void markUpdated(int index) {
+    synchronized (updatedUsers) {
+      updatedUsers.set(index);
+    }
+  }
+
+  private void syncUsers() {
+    Map<String, User> currentUsers;
+    try {
+      currentUsers = userRepository.stream()
+          .collect(Collectors.toMap(User::getVersionedId, Function.identity(), (u1, u2) -> u1));
+    } catch (IOException e) {
+      logger.warn("Failed to read users for polling interval: {}", e.toString());
+      return;
+    }
+
+    for (int index = 0; index < scheduledUsers.length; index++) {
+      User user = scheduledUsers[index];
+      if (user != null && !currentUsers.containsKey(user.getVersionedId())) {
+        removeUser(index);
+      }
+    }
+
+    currentUsers.values().forEach(this::addUser);
+  }
+
+  /**
+   * Add a user to the schedule, replacing any other version of the same user. A new version
+   * starts without offsets. The user is only rescheduled if it is new, if its version changed or
+   * if its date range changed.
+   */
+  private void addUser(User user) {
+    int index = userStates.intern(user.getId(), user.getVersion());
+    User previous = getScheduledUser(index);
+    if (index >= scheduledUsers.length) {
+      scheduledUsers = Arrays.copyOf(scheduledUsers,
+          Math.max(index + 1, 2 * scheduledUsers.length));
+    }
+    scheduledUsers[index] = user;
+    if (previous == null
+        || !Objects.equals(previous.getVersion(), user.getVersion())
+        || !Objects.equals(previous.getStartDate(), user.getStartDate())
+        || !Objects.equals(previous.getEndDate(), user.getEndDate())) {
+      schedule.schedule(index, nextPoll(user).toEpochMilli());
+    }
+  }
+
+  private void removeUser(int index) {
+    if (getScheduledUser(index) != null) {
+      scheduledUsers[index] = null;
+      schedule.remove(index);
+    }
+  }
+
+  private User getScheduledUser(int index) {
+    return index >= 0 && index < scheduledUsers.length ? scheduledUsers[index] : null;
+  }
+
+  /**
+   * Register that a user was added or that its details changed. The change is applied at the
+   * start of the next poll. This may be called from any thread.
+   */
+  public void userUpdated(User user) {
+    userChanges.put(user.getId(), Optional.of(user));
+  }
+
+  /**
+   * Register that a user was removed. The change is applied at the start of the next poll. This
+   * may be called from any thread.
+   */
+  public void userRemoved(User user) {
+    userChanges.put(user.getId(), Optional.empty());
   }
 
   /**
@@ -227,38 +483,58 @@ public abstract class FitbitPollingRoute implements PollingRequestRoute {
    * @param user Fitbit user
    * @param dateRange dates that may be queried in the request
    * @param urlFormatArgs format arguments to {@link #getUrlFormat(String)}.
-   * @return request or {@code null} if the authorization cannot be arranged.
+   * @return request.
    */
   protected FitbitRestRequest newRequest(User user, DateRange dateRange,
       Object... urlFormatArgs) {
-    Request.Builder builder = new Request.Builder()
-        .url(String.format(getUrlFormat(baseUrl), urlFormatArgs));
-    try {
-      Request request = builder
-          .header("Authorization", "Bearer " + userRepository.getAccessToken(user))
-          .build();
-      return new FitbitRestRequest(this, request, user, getPartition(user),
-          generator.getClient(user), dateRange,
-          req -> !tooManyRequestsForUser.contains(((FitbitRestRequest)req).getUser()));
-    } catch (NotAuthorizedException | IOException ex) {
-      logger.warn("User {} does not have a configured access token: {}. Skipping.",
-          user, ex.toString());
-      return null;
-    } catch (NoSuchElementException ex) {
-      logger.warn("User {} does not exist in the user repository: {}. Skipping.",
-          user, ex.toString());
-      return null;
-    }
+    return newRequestForUrl(user, dateRange, String.format(getUrlFormat(baseUrl), urlFormatArgs));
+  }
+
+  /**
+   * Create a FitbitRestRequest for given URL.
+   * @param user Fitbit user
+   * @param dateRange dates that may be queried in the request
+   * @param url full request URL.
+   * @return request.
+   */
+  protected FitbitRestRequest newRequestForUrl(User user, DateRange dateRange, String url) {
+    // The access token is added by the client when the request is made.
+    Request request = new Request.Builder()
+        .url(url)
+        .tag(User.class, user)
+        .build();
+    return new FitbitRestRequest(this, request, user, generator.getPartition(routeName, user),
+        generator.getObservationKey(user), generator.getClient(), dateRange,
+        req -> !tooManyRequestsForUser.contains(((FitbitRestRequest)req).getUser()));
   }
 
   @Override
   public void setOffsetStorageReader(OffsetStorageReader offsetStorageReader) {
+    List<User> users;
+    try {
+      users = userRepository.stream().collect(Collectors.toList());
+    } catch (IOException e) {
+      logger.warn("Failed to read users to initialize offsets: {}", e.toString());
+      users = Collections.emptyList();
+    }
+    readOffsets(offsetStorageReader, users);
+  }
+
+  /** Read the committed offsets of given users. */
+  public void readOffsets(OffsetStorageReader offsetStorageReader,
+      Collection<? extends User> users) {
     if (offsetStorageReader != null) {
-      offsets = offsetStorageReader.offsets(partitions.values()).entrySet().stream()
-              .filter(e -> e.getValue() != null && e.getValue().containsKey(TIMESTAMP_OFFSET_KEY))
-              .collect(Collectors.toMap(
-                  e -> (String) e.getKey().get("user"),
-                  e -> Instant.ofEpochMilli((Long) e.getValue().get(TIMESTAMP_OFFSET_KEY))));
+      Map<Map<String, Object>, User> usersByPartition = users.stream()
+          .collect(Collectors.toMap(u -> generator.getPartition(routeName, u),
+              Function.identity(), (u1, u2) -> u1));
+      offsetStorageReader.offsets(usersByPartition.keySet())
+          .forEach((partition, offset) -> {
+            User user = usersByPartition.get(partition);
+            if (user != null && offset != null && offset.containsKey(TIMESTAMP_OFFSET_KEY)) {
+              offsets.set(userStates.intern(user.getId(), user.getVersion()),
+                  (Long) offset.get(TIMESTAMP_OFFSET_KEY));
+            }
+          });
     } else {
       logger.warn("Offset storage reader is null, will resume from an empty state.");
     }
@@ -271,13 +547,8 @@ public abstract class FitbitPollingRoute implements PollingRequestRoute {
 
   @Override
   public Stream<Instant> nextPolls() {
-    try {
-      return userRepository.stream()
-          .map(this::nextPoll);
-    } catch (IOException e) {
-      logger.warn("Failed to read users for polling interval: {}", e.toString());
-      return Stream.of(getLastPoll().plus(getPollInterval()));
-    }
+    updateSchedule();
+    return schedule.times().mapToObj(Instant::ofEpochMilli);
   }
 
   public Instant getLastPoll() {
@@ -285,7 +556,11 @@ public abstract class FitbitPollingRoute implements PollingRequestRoute {
   }
 
   protected Instant getOffset(User user) {
-    return offsets.getOrDefault(user.getVersionedId(), user.getStartDate().minus(ONE_NANO));
+    long offset = offsets.get(userStates.indexOf(user.getId(), user.getVersion()),
+        Long.MIN_VALUE);
+    return offset != Long.MIN_VALUE
+        ? Instant.ofEpochMilli(offset)
+        : user.getStartDate().minus(ONE_NANO);
   }
 
   /**
@@ -294,6 +569,11 @@ public abstract class FitbitPollingRoute implements PollingRequestRoute {
    */
   protected abstract String getUrlFormat(String baseUrl);
 
+  /** Base URL of the Fitbit API. */
+  protected String getBaseUrl() {
+    return baseUrl;
+  }
+
   /**
    * Get the poll interval for a single user on a single route.
    */
@@ -320,8 +600,9 @@ public abstract class FitbitPollingRoute implements PollingRequestRoute {
     if (offset.isAfter(user.getEndDate())) {
       return nearFuture();
     } else {
-      Instant nextPoll = lastPollPerUser.getOrDefault(user.getId(), MIN_INSTANT)
-          .plus(getPollIntervalPerUser());
+      long lastUserPoll = lastPollPerUser.get(
+          userStates.indexOf(user.getId()), MIN_INSTANT.toEpochMilli());
+      Instant nextPoll = Instant.ofEpochMilli(lastUserPoll).plus(getPollIntervalPerUser());
       return max(offset.plus(getLookbackTime()), nextPoll);
     }
   }
@@ -66,6 +66,11 @@ public class OAuth2UserCredentials {
     return refreshToken;
   }
 
+  /** Time after which the access token is considered expired. */
+  public Instant getExpiresAt() {
+    return expiresAt;
+  }
+
   protected static Instant getExpiresAt(Duration expiresIn) {
     return Instant.now()
         .plus(expiresIn)
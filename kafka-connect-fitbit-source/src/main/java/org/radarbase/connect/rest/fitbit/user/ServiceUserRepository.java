@@ -21,17 +21,33 @@ import static org.radarbase.connect.rest.converter.PayloadToSourceRecordConverte
 import static org.radarbase.connect.rest.fitbit.request.FitbitRequestGenerator.JSON_READER;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectReader;
 import io.confluent.common.config.ConfigException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URL;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -51,6 +67,16 @@ import org.radarcns.oauth.OAuth2Client;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * User repository that gets users and their access tokens from a web service. Access tokens are
+ * fetched in bulk from {@code users/tokens?ids=...}, together with the tokens of other users that
+ * are missing or about to expire, and cached until they expire. If the service does not support
+ * bulk requests, tokens are fetched per user from {@code users/<id>/token}.
+ *
+ * <p>Tokens are requested synchronously, on the thread that needs them or on a dedicated prefetch
+ * thread. Callers are often HTTP dispatcher threads, so a token request that is queued on the
+ * same dispatcher might never run while they wait for it.
+ */
 @SuppressWarnings("unused")
 public class ServiceUserRepository implements UserRepository {
   private static final Logger logger = LoggerFactory.getLogger(ServiceUserRepository.class);
@@ -60,21 +86,49 @@ public class ServiceUserRepository implements UserRepository {
   private static final ObjectReader OAUTH_READER = JSON_READER.forType(OAuth2UserCredentials.class);
   private static final RequestBody EMPTY_BODY =
       RequestBody.create(MediaType.parse("application/json; charset=utf-8"), "");
+  private static final ObjectReader TOKEN_MAP_READER = JSON_READER.forType(
+      new TypeReference<Map<String, OAuth2UserCredentials>>() { });
+  private static final ObjectReader JSON_NODE_READER = JSON_READER.forType(JsonNode.class);
   private static final Duration FETCH_THRESHOLD = Duration.ofMinutes(1L);
+  /** Maximum number of users to fetch tokens of in a single request. */
+  private static final int TOKEN_BATCH_SIZE = 100;
+  /** Tokens that expire within this time are fetched again in the background. */
+  private static final Duration TOKEN_PREFETCH_MARGIN = Duration.ofMinutes(10L);
+  /** Minimum time between fetches of the token of the same user. */
+  private static final Duration TOKEN_PREFETCH_INTERVAL = Duration.ofMinutes(1L);
+  /** Maximum time to wait for a token fetch that another thread is doing. */
+  private static final Duration TOKEN_FETCH_TIMEOUT = Duration.ofMinutes(1L);
 
-  private final OkHttpClient client;
-  private final Map<String, OAuth2UserCredentials> cachedCredentials;
+  private OkHttpClient client;
+  private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+    Thread thread = new Thread(r, "fitbit-service-token-prefetch");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final ConcurrentMap<String, CachedToken> cachedTokens = new ConcurrentHashMap<>();
+  /** Token fetches in progress by user ID. Users fetched in the same request share a future. */
+  private final ConcurrentMap<String, CompletableFuture<Void>> tokenFetches =
+      new ConcurrentHashMap<>();
+  private volatile boolean isBulkTokenSupported = true;
+  private final TokenRefresher tokenRefresher = new TokenRefresher(this::requestRefresh);
   private final AtomicReference<Instant> nextFetch = new AtomicReference<>(MIN_INSTANT);
 
   private HttpUrl baseUrl;
   private final HashSet<String> containedUsers;
-  private Set<? extends User> timedCachedUsers = new HashSet<>();
+  private volatile Set<? extends User> timedCachedUsers = new HashSet<>();
+  /** Included users by ID, kept in sync with the service. Guarded by {@code this}. */
+  private final Map<String, User> usersById = new HashMap<>();
+  /** ETag of the last user list, or {@code null} if none was given. Guarded by {@code this}. */
+  private String userListEtag;
+  /** URL that {@link #userListEtag} was returned for. Guarded by {@code this}. */
+  private HttpUrl userListEtagUrl;
+  /** Timestamp to request user changes since, or {@code null}. Guarded by {@code this}. */
+  private String userListTimestamp;
+  private final List<UserListener> listeners = new CopyOnWriteArrayList<>();
   private OAuth2Client repositoryClient;
   private String basicCredentials;
 
   public ServiceUserRepository() {
-    this.client = new OkHttpClient();
-    this.cachedCredentials = new HashMap<>();
     this.containedUsers = new HashSet<>();
   }
 
@@ -87,6 +141,7 @@ public class ServiceUserRepository implements UserRepository {
   @Override
   public void initialize(RestSourceConnectorConfig config) {
     FitbitRestSourceConnectorConfig fitbitConfig = (FitbitRestSourceConnectorConfig) config;
+    this.client = config.getHttpClient();
     this.baseUrl = fitbitConfig.getFitbitUserRepositoryUrl();
     this.containedUsers.addAll(fitbitConfig.getFitbitUsers());
 
@@ -111,33 +166,196 @@ public class ServiceUserRepository implements UserRepository {
 
   @Override
   public Stream<? extends User> stream() {
-    if (nextFetch.get().equals(MIN_INSTANT)) {
+    if (hasPendingUpdates()) {
       try {
         applyPendingUpdates();
       } catch (IOException ex) {
-        logger.error("Failed to initially get users from repository");
+        logger.error("Failed to get users from repository: {}", ex.toString());
       }
     }
     return this.timedCachedUsers.stream();
   }
 
+  /**
+   * Get the access token of given user. If it is not cached or if it has expired, it is fetched
+   * together with other tokens that need fetching. If it is about to expire, the current token
+   * is returned and a new token is fetched in the background.
+   */
   @Override
   public String getAccessToken(User user) throws IOException, NotAuthorizedException {
-    OAuth2UserCredentials credentials = cachedCredentials.get(user.getId());
-    if (credentials == null || credentials.isAccessTokenExpired()) {
+    CachedToken token = cachedTokens.get(user.getId());
+    if (token == null || token.credentials.isAccessTokenExpired()) {
+      return fetchAccessToken(user).getAccessToken();
+    }
+    if (Instant.now().isAfter(token.prefetchAt) && !tokenFetches.containsKey(user.getId())) {
+      prefetchTokens(user);
+    }
+    return token.credentials.getAccessToken();
+  }
+
+  /** Fetch the access token of given user, or wait for the fetch that includes the user. */
+  private OAuth2UserCredentials fetchAccessToken(User user) throws IOException {
+    CompletableFuture<Void> fetch = new CompletableFuture<>();
+    CompletableFuture<Void> existing = tokenFetches.putIfAbsent(user.getId(), fetch);
+    if (existing != null) {
+      await(existing);
+    } else {
+      fetchTokens(user.getId(), fetch);
+    }
+    CachedToken token = cachedTokens.get(user.getId());
+    if (token == null || token.credentials.isAccessTokenExpired()) {
+      // not included in the bulk response
       Request request = requestFor("users/" + user.getId() + "/token").build();
-      credentials = makeRequest(request, OAUTH_READER);
-      cachedCredentials.put(user.getId(), credentials);
+      return cache(user.getId(), makeRequest(request, OAUTH_READER));
     }
-    return credentials.getAccessToken();
+    return token.credentials;
   }
 
+  /** Fetch the token of given user on the prefetch thread, unless it is being fetched already. */
+  private void prefetchTokens(User user) {
+    CompletableFuture<Void> fetch = new CompletableFuture<>();
+    if (tokenFetches.putIfAbsent(user.getId(), fetch) != null) {
+      return;
+    }
+    try {
+      prefetchExecutor.execute(() -> {
+        try {
+          fetchTokens(user.getId(), fetch);
+        } catch (IOException | RuntimeException ex) {
+          logger.warn("Failed to prefetch access token of user {}: {}", user, ex.toString());
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      // repository is closed
+      tokenFetches.remove(user.getId(), fetch);
+      fetch.completeExceptionally(ex);
+    }
+  }
+
+  /**
+   * Fetch the token of given user in a single request with the tokens of other known users that
+   * are missing or about to expire. The request is made on the current thread.
+   * @param userId user to fetch the token of.
+   * @param fetch future that is registered for the user in {@link #tokenFetches}. It completes
+   *              when the fetched tokens are cached.
+   * @throws IOException if the tokens could not be fetched.
+   */
+  private void fetchTokens(String userId, CompletableFuture<Void> fetch) throws IOException {
+    List<String> userIds = new ArrayList<>();
+    userIds.add(userId);
+    boolean isBulk = isBulkTokenSupported;
+    if (isBulk) {
+      Instant now = Instant.now();
+      for (User user : timedCachedUsers) {
+        if (userIds.size() >= TOKEN_BATCH_SIZE) {
+          break;
+        }
+        String otherId = user.getId();
+        if (!otherId.equals(userId) && needsFetch(otherId, now)
+            && tokenFetches.putIfAbsent(otherId, fetch) == null) {
+          userIds.add(otherId);
+        }
+      }
+    }
+
+    try {
+      Request request;
+      if (isBulk) {
+        HttpUrl url = resolve("users/tokens").newBuilder()
+            .addQueryParameter("ids", String.join(",", userIds))
+            .build();
+        request = requestFor(url).build();
+      } else {
+        request = requestFor("users/" + userId + "/token").build();
+      }
+
+      logger.info("Requesting access tokens of {} users", userIds.size());
+      try (Response response = client.newCall(request).execute()) {
+        if (isBulk) {
+          cacheTokens(request, response);
+        } else {
+          cache(userId, readResponse(request, response, OAUTH_READER));
+        }
+      }
+      fetch.complete(null);
+    } catch (IOException | RuntimeException ex) {
+      fetch.completeExceptionally(ex);
+      throw ex;
+    } finally {
+      userIds.forEach(id -> tokenFetches.remove(id, fetch));
+    }
+  }
+
+  /** Cache all tokens of a bulk token response. */
+  private void cacheTokens(Request request, Response response) throws IOException {
+    JsonNode body;
+    try {
+      body = readResponse(request, response, JSON_NODE_READER);
+    } catch (NoSuchElementException ex) {
+      logger.warn("User repository does not support fetching tokens in bulk."
+          + " Fetching tokens per user instead.");
+      isBulkTokenSupported = false;
+      return;
+    }
+    JsonNode tokens = body.get("tokens");
+    if (tokens != null && tokens.isObject()) {
+      Map<String, OAuth2UserCredentials> credentials = TOKEN_MAP_READER.readValue(tokens);
+      credentials.forEach(this::cache);
+    }
+  }
+
+  /** Whether the token of given user is missing or should be fetched again. */
+  private boolean needsFetch(String userId, Instant now) {
+    CachedToken token = cachedTokens.get(userId);
+    return token == null || now.isAfter(token.prefetchAt);
+  }
+
+  private OAuth2UserCredentials cache(String userId, OAuth2UserCredentials credentials) {
+    Instant now = Instant.now();
+    Instant prefetchAt = credentials.getExpiresAt() != null
+        ? credentials.getExpiresAt().minus(TOKEN_PREFETCH_MARGIN)
+        : now;
+    Instant earliestPrefetch = now.plus(TOKEN_PREFETCH_INTERVAL);
+    if (prefetchAt.isBefore(earliestPrefetch)) {
+      prefetchAt = earliestPrefetch;
+    }
+    cachedTokens.put(userId, new CachedToken(credentials, prefetchAt));
+    return credentials;
+  }
+
+  /** Wait for a token fetch of another thread, for at most {@link #TOKEN_FETCH_TIMEOUT}. */
+  private static void await(CompletableFuture<Void> fetch) throws IOException {
+    try {
+      fetch.get(TOKEN_FETCH_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while fetching access tokens");
+    } catch (TimeoutException ex) {
+      throw new InterruptedIOException("Timed out while waiting for access tokens");
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else {
+        throw new IOException("Failed to fetch access tokens", cause);
+      }
+    }
+  }
+
+  /**
+   * Refreshes the access token of given user. If the token of the user is already being
+   * refreshed, this waits for that refresh instead.
+   */
   @Override
   public String refreshAccessToken(User user) throws IOException, NotAuthorizedException {
+    return tokenRefresher.refresh(user);
+  }
+
+  private String requestRefresh(User user) throws IOException {
     Request request = requestFor("users/" + user.getId() + "/token").post(EMPTY_BODY).build();
-    OAuth2UserCredentials credentials = makeRequest(request, OAUTH_READER);
-    cachedCredentials.put(user.getId(), credentials);
-    return credentials.getAccessToken();
+    return cache(user.getId(), makeRequest(request, OAUTH_READER)).getAccessToken();
   }
 
   @Override
@@ -147,24 +365,109 @@ public class ServiceUserRepository implements UserRepository {
     return now.isAfter(nextFetchTime);
   }
 
+  /**
+   * Update the user list from the service. A request to the same URL as the last request carries
+   * the ETag of the last response, so an unchanged list costs a 304 response. If the service returned a timestamp with the last
+   * list, only the changes since that timestamp are requested and merged into the known users.
+   */
   @Override
-  public void applyPendingUpdates() throws IOException {
+  public synchronized void applyPendingUpdates() throws IOException {
     logger.info("Requesting user information from webservice");
-    Request request = requestFor("users?source-type=FitBit").build();
-    this.timedCachedUsers =
-        this.<Users>makeRequest(request, USER_LIST_READER).getUsers().stream()
-            .filter(u -> u.isComplete()
-                && (containedUsers.isEmpty()
-                || containedUsers.contains(u.getVersionedId())))
-            .collect(Collectors.toSet());
+    HttpUrl.Builder urlBuilder = resolve("users").newBuilder()
+        .addQueryParameter("source-type", "FitBit");
+    boolean isDelta = userListTimestamp != null;
+    if (isDelta) {
+      urlBuilder.addQueryParameter("since", userListTimestamp);
+    }
+    HttpUrl url = urlBuilder.build();
+    Request.Builder requestBuilder = requestFor(url);
+    if (userListEtag != null && url.equals(userListEtagUrl)) {
+      requestBuilder.header("If-None-Match", userListEtag);
+    }
+    Request request = requestBuilder.build();
+
+    Users users;
+    try (Response response = client.newCall(request).execute()) {
+      if (response.code() == 304) {
+        logger.debug("User list has not changed");
+        nextFetch.set(Instant.now().plus(FETCH_THRESHOLD));
+        return;
+      }
+      users = readResponse(request, response, USER_LIST_READER);
+      userListEtag = response.header("ETag");
+      userListEtagUrl = url;
+    }
+
+    if (!isDelta) {
+      usersById.clear();
+    }
+    users.getDeleted().forEach(usersById::remove);
+    for (User user : users.getUsers()) {
+      if (user.isComplete()
+          && (containedUsers.isEmpty() || containedUsers.contains(user.getVersionedId()))) {
+        usersById.put(user.getId(), user);
+      } else {
+        usersById.remove(user.getId());
+      }
+    }
+    userListTimestamp = users.getTimestamp();
+    if (isDelta) {
+      logger.info("Received {} changed and {} deleted users, {} users in total",
+          users.getUsers().size(), users.getDeleted().size(), usersById.size());
+    }
+
+    Set<? extends User> previousUsers = this.timedCachedUsers;
+    this.timedCachedUsers = new HashSet<>(usersById.values());
     nextFetch.set(Instant.now().plus(FETCH_THRESHOLD));
+    if (!listeners.isEmpty()) {
+      notifyListeners(previousUsers, timedCachedUsers);
+    }
+  }
+
+  private void notifyListeners(Set<? extends User> previousUsers, Set<? extends User> users) {
+    Map<String, User> previousById = previousUsers.stream()
+        .collect(Collectors.toMap(User::getVersionedId, u -> u, (u1, u2) -> u1));
+    for (User user : users) {
+      User previous = previousById.remove(user.getVersionedId());
+      if (previous == null
+          || !Objects.equals(previous.getStartDate(), user.getStartDate())
+          || !Objects.equals(previous.getEndDate(), user.getEndDate())) {
+        listeners.forEach(l -> l.userUpdated(user));
+      }
+    }
+    previousById.values().forEach(u -> listeners.forEach(l -> l.userRemoved(u)));
+  }
+
+  @Override
+  public void addListener(UserListener listener) {
+    listeners.add(listener);
+  }
+
+  @Override
+  public void removeListener(UserListener listener) {
+    listeners.remove(listener);
+  }
+
+  /** Stop refreshing and prefetching tokens in the background. */
+  @Override
+  public void close() {
+    tokenRefresher.close();
+    prefetchExecutor.shutdownNow();
   }
 
   private Request.Builder requestFor(String relativeUrl) throws IOException {
+    return requestFor(resolve(relativeUrl));
+  }
+
+  private HttpUrl resolve(String relativeUrl) {
     HttpUrl url = baseUrl.resolve(relativeUrl);
     if (url == null) {
       throw new IllegalArgumentException("Relative URL is invalid");
     }
+    return url;
+  }
+
+  private Request.Builder requestFor(HttpUrl url) throws IOException {
     Request.Builder builder = new Request.Builder().url(url);
     String authorization = requestAuthorization();
     if (authorization != null) {
@@ -191,27 +494,42 @@ public class ServiceUserRepository implements UserRepository {
   private <T> T makeRequest(Request request, ObjectReader reader) throws IOException {
     logger.info("Requesting info from {}", request.url());
     try (Response response = client.newCall(request).execute()) {
-      ResponseBody body = response.body();
-
-      if (response.code() == 404) {
-        throw new NoSuchElementException("URL " + request.url() + " does not exist");
-      } else if (!response.isSuccessful() || body == null) {
-        String message = "Failed to make request";
-        if (response.code() > 0) {
-          message += " (HTTP status code " + response.code() + ')';
-        }
-        if (body != null) {
-          message += body.string();
-        }
-        throw new IOException(message);
+      return readResponse(request, response, reader);
+    }
+  }
+
+  private static <T> T readResponse(Request request, Response response, ObjectReader reader)
+      throws IOException {
+    ResponseBody body = response.body();
+    if (response.code() == 404) {
+      throw new NoSuchElementException("URL " + request.url() + " does not exist");
+    } else if (!response.isSuccessful() || body == null) {
+      String message = "Failed to make request";
+      if (response.code() > 0) {
+        message += " (HTTP status code " + response.code() + ')';
       }
-      String bodyString = body.string();
-      try {
-        return reader.readValue(bodyString);
-      } catch (JsonProcessingException ex) {
-        logger.error("Failed to parse JSON: {}\n{}", ex.toString(), bodyString);
-        throw ex;
+      if (body != null) {
+        message += body.string();
       }
+      throw new IOException(message);
+    }
+    String bodyString = body.string();
+    try {
+      return reader.readValue(bodyString);
+    } catch (JsonProcessingException ex) {
+      logger.error("Failed to parse JSON: {}\n{}", ex.toString(), bodyString);
+      throw ex;
+    }
+  }
+
+  /** Cached access token with the time after which it should be fetched again. */
+  private static final class CachedToken {
+    private final OAuth2UserCredentials credentials;
+    private final Instant prefetchAt;
+
+    private CachedToken(OAuth2UserCredentials credentials, Instant prefetchAt) {
+      this.credentials = credentials;
+      this.prefetchAt = prefetchAt;
     }
   }
 }
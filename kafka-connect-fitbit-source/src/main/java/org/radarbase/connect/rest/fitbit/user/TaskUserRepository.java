@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.fitbit.user;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import javax.ws.rs.NotAuthorizedException;
+import org.radarbase.connect.rest.RestSourceConnectorConfig;
+
+/**
+ * View of a user repository that only contains the users that are assigned to a single task.
+ * All other operations are delegated to the underlying repository.
+ */
+public class TaskUserRepository implements UserRepository {
+  private final UserRepository repository;
+  private final Predicate<? super User> isAssigned;
+  private final Map<UserListener, UserListener> listeners = new ConcurrentHashMap<>();
+
+  /**
+   * Task view of a repository.
+   * @param repository initialized repository with all users.
+   * @param isAssigned whether a user is assigned to the task. This may only depend on the ID of
+   *                   the user.
+   */
+  public TaskUserRepository(UserRepository repository, Predicate<? super User> isAssigned) {
+    this.repository = repository;
+    this.isAssigned = isAssigned;
+  }
+
+  @Override
+  public void initialize(RestSourceConnectorConfig config) {
+    repository.initialize(config);
+  }
+
+  @Override
+  public User get(String key) throws IOException {
+    return repository.get(key);
+  }
+
+  @Override
+  public Stream<? extends User> stream() throws IOException {
+    return repository.stream().filter(isAssigned);
+  }
+
+  @Override
+  public String getAccessToken(User user) throws IOException, NotAuthorizedException {
+    return repository.getAccessToken(user);
+  }
+
+  @Override
+  public String refreshAccessToken(User user) throws IOException, NotAuthorizedException {
+    return repository.refreshAccessToken(user);
+  }
+
+  @Override
+  public boolean hasPendingUpdates() {
+    return repository.hasPendingUpdates();
+  }
+
+  @Override
+  public void applyPendingUpdates() throws IOException {
+    repository.applyPendingUpdates();
+  }
+
+  @Override
+  public void addListener(UserListener listener) {
+    UserListener assignedListener = new UserListener() {
+      @Override
+      public void userUpdated(User user) {
+        if (isAssigned.test(user)) {
+          listener.userUpdated(user);
+        }
+      }
+
+      @Override
+      public void userRemoved(User user) {
+        if (isAssigned.test(user)) {
+          listener.userRemoved(user);
+        }
+      }
+    };
+    if (listeners.putIfAbsent(listener, assignedListener) == null) {
+      repository.addListener(assignedListener);
+    }
+  }
+
+  @Override
+  public void removeListener(UserListener listener) {
+    UserListener assignedListener = listeners.remove(listener);
+    if (assignedListener != null) {
+      repository.removeListener(assignedListener);
+    }
+  }
+
+  @Override
+  public void close() {
+    repository.close();
+  }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.fitbit.user;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.ws.rs.NotAuthorizedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Refreshes the access tokens of users at most once at a time per user. A thread that needs a
+ * new token while the token of the same user is being refreshed waits for that refresh instead
+ * of starting another one, so a refresh token is not used twice and other users are not blocked.
+ * Tokens that are in use can also be refreshed in the background shortly before they expire, so
+ * that requests do not wait for a token round trip. Background refreshes stop when the refresher
+ * is closed, so that a closed repository does not use refresh tokens that a new one may already
+ * have used.
+ */
+public class TokenRefresher implements Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(TokenRefresher.class);
+
+  /** Time before the expiry of a token that it is refreshed in the background. */
+  public static final Duration BACKGROUND_REFRESH_MARGIN = Duration.ofMinutes(3);
+
+  private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+  private final RefreshFunction refreshFunction;
+  private final ScheduledExecutorService scheduler;
+  private volatile boolean isClosed;
+  /** Refreshes in progress by user ID. */
+  private final ConcurrentMap<String, CompletableFuture<String>> refreshes =
+      new ConcurrentHashMap<>();
+  /** Background refreshes by user ID. */
+  private final ConcurrentMap<String, ScheduledRefresh> scheduledRefreshes =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Token refresher.
+   * @param refreshFunction function that refreshes the access token of a user and stores it.
+   */
+  public TokenRefresher(RefreshFunction refreshFunction) {
+    this.refreshFunction = refreshFunction;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "fitbit-token-refresher-" + THREAD_COUNT.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Refresh the access token of given user, or wait for the refresh that is already in progress
+   * for that user.
+   * @return new access token.
+   * @throws IOException if the refresh failed.
+   * @throws NotAuthorizedException if the refresh token of the user is no longer valid.
+   */
+  public String refresh(User user) throws IOException, NotAuthorizedException {
+    CompletableFuture<String> refresh = new CompletableFuture<>();
+    CompletableFuture<String> existing = refreshes.putIfAbsent(user.getId(), refresh);
+    if (existing != null) {
+      joined(user);
+      return await(existing);
+    }
+    try {
+      String accessToken = refreshFunction.refresh(user);
+      refresh.complete(accessToken);
+      return accessToken;
+    } catch (IOException | RuntimeException | Error ex) {
+      refresh.completeExceptionally(ex);
+      throw ex;
+    } finally {
+      refreshes.remove(user.getId(), refresh);
+    }
+  }
+
+  /**
+   * Called when a thread joins a refresh that is already in progress for given user, before it
+   * waits for that refresh. Tests can override this to know that a caller joined.
+   */
+  void joined(User user) {
+    // nothing to do
+  }
+
+  /**
+   * Refresh the access token of given user in the background {@link #BACKGROUND_REFRESH_MARGIN}
+   * before it expires. This replaces any background refresh of the user for a different expiry
+   * time. Nothing is scheduled if the token is about to expire already, or if this refresher is
+   * closed.
+   * @param user user that the token belongs to.
+   * @param expiresAt expiry time of the current access token, may be {@code null}.
+   */
+  public void refreshBefore(User user, Instant expiresAt) {
+    if (expiresAt == null || isClosed) {
+      return;
+    }
+    ScheduledRefresh current = scheduledRefreshes.get(user.getId());
+    if (current != null && current.expiresAt.equals(expiresAt)) {
+      return;
+    }
+    long delay = Duration.between(Instant.now(), expiresAt.minus(BACKGROUND_REFRESH_MARGIN))
+        .toMillis();
+    if (delay <= 0) {
+      return;
+    }
+    scheduledRefreshes.compute(user.getId(), (id, previous) -> {
+      if (previous != null) {
+        if (previous.expiresAt.equals(expiresAt)) {
+          return previous;
+        }
+        previous.cancel();
+      }
+      ScheduledRefresh scheduled = new ScheduledRefresh(expiresAt);
+      try {
+        scheduled.future = scheduler.schedule(
+            () -> runScheduled(user, scheduled), delay, MILLISECONDS);
+      } catch (RejectedExecutionException ex) {
+        // closed
+        return null;
+      }
+      return scheduled;
+    });
+  }
+
+  /** Cancel the background refresh of given user, if any. */
+  public void cancel(User user) {
+    ScheduledRefresh scheduled = scheduledRefreshes.remove(user.getId());
+    if (scheduled != null) {
+      scheduled.cancel();
+    }
+  }
+
+  /**
+   * Cancel all background refreshes and stop the refresh thread. Refreshes that callers request
+   * with {@link #refresh(User)} are still made.
+   */
+  @Override
+  public void close() {
+    isClosed = true;
+    scheduler.shutdownNow();
+    scheduledRefreshes.values().forEach(ScheduledRefresh::cancel);
+    scheduledRefreshes.clear();
+  }
+
+  private void runScheduled(User user, ScheduledRefresh scheduled) {
+    if (isClosed || !scheduledRefreshes.remove(user.getId(), scheduled)) {
+      return;
+    }
+    try {
+      refresh(user);
+      logger.debug("Refreshed access token of user {} before it expired", user);
+    } catch (IOException | RuntimeException ex) {
+      logger.warn("Failed to refresh access token of user {} before it expired: {}",
+          user, ex.toString());
+    }
+  }
+
+  private static String await(CompletableFuture<String> refresh) throws IOException {
+    try {
+      return refresh.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for token refresh");
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new IOException("Failed to refresh token", cause);
+      }
+    }
+  }
+
+  /** Function that refreshes the access token of a user. */
+  @FunctionalInterface
+  public interface RefreshFunction {
+    /**
+     * Refresh and store the access token of given user.
+     * @return new access token.
+     * @throws IOException if the refresh failed.
+     * @throws NotAuthorizedException if the refresh token of the user is no longer valid.
+     */
+    String refresh(User user) throws IOException, NotAuthorizedException;
+  }
+
+  /** Background refresh of a single token. */
+  private static final class ScheduledRefresh {
+    private final Instant expiresAt;
+    private volatile ScheduledFuture<?> future;
+
+    private ScheduledRefresh(Instant expiresAt) {
+      this.expiresAt = expiresAt;
+    }
+
+    private void cancel() {
+      ScheduledFuture<?> localFuture = future;
+      if (localFuture != null) {
+        localFuture.cancel(false);
+      }
+    }
+  }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.fitbit.user;
+
+/**
+ * Listener to changes in the users of a {@link UserRepository}. Listeners may be called from any
+ * thread, so they should not block.
+ */
+public interface UserListener {
+  /** Called when a user is added, or when its details change. */
+  void userUpdated(User user);
+
+  /** Called when a user is removed. */
+  void userRemoved(User user);
+}
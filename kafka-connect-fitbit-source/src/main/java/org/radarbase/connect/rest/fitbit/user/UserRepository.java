@@ -73,4 +73,24 @@ public interface UserRepository extends RestSourceTool {
    * @throws IOException if there was an error when applying updates.
    */
   void applyPendingUpdates() throws IOException;
+
+  /**
+   * Listen to users that are added, changed or removed, as far as the repository can detect
+   * them. Only users that are included in {@link #stream()} are reported as updated. A
+   * repository that cannot detect changes ignores the listener, so users of the repository should
+   * still call {@link #stream()} regularly.
+   */
+  default void addListener(UserListener listener) {
+    // changes are not detected
+  }
+
+  /** Stop listening to changes in users. */
+  default void removeListener(UserListener listener) {
+    // changes are not detected
+  }
+
+  /** Release any resources that the repository holds, like threads that detect changes. */
+  default void close() {
+    // no resources
+  }
 }
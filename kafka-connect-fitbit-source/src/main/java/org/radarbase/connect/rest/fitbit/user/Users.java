@@ -18,20 +18,45 @@
 package org.radarbase.connect.rest.fitbit.user;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+/**
+ * List of users from a user repository service. A response to a request with a {@code since}
+ * parameter only lists the users that changed since then, and the IDs of deleted users.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
 public class Users {
   private final List<LocalUser> users;
-
+  private final List<String> deleted;
+  private final String timestamp;
 
   @JsonCreator
-  public Users(@JsonProperty("users") List<LocalUser> users) {
-    this.users = new ArrayList<>(users);
+  public Users(@JsonProperty("users") List<LocalUser> users,
+      @JsonProperty("deleted") List<String> deleted,
+      @JsonProperty("timestamp") String timestamp) {
+    this.users = users != null ? new ArrayList<>(users) : new ArrayList<>();
+    this.deleted = deleted != null ? deleted : Collections.emptyList();
+    this.timestamp = timestamp;
   }
 
   public List<? extends User> getUsers() {
     return users;
   }
+
+  /** IDs of users that were deleted. Only set in responses to a {@code since} request. */
+  public List<String> getDeleted() {
+    return deleted;
+  }
+
+  /**
+   * Value of the {@code since} parameter to request the changes after this response, or
+   * {@code null} if the service does not support change requests.
+   */
+  public String getTimestamp() {
+    return timestamp;
+  }
 }
@@ -17,10 +17,8 @@
 
 package org.radarbase.connect.rest.fitbit.user;
 
-import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static org.radarbase.connect.rest.converter.PayloadToSourceRecordConverter.MIN_INSTANT;
 import static org.radarbase.connect.rest.fitbit.request.FitbitRequestGenerator.JSON_READER;
-import static org.radarbase.connect.rest.util.ThrowingFunction.tryOrRethrow;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -30,17 +28,22 @@ import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -52,6 +55,7 @@ import java.util.stream.Stream;
 import javax.ws.rs.NotAuthorizedException;
 import okhttp3.FormBody;
 import okhttp3.Headers;
+import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
@@ -59,13 +63,17 @@ import okhttp3.ResponseBody;
 import org.apache.kafka.common.config.ConfigException;
 import org.radarbase.connect.rest.RestSourceConnectorConfig;
 import org.radarbase.connect.rest.fitbit.FitbitRestSourceConnectorConfig;
+import org.radarbase.connect.rest.fitbit.util.CoalescingFileWriter;
+import org.radarbase.connect.rest.fitbit.util.DirectoryWatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * User repository that reads and writes configuration of YAML files in a local directory. The
  * directory will be recursively scanned for all YAML files. Those should all contain
- * {@link LocalUser} serializations.
+ * {@link LocalUser} serializations. After the first scan, the directory is watched for changes,
+ * and only files that are created, modified or deleted are read again. If the directory cannot
+ * be watched, it is scanned again every hour.
  */
 public class YamlUserRepository implements UserRepository {
   private static final Logger logger = LoggerFactory.getLogger(YamlUserRepository.class);
@@ -82,18 +90,26 @@ public class YamlUserRepository implements UserRepository {
   private static final int NUM_RETRIES = 10;
 
 
-  private final OkHttpClient client;
+  private OkHttpClient client;
 
   private Set<String> configuredUsers;
   private Headers headers;
+  private HttpUrl tokenUrl;
   private final ConcurrentMap<String, LockedUser> users = new ConcurrentHashMap<>();
+  private final List<UserListener> listeners = new CopyOnWriteArrayList<>();
   private final AtomicReference<Instant> nextFetch = new AtomicReference<>(MIN_INSTANT);
+  /** ID of the user stored in each file. */
+  private final ConcurrentMap<Path, String> userIdsByPath = new ConcurrentHashMap<>();
+  /** Whether users changed since the last call to {@link #applyPendingUpdates()}. */
+  private final AtomicBoolean hasChanges = new AtomicBoolean();
+  private final Object updateLock = new Object();
+  private volatile DirectoryWatcher watcher;
+  private final CoalescingFileWriter<LocalUser> userWriter =
+      new CoalescingFileWriter<>("yaml-user-writer", USER_WRITER::writeValueAsBytes);
+  private final TokenRefresher tokenRefresher =
+      new TokenRefresher(u -> refreshAccessToken(u, NUM_RETRIES));
   private Path credentialsDir;
 
-  public YamlUserRepository() {
-    this.client = new OkHttpClient();
-  }
-
   @Override
   public User get(String key) {
     updateUsers();
@@ -109,35 +125,149 @@ public class YamlUserRepository implements UserRepository {
     Instant nextFetchTime = nextFetch.get();
     Instant now = Instant.now();
     if (!now.isAfter(nextFetchTime)
-        || !nextFetch.compareAndSet(nextFetchTime, now.plus(FETCH_THRESHOLD))) {
+        || !nextFetch.compareAndSet(nextFetchTime, nextFetchAfter(now))) {
       return;
     }
     forceUpdateUsers();
   }
 
+  /**
+   * Time of the next full scan. If the directory is watched, it is only scanned again if the
+   * watcher missed changes.
+   */
+  private Instant nextFetchAfter(Instant now) {
+    return watcher != null ? Instant.MAX : now.plus(FETCH_THRESHOLD);
+  }
+
+  /** Read all user files, and remove users whose file no longer exists. */
   private void forceUpdateUsers() {
+    synchronized (updateLock) {
+      Set<Path> paths;
+      try (Stream<Path> files = Files.walk(credentialsDir)) {
+        paths = files.filter(YamlUserRepository::isUserFile).collect(Collectors.toSet());
+      } catch (IOException | RuntimeException ex) {
+        logger.error("Failed to read user directories: {}", ex.toString());
+        return;
+      }
+      userIdsByPath.keySet().stream()
+          .filter(p -> !paths.contains(p))
+          .collect(Collectors.toList())
+          .forEach(this::removeFile);
+      paths.forEach(this::readFile);
+    }
+  }
+
+  private static boolean isUserFile(Path path) {
+    return Files.isRegularFile(path) && isYamlFile(path);
+  }
+
+  private static boolean isYamlFile(Path path) {
+    return path.getFileName().toString().toLowerCase().endsWith(".yml");
+  }
+
+  /**
+   * Read a single user file. The user replaces the user with the same ID if any of its
+   * properties or credentials differ. Files that cannot be read are ignored, so that a file that
+   * is still being written is read again on its next change. Files that this repository stored
+   * itself, or is about to store, are ignored as well, since an older store must not replace
+   * newer credentials that were only used once.
+   */
+  private void readFile(Path path) {
+    LocalUser user;
     try {
-      Map<String, LockedUser> newMap = Files.walk(credentialsDir)
-          .filter(p -> Files.isRegularFile(p)
-              && p.getFileName().toString().toLowerCase().endsWith(".yml"))
-          .map(tryOrRethrow(p -> new LockedUser(USER_READER.readValue(p.toFile()), p)))
-          .collect(Collectors.toMap(l -> l.user.getId(), Function.identity()));
-
-      users.keySet().removeIf(u -> !newMap.containsKey(u));
-      newMap.forEach(users::putIfAbsent);
-    } catch (IOException | RuntimeException ex) {
-      logger.error("Failed to read user directories: {}", ex.toString());
+      byte[] content = Files.readAllBytes(path);
+      if (userWriter.isOwnChange(path, content)) {
+        logger.debug("Skipping user file {} that was stored by this repository", path);
+        return;
+      }
+      user = USER_READER.readValue(content);
+    } catch (IOException ex) {
+      logger.warn("Failed to read user file {}: {}", path, ex.toString());
+      return;
+    }
+    synchronized (updateLock) {
+      String previousId = userIdsByPath.put(path, user.getId());
+      if (previousId != null && !previousId.equals(user.getId())) {
+        removeUser(previousId, path);
+      }
+      LockedUser previous = users.get(user.getId());
+      if (previous != null && previous.apply(u -> isSameUser(u, user))) {
+        return;
+      }
+      users.put(user.getId(), new LockedUser(user, path));
+      hasChanges.set(true);
+
+      if (listeners.isEmpty()) {
+        return;
+      }
+      if (isIncluded(user)) {
+        LocalUser updated = user.copy();
+        listeners.forEach(l -> l.userUpdated(updated));
+      } else if (previous != null && lockedTest(this::isIncluded).test(previous)) {
+        LocalUser removed = previous.apply(LocalUser::copy);
+        listeners.forEach(l -> l.userRemoved(removed));
+      }
     }
   }
 
+  /** Remove the users of a deleted file, or of all files in a deleted directory. */
+  private void removeFile(Path path) {
+    synchronized (updateLock) {
+      String userId = userIdsByPath.remove(path);
+      if (userId != null) {
+        userWriter.forget(path);
+        removeUser(userId, path);
+        return;
+      }
+      userIdsByPath.keySet().stream()
+          .filter(p -> p.startsWith(path))
+          .collect(Collectors.toList())
+          .forEach(this::removeFile);
+    }
+  }
+
+  /** Remove a user if it was last read from given file. */
+  private void removeUser(String userId, Path path) {
+    LockedUser user = users.get(userId);
+    if (user == null || !user.path.equals(path) || !users.remove(userId, user)) {
+      return;
+    }
+    hasChanges.set(true);
+    LocalUser removed = user.apply(LocalUser::copy);
+    tokenRefresher.cancel(removed);
+    listeners.forEach(l -> l.userRemoved(removed));
+  }
+
+  private static boolean isSameUser(LocalUser user, LocalUser other) {
+    OAuth2UserCredentials credentials = user.getOAuth2Credentials();
+    OAuth2UserCredentials otherCredentials = other.getOAuth2Credentials();
+    return user.equals(other)
+        && Objects.equals(user.getExternalUserId(), other.getExternalUserId())
+        && Objects.equals(credentials.getAccessToken(), otherCredentials.getAccessToken())
+        && Objects.equals(credentials.getRefreshToken(), otherCredentials.getRefreshToken());
+  }
+
   @Override
   public Stream<LocalUser> stream() {
-    Stream<LockedUser> users = this.users.values().stream()
-        .filter(lockedTest(u -> u.getOAuth2Credentials().hasRefreshToken()));
-    if (!configuredUsers.isEmpty()) {
-      users = users.filter(lockedTest(u -> configuredUsers.contains(u.getVersionedId())));
-    }
-    return users.map(lockedApply(LocalUser::copy));
+    updateUsers();
+    return this.users.values().stream()
+        .filter(lockedTest(this::isIncluded))
+        .map(lockedApply(LocalUser::copy));
+  }
+
+  private boolean isIncluded(LocalUser user) {
+    return user.getOAuth2Credentials().hasRefreshToken()
+        && (configuredUsers.isEmpty() || configuredUsers.contains(user.getVersionedId()));
+  }
+
+  @Override
+  public void addListener(UserListener listener) {
+    listeners.add(listener);
+  }
+
+  @Override
+  public void removeListener(UserListener listener) {
+    listeners.remove(listener);
   }
 
   @Override
@@ -153,6 +283,66 @@ public class YamlUserRepository implements UserRepository {
     FitbitRestSourceConnectorConfig fitbitConfig = (FitbitRestSourceConnectorConfig) config;
     configuredUsers = new HashSet<>(fitbitConfig.getFitbitUsers());
     headers = ((FitbitRestSourceConnectorConfig) config).getClientCredentials();
+    tokenUrl = fitbitConfig.getFitbitTokenUrl();
+    client = config.getHttpClient();
+    startWatcher();
+  }
+
+  /**
+   * Watch the credentials directory for changes, unless it is watched already. If the directory
+   * cannot be watched, it is scanned periodically instead.
+   */
+  private synchronized void startWatcher() {
+    DirectoryWatcher currentWatcher = watcher;
+    if (currentWatcher != null) {
+      if (currentWatcher.getRoot().equals(credentialsDir)) {
+        return;
+      }
+      currentWatcher.close();
+    }
+    try {
+      DirectoryWatcher newWatcher = new DirectoryWatcher(credentialsDir,
+          YamlUserRepository::isYamlFile, new DirectoryWatcher.Listener() {
+            @Override
+            public void changed(Path path) {
+              readFile(path);
+            }
+
+            @Override
+            public void deleted(Path path) {
+              removeFile(path);
+            }
+
+            @Override
+            public void overflow() {
+              forceUpdateUsers();
+            }
+          });
+      newWatcher.start();
+      watcher = newWatcher;
+      logger.info("Watching user directory {} for changes", credentialsDir);
+    } catch (IOException | UnsupportedOperationException ex) {
+      logger.warn("Cannot watch user directory {}, scanning it every {} instead: {}",
+          credentialsDir, FETCH_THRESHOLD, ex.toString());
+      watcher = null;
+    }
+    // scan the whole directory on the next request for users
+    nextFetch.set(MIN_INSTANT);
+  }
+
+  /**
+   * Stop refreshing tokens in the background and watching the credentials directory, and write
+   * any users that are not yet stored.
+   */
+  @Override
+  public synchronized void close() {
+    tokenRefresher.close();
+    DirectoryWatcher currentWatcher = watcher;
+    if (currentWatcher != null) {
+      currentWatcher.close();
+      watcher = null;
+    }
+    userWriter.close();
   }
 
   @Override
@@ -162,40 +352,49 @@ public class YamlUserRepository implements UserRepository {
     if (actualUser == null) {
       throw new NoSuchElementException("User " + user + " is not present in this user repository.");
     }
-    String currentToken = actualUser.apply(u -> {
-      if (!u.getOAuth2Credentials().isAccessTokenExpired()) {
-        return u.getOAuth2Credentials().getAccessToken();
-      } else {
-        return null;
-      }
-    });
-
-    return currentToken != null ? currentToken : refreshAccessToken(user);
+    OAuth2UserCredentials credentials = actualUser.apply(LocalUser::getOAuth2Credentials);
+    if (credentials.isAccessTokenExpired()) {
+      return refreshAccessToken(user);
+    }
+    tokenRefresher.refreshBefore(user, credentials.getExpiresAt());
+    return credentials.getAccessToken();
   }
 
+  /**
+   * Refreshes the access token of given user. If the token of the user is already being
+   * refreshed, this waits for that refresh instead.
+   */
   @Override
   public String refreshAccessToken(User user) throws IOException {
-    return refreshAccessToken(user, NUM_RETRIES);
+    return tokenRefresher.refresh(user);
   }
 
   @Override
   public boolean hasPendingUpdates() {
     Instant nextFetchTime = nextFetch.get();
     Instant now = Instant.now();
-    return now.isAfter(nextFetchTime);
+    return now.isAfter(nextFetchTime) || hasChanges.get();
   }
 
+  /**
+   * Scans the directory if it is not watched or if the watcher missed changes. Otherwise, all
+   * changes have been applied already.
+   */
   @Override
   public void applyPendingUpdates() {
-    forceUpdateUsers();
-    nextFetch.set(Instant.now().plus(FETCH_THRESHOLD));
+    hasChanges.set(false);
+    Instant now = Instant.now();
+    if (now.isAfter(nextFetch.get())) {
+      nextFetch.set(nextFetchAfter(now));
+      forceUpdateUsers();
+    }
   }
 
   /**
    * Refreshes the Fitbit access token on the current host, using the locally stored refresh token.
    * If successful, the tokens are locally stored.
    * If the refresh token is expired or invalid, the access token and the refresh token are set to
-   * null.
+   * null. Use {@link #refreshAccessToken(User)} to avoid refreshing the same user concurrently.
    * @param user user to request access token for.
    * @param retry number of retries before exiting.
    * @return access token
@@ -203,7 +402,7 @@ public class YamlUserRepository implements UserRepository {
    * @throws NotAuthorizedException if no refresh token is stored with the user or if the
    *                                current refresh token is no longer valid.
    */
-  public synchronized String refreshAccessToken(User user, int retry) throws IOException {
+  public String refreshAccessToken(User user, int retry) throws IOException {
     LockedUser actualUser = this.users.get(user.getId());
     if (actualUser == null) {
       throw new NoSuchElementException("User " + user + " is not present in this user repository.");
@@ -213,7 +412,7 @@ public class YamlUserRepository implements UserRepository {
       throw new NotAuthorizedException("Refresh token is not set");
     }
     Request request = new Request.Builder()
-        .url("https://api.fitbit.com/oauth2/token")
+        .url(tokenUrl)
         .headers(headers)
         .post(new FormBody.Builder()
             .add("grant_type", "refresh_token")
@@ -253,15 +452,17 @@ public class YamlUserRepository implements UserRepository {
           }
         }
 
-        actualUser.accept((u, p) -> {
+        CompletableFuture<Void> stored = actualUser.apply(u -> {
           if (!refreshToken.equals(u.getOAuth2Credentials().getRefreshToken())) {
             // it was updated already by another thread.
-            return;
+            return null;
           }
           u.setOauth2Credentials(new OAuth2UserCredentials(
               refreshTokenNode.asText(), accessTokenNode.asText(), expiresIn));
-          store(p, u);
+          return store(actualUser.path, u);
         });
+        // The old refresh token is no longer valid, so the new one should not be lost.
+        awaitStored(user, stored);
       } else if (response.code() == 400 || response.code() == 401) {
         actualUser.accept((u, p) -> {
           if (!refreshToken.equals(u.getOAuth2Credentials().getRefreshToken())) {
@@ -285,25 +486,31 @@ public class YamlUserRepository implements UserRepository {
   }
 
   /**
-   * Store a user to given path.
+   * Store a copy of a user to given path in the background. Stores of the same user that are
+   * still pending are coalesced. This should be called while holding the lock of the user, so
+   * that stores are queued in the same order as the changes.
    * @param path path to store at.
-   * @param user use to store.
+   * @param user user to store.
+   * @return future that completes when the user is durably stored.
    */
-  private void store(Path path, LocalUser user) {
+  private CompletableFuture<Void> store(Path path, LocalUser user) {
+    return userWriter.write(path, user.copy());
+  }
+
+  /** Wait until a user is durably stored. Failures are logged. */
+  private static void awaitStored(User user, CompletableFuture<Void> stored)
+      throws InterruptedIOException {
+    if (stored == null) {
+      return;
+    }
     try {
-      Path temp = Files.createTempFile(user.getId(), ".tmp");
-      try {
-        try (OutputStream out = Files.newOutputStream(temp)) {
-          synchronized (this) {
-            USER_WRITER.writeValue(out, user);
-          }
-        }
-        Files.move(temp, path, REPLACE_EXISTING);
-      } finally {
-        Files.deleteIfExists(temp);
-      }
-    } catch (IOException ex) {
-      logger.error("Failed to store user file: {}", ex.toString());
+      stored.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while storing user " + user);
+    } catch (ExecutionException ex) {
+      logger.error("Failed to store new credentials of user {}: {}",
+          user, ex.getCause().toString());
     }
   }
 
@@ -2,12 +2,16 @@ package org.radarbase.connect.rest.fitbit.user.firebase;
 
 import com.google.cloud.firestore.CollectionReference;
 import java.io.IOException;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 import javax.ws.rs.NotAuthorizedException;
 import org.radarbase.connect.rest.RestSourceConnectorConfig;
 import org.radarbase.connect.rest.fitbit.FitbitRestSourceConnectorConfig;
+import org.radarbase.connect.rest.fitbit.user.TokenRefresher;
 import org.radarbase.connect.rest.fitbit.user.User;
+import org.radarbase.connect.rest.fitbit.user.UserListener;
 import org.radarbase.connect.rest.fitbit.user.firebase.exception.HttpException;
 import org.radarbase.connect.rest.fitbit.user.firebase.exception.UnauthorizedException;
 import org.slf4j.Logger;
@@ -27,7 +31,6 @@ import org.slf4j.LoggerFactory;
  */
 public class CovidCollabFirebaseUserRepository extends FirebaseUserRepository {
 
-  protected static final String FITBIT_TOKEN_ENDPOINT = "https://api.fitbit.com/oauth2/token";
   private static final Logger logger =
       LoggerFactory.getLogger(CovidCollabFirebaseUserRepository.class);
 
@@ -35,6 +38,8 @@ public class CovidCollabFirebaseUserRepository extends FirebaseUserRepository {
   private FitbitTokenService fitbitTokenService;
   private CovidCollabFirestore covidCollabFirestore;
   private FitbitRestSourceConnectorConfig fitbitConfig;
+  private final Map<UserListener, UserListener> listeners = new ConcurrentHashMap<>();
+  private final TokenRefresher tokenRefresher = new TokenRefresher(this::requestAccessToken);
 
   @Override
   public User get(String key) throws IOException {
@@ -58,12 +63,21 @@ public class CovidCollabFirebaseUserRepository extends FirebaseUserRepository {
     if (credentials==null || credentials.isAccessTokenExpired()) {
       return refreshAccessToken(user);
     }
+    tokenRefresher.refreshBefore(user, credentials.getExpiresAt());
     return credentials.getAccessToken();
   }
 
+  /**
+   * Refreshes the access token of given user. If the token of the user is already being
+   * refreshed by this connector, this waits for that refresh instead.
+   */
   @Override
   public String refreshAccessToken(User user)
       throws IOException, NotAuthorizedException {
+    return tokenRefresher.refresh(user);
+  }
+
+  private String requestAccessToken(User user) throws IOException, NotAuthorizedException {
     FirebaseUser firebaseUser = covidCollabFirestore.getUser(user.getId());
     if (firebaseUser==null) {
       throw new NoSuchElementException("User " + user + " is not present in this user repository.");
@@ -150,19 +164,56 @@ public class CovidCollabFirebaseUserRepository extends FirebaseUserRepository {
 
     this.fitbitTokenService =
         new FitbitTokenService(
+            fitbitConfig.getHttpClient(),
             fitbitConfig.getFitbitClient(),
             fitbitConfig.getFitbitClientSecret(),
-            FITBIT_TOKEN_ENDPOINT);
+            fitbitConfig.getFitbitTokenUrl().toString());
+  }
+
+  @Override
+  public void addListener(UserListener listener) {
+    UserListener filteredListener = new UserListener() {
+      @Override
+      public void userUpdated(User user) {
+        if (isIncluded(user)) {
+          listener.userUpdated(user);
+        } else {
+          listener.userRemoved(user);
+        }
+      }
+
+      @Override
+      public void userRemoved(User user) {
+        listener.userRemoved(user);
+      }
+    };
+    if (listeners.putIfAbsent(listener, filteredListener) == null) {
+      covidCollabFirestore.addListener(filteredListener);
+    }
+  }
+
+  @Override
+  public void removeListener(UserListener listener) {
+    UserListener filteredListener = listeners.remove(listener);
+    if (filteredListener != null) {
+      covidCollabFirestore.removeListener(filteredListener);
+    }
+  }
+
+  /** Stop refreshing tokens in the background. */
+  @Override
+  public void close() {
+    tokenRefresher.close();
   }
 
   private Stream<FirebaseUser> filterUsers() {
-    return covidCollabFirestore.getUsers().stream().filter(user ->
-        (
-            fitbitConfig.getFitbitUsers().isEmpty()
-                || fitbitConfig.getFitbitUsers().contains(user.getVersionedId()))
-            && (
-            fitbitConfig.getExcludedFitbitUsers().isEmpty()
-                || !fitbitConfig.getExcludedFitbitUsers().contains(user.getId()))
-    );
+    return covidCollabFirestore.getUsers().stream().filter(this::isIncluded);
+  }
+
+  private boolean isIncluded(User user) {
+    return (fitbitConfig.getFitbitUsers().isEmpty()
+            || fitbitConfig.getFitbitUsers().contains(user.getVersionedId()))
+        && (fitbitConfig.getExcludedFitbitUsers().isEmpty()
+            || !fitbitConfig.getExcludedFitbitUsers().contains(user.getId()));
   }
 }
@@ -3,6 +3,7 @@ package org.radarbase.connect.rest.fitbit.user.firebase;
 import static com.google.firebase.cloud.FirestoreClient.getFirestore;
 import static org.radarbase.connect.rest.fitbit.user.firebase.FirebaseFitbitAuthDetails.OAUTH_KEY;
 import static org.radarbase.connect.rest.fitbit.user.firebase.FirebaseUserRepository.getDocument;
+import static org.radarbase.connect.rest.fitbit.user.firebase.FirebaseUserRepository.getDocuments;
 
 import com.google.cloud.firestore.CollectionReference;
 import com.google.cloud.firestore.DocumentChange;
@@ -12,10 +13,15 @@ import com.google.cloud.firestore.FirestoreException;
 import com.google.cloud.firestore.ListenerRegistration;
 import com.google.cloud.firestore.QuerySnapshot;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.radarbase.connect.rest.fitbit.FitbitRestSourceConnectorConfig;
+import org.radarbase.connect.rest.fitbit.user.UserListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,6 +37,7 @@ public class CovidCollabFirestore {
   private static CovidCollabFirestore _INSTANCE;
   private static FitbitRestSourceConnectorConfig restSourceConnectorConfig;
   private final ConcurrentHashMap<String, FirebaseUser> cachedUsers = new ConcurrentHashMap<>();
+  private final List<UserListener> listeners = new CopyOnWriteArrayList<>();
   private final CollectionReference userCollection;
   private final CollectionReference fitbitCollection;
   private ListenerRegistration fitbitCollectionListenerRegistration;
@@ -96,6 +103,15 @@ public class CovidCollabFirestore {
     }
   }
 
+  /** Listen to users that are added, updated or removed by real-time updates. */
+  public void addListener(UserListener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(UserListener listener) {
+    listeners.remove(listener);
+  }
+
   public boolean hasUpdates() {
     return hasPendingUpdates;
   }
@@ -161,11 +177,20 @@ public class CovidCollabFirestore {
     return user;
   }
 
-  private synchronized void updateUser(DocumentSnapshot fitbitDocumentSnapshot) {
+  /**
+   * Update a user from its fitbit document.
+   *
+   * @param fitbitDocumentSnapshot fitbit document of the user
+   * @param userDocumentSnapshot user document of the user, or {@code null} to get it from the
+   *     user collection.
+   */
+  private synchronized void updateUser(
+      DocumentSnapshot fitbitDocumentSnapshot, DocumentSnapshot userDocumentSnapshot) {
     try {
-      FirebaseUser user =
-          createUser(
-              getDocument(fitbitDocumentSnapshot.getId(), userCollection), fitbitDocumentSnapshot);
+      if (userDocumentSnapshot==null) {
+        userDocumentSnapshot = getDocument(fitbitDocumentSnapshot.getId(), userCollection);
+      }
+      FirebaseUser user = createUser(userDocumentSnapshot, fitbitDocumentSnapshot);
       logger.debug("User to be updated: {}", user);
       if (checkValidUser(user)) {
         FirebaseUser user1 = cachedUsers.put(user.getId(), user);
@@ -177,6 +202,7 @@ public class CovidCollabFirestore {
         }
         hasPendingUpdates = true;
         countAdded++;
+        listeners.forEach(l -> l.userUpdated(user));
       } else if (user!=null && !user.isComplete()) {
         logger.info("User is not complete, skipping...");
         removeUser(fitbitDocumentSnapshot);
@@ -215,6 +241,7 @@ public class CovidCollabFirestore {
     if (user!=null) {
       logger.info("Removed User: {}:", user);
       hasPendingUpdates = true;
+      listeners.forEach(l -> l.userRemoved(user));
     }
   }
 
@@ -228,13 +255,14 @@ public class CovidCollabFirestore {
         "OnEvent Called: {}, {}",
         snapshots.getDocumentChanges().size(),
         snapshots.getDocuments().size());
+    Map<String, DocumentSnapshot> userDocuments = getUserDocuments(snapshots);
     for (DocumentChange dc : snapshots.getDocumentChanges()) {
       try {
         logger.debug("Type: {}", dc.getType());
         switch (dc.getType()) {
           case ADDED:
           case MODIFIED:
-            this.updateUser(dc.getDocument());
+            this.updateUser(dc.getDocument(), userDocuments.get(dc.getDocument().getId()));
             break;
           case REMOVED:
             this.removeUser(dc.getDocument());
@@ -251,4 +279,30 @@ public class CovidCollabFirestore {
     logger.info("Added/Updated {} Users", countAdded);
     countAdded = 0;
   }
+
+  /**
+   * Get the user documents of all added and modified fitbit documents in a snapshot with batched
+   * requests, instead of one request per user.
+   *
+   * @return user documents by ID, or an empty map if they could not be retrieved.
+   */
+  private Map<String, DocumentSnapshot> getUserDocuments(QuerySnapshot snapshots) {
+    List<String> ids = new ArrayList<>();
+    for (DocumentChange dc : snapshots.getDocumentChanges()) {
+      if (dc.getType()==DocumentChange.Type.ADDED
+          || dc.getType()==DocumentChange.Type.MODIFIED) {
+        ids.add(dc.getDocument().getId());
+      }
+    }
+    if (ids.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    try {
+      return getDocuments(ids, userCollection);
+    } catch (IOException ex) {
+      logger.warn("Could not get {} user documents at once. Getting them one by one.",
+          ids.size(), ex);
+      return Collections.emptyMap();
+    }
+  }
 }
@@ -1,5 +1,6 @@
 package org.radarbase.connect.rest.fitbit.user.firebase;
 
+import com.google.api.core.ApiFuture;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.firestore.CollectionReference;
 import com.google.cloud.firestore.DocumentReference;
@@ -10,6 +11,11 @@ import com.google.firebase.FirebaseApp;
 import com.google.firebase.FirebaseOptions;
 import com.google.firebase.cloud.FirestoreClient;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -25,6 +31,7 @@ import org.slf4j.LoggerFactory;
 public abstract class FirebaseUserRepository implements UserRepository {
 
   private static final Logger logger = LoggerFactory.getLogger(FirebaseUserRepository.class);
+  private static final int MAX_BATCH_GET_SIZE = 100;
 
   @Override
   public void initialize(RestSourceConnectorConfig config) {
@@ -73,6 +80,47 @@ public abstract class FirebaseUserRepository implements UserRepository {
     return documentSnapshot;
   }
 
+  /**
+   * Get multiple documents from a Collection in Firestore. The documents are requested in batches
+   * of at most {@value #MAX_BATCH_GET_SIZE} that are all sent before any response is awaited.
+   *
+   * @param keys The document IDs to pull from the collection
+   * @param collection The collection reference to query
+   * @return the documents by ID, including snapshots of documents that do not exist
+   * @throws IOException If there was a problem getting the documents
+   */
+  public static Map<String, DocumentSnapshot> getDocuments(
+      Collection<String> keys, CollectionReference collection) throws IOException {
+    List<ApiFuture<List<DocumentSnapshot>>> batches = new ArrayList<>();
+    DocumentReference[] batch = null;
+    int batchSize = 0;
+    int remaining = keys.size();
+    for (String key : keys) {
+      if (batch == null) {
+        batch = new DocumentReference[Math.min(remaining, MAX_BATCH_GET_SIZE)];
+      }
+      batch[batchSize++] = collection.document(key);
+      remaining--;
+      if (batchSize == batch.length) {
+        batches.add(getFirestore().getAll(batch));
+        batch = null;
+        batchSize = 0;
+      }
+    }
+
+    Map<String, DocumentSnapshot> documents = new HashMap<>(keys.size() * 2);
+    try {
+      for (ApiFuture<List<DocumentSnapshot>> future : batches) {
+        for (DocumentSnapshot snapshot : future.get(20, TimeUnit.SECONDS)) {
+          documents.put(snapshot.getId(), snapshot);
+        }
+      }
+    } catch (InterruptedException | ExecutionException | TimeoutException e) {
+      throw new IOException(e);
+    }
+    return documents;
+  }
+
   /**
    * Writes the specified object to a Firestore document.
    *
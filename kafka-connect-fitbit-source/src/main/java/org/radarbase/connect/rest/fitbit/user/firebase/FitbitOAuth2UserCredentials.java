@@ -51,6 +51,13 @@ public class FitbitOAuth2UserCredentials {
     return Instant.now().plus(expiresIn).minus(EXPIRY_TIME_MARGIN);
   }
 
+  /** Time after which the access token is considered expired. */
+  @Exclude
+  @JsonIgnore
+  public Instant getExpiresAt() {
+    return expiresAt;
+  }
+
   @PropertyName("access_token")
   public String getAccessToken() {
     return accessToken;
@@ -25,13 +25,14 @@ public class FitbitTokenService {
   private final String clientSecret;
   private final String tokenEndpoint;
 
-  public FitbitTokenService(String clientId, String clientSecret, String tokenEndpoint) {
+  public FitbitTokenService(OkHttpClient client, String clientId, String clientSecret,
+      String tokenEndpoint) {
     this.clientId = clientId;
     this.clientSecret = clientSecret;
     this.tokenEndpoint = tokenEndpoint;
     this.mapper = new ObjectMapper().disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
     this.client =
-        new OkHttpClient.Builder()
+        client.newBuilder()
             .connectTimeout(20, TimeUnit.SECONDS)
             .writeTimeout(20, TimeUnit.SECONDS)
             .readTimeout(30, TimeUnit.SECONDS)
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.fitbit.util;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes files on a background thread. Writes to a file that is still waiting to be written are
+ * coalesced, so only the latest value is written. Each file is written to a temporary file in
+ * the same directory, synced to disk and atomically moved into place. Directories are synced
+ * once per batch of writes, after which the writes are reported as complete. The thread is
+ * started when a write is requested and stopped by {@link #close()}, after which no more writes
+ * are accepted. The content that was last
+ * written to each file is kept, so that changes of a watched file that this writer made itself
+ * can be recognized with {@link #isOwnChange(Path, byte[])}.
+ * @param <T> type of value to write.
+ */
+public class CoalescingFileWriter<T> implements Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(CoalescingFileWriter.class);
+
+  private final String name;
+  private final Serializer<? super T> serializer;
+  /** Writes that are not yet taken by the writer thread, by file. Guarded by this. */
+  private Map<Path, PendingWrite<T>> pending = new LinkedHashMap<>();
+  /** Writes that the writer thread is doing. Guarded by this. */
+  private Map<Path, PendingWrite<T>> writing = Collections.emptyMap();
+  /** Content that was last written to each file. Guarded by this. */
+  private final Map<Path, byte[]> written = new HashMap<>();
+  /** Writer thread. Guarded by this. */
+  private Thread thread;
+  /** Whether the writer thread should stop once all pending writes are done. Guarded by this. */
+  private boolean isStopping;
+  /** Whether {@link #close()} was called. Guarded by this. */
+  private boolean isClosed;
+
+  /**
+   * File writer.
+   * @param name name of the writer thread.
+   * @param serializer serializer of values to write.
+   */
+  public CoalescingFileWriter(String name, Serializer<? super T> serializer) {
+    this.name = name;
+    this.serializer = serializer;
+  }
+
+  /**
+   * Write given value to given file in the background. If a write of the same file is pending,
+   * its value is replaced.
+   * @return future that completes when the value, or a later value of the same file, is durably
+   *         stored, or that completes exceptionally if writing failed or if this writer is
+   *         closed.
+   */
+  public synchronized CompletableFuture<Void> write(Path path, T value) {
+    if (isClosed) {
+      CompletableFuture<Void> rejected = new CompletableFuture<>();
+      rejected.completeExceptionally(new IllegalStateException(
+          "Cannot write " + path + " after " + name + " is closed"));
+      return rejected;
+    }
+    PendingWrite<T> write = pending.computeIfAbsent(path, p -> new PendingWrite<>());
+    write.value = value;
+    if (thread == null) {
+      isStopping = false;
+      thread = new Thread(this::run, name);
+      thread.setDaemon(true);
+      thread.start();
+    } else {
+      notifyAll();
+    }
+    return write.future;
+  }
+
+  private void run() {
+    while (true) {
+      Map<Path, PendingWrite<T>> writes;
+      synchronized (this) {
+        while (pending.isEmpty() && !isStopping) {
+          try {
+            wait();
+          } catch (InterruptedException ex) {
+            isStopping = true;
+          }
+        }
+        if (pending.isEmpty()) {
+          thread = null;
+          notifyAll();
+          return;
+        }
+        writes = pending;
+        writing = writes;
+        pending = new LinkedHashMap<>();
+      }
+      writeAll(writes);
+    }
+  }
+
+  private void writeAll(Map<Path, PendingWrite<T>> writes) {
+    Map<Path, PendingWrite<T>> done = new LinkedHashMap<>();
+    Set<Path> directories = new HashSet<>();
+    writes.forEach((path, write) -> {
+      try {
+        byte[] content = serializer.serialize(write.value);
+        writeFile(path, content);
+        synchronized (this) {
+          written.put(path, content);
+        }
+        done.put(path, write);
+        directories.add(path.toAbsolutePath().getParent());
+      } catch (IOException | RuntimeException ex) {
+        logger.error("Failed to write {}: {}", path, ex.toString());
+        write.future.completeExceptionally(ex);
+      }
+    });
+    // make the moves durable
+    directories.forEach(CoalescingFileWriter::syncDirectory);
+    synchronized (this) {
+      writing = Collections.emptyMap();
+    }
+    done.values().forEach(w -> w.future.complete(null));
+  }
+
+  private static void writeFile(Path path, byte[] content) throws IOException {
+    Path directory = path.toAbsolutePath().getParent();
+    Path temp = Files.createTempFile(directory, "." + path.getFileName(), ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(temp, WRITE)) {
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        channel.force(true);
+      }
+      try {
+        Files.move(temp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException ex) {
+        Files.move(temp, path, REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private static void syncDirectory(Path directory) {
+    try (FileChannel channel = FileChannel.open(directory, READ)) {
+      channel.force(true);
+    } catch (IOException ex) {
+      // not all platforms allow syncing a directory
+      logger.debug("Cannot sync directory {}: {}", directory, ex.toString());
+    }
+  }
+
+  /**
+   * Whether a change of given file with given content may have been made by this writer. That is
+   * the case if a write of the file is pending or in progress, since that write will replace the
+   * content anyway, or if the content equals the content that this writer last wrote to it.
+   */
+  public synchronized boolean isOwnChange(Path path, byte[] content) {
+    return pending.containsKey(path)
+        || writing.containsKey(path)
+        || Arrays.equals(written.get(path), content);
+  }
+
+  /**
+   * Forget the content that was written to given file, for example because the file was deleted.
+   * Content that is written to the file later is then not regarded as written by this writer.
+   */
+  public synchronized void forget(Path path) {
+    written.remove(path);
+  }
+
+  /**
+   * Write all pending values and stop the writer thread. Writes that are requested after this are
+   * rejected.
+   */
+  @Override
+  public synchronized void close() {
+    isClosed = true;
+    if (thread == null) {
+      return;
+    }
+    isStopping = true;
+    notifyAll();
+    while (thread != null) {
+      try {
+        wait();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /** Serializer of values to file contents. */
+  @FunctionalInterface
+  public interface Serializer<T> {
+    byte[] serialize(T value) throws IOException;
+  }
+
+  private static final class PendingWrite<T> {
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    private T value;
+  }
+}
@@ -43,6 +43,11 @@ public class DateRange {
     return end;
   }
 
+  /** Whether the range ends on a later date than it starts. */
+  public boolean spansMultipleDays() {
+    return !start.toLocalDate().equals(end.toLocalDate());
+  }
+
   @Override
   public String toString() {
     return "DateRange{"
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.fitbit.util;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches a directory and all its subdirectories for files that are created, modified or
+ * deleted, using a {@link WatchService}. Events that arrive together are coalesced, so a file
+ * that is written in several steps is reported once. Changes are reported on a daemon thread.
+ */
+public class DirectoryWatcher implements Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(DirectoryWatcher.class);
+
+  private final Path root;
+  private final Predicate<? super Path> fileFilter;
+  private final Listener listener;
+  private final WatchService watchService;
+  /** Watched directories by their watch key. */
+  private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+  /**
+   * Watched directories that were not reported as deleted. The watch key of a deleted directory
+   * may be cancelled before the deletion is reported, so this is kept apart from the keys.
+   */
+  private final Set<Path> directoryPaths = ConcurrentHashMap.newKeySet();
+  private final Thread thread;
+  private volatile boolean isClosed;
+
+  /**
+   * Watch given directory. Call {@link #start()} to start reporting changes.
+   * @param root directory to watch, including its subdirectories.
+   * @param fileFilter files to report changes of. This should only depend on the path, because
+   *                   it is also applied to files that were deleted.
+   * @param listener listener to report changes to.
+   * @throws IOException if the directory cannot be watched.
+   */
+  public DirectoryWatcher(Path root, Predicate<? super Path> fileFilter, Listener listener)
+      throws IOException {
+    this.root = root;
+    this.fileFilter = fileFilter;
+    this.listener = listener;
+    this.watchService = root.getFileSystem().newWatchService();
+    this.thread = new Thread(this::run, "directory-watcher-" + root.getFileName());
+    this.thread.setDaemon(true);
+  }
+
+  /**
+   * Register all directories and start reporting changes.
+   * @throws IOException if the directories cannot be registered.
+   */
+  public void start() throws IOException {
+    registerAll(root);
+    thread.start();
+  }
+
+  public Path getRoot() {
+    return root;
+  }
+
+  private void run() {
+    try {
+      while (!isClosed) {
+        Map<Path, WatchEvent.Kind<?>> changes = new LinkedHashMap<>();
+        boolean isOverflow = false;
+        WatchKey key = watchService.take();
+        // take all events that are already available
+        while (key != null) {
+          isOverflow |= collectEvents(key, changes);
+          key = watchService.poll();
+        }
+        if (isOverflow) {
+          logger.warn("Missed file changes in {}. Rescanning the directory.", root);
+          listener.overflow();
+        } else {
+          changes.forEach(this::report);
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (ClosedWatchServiceException ex) {
+      // closed
+    }
+  }
+
+  /**
+   * Add the events of given key to the changes, the last event of a path taking precedence.
+   * @return whether events were lost.
+   */
+  private boolean collectEvents(WatchKey key, Map<Path, WatchEvent.Kind<?>> changes) {
+    boolean isOverflow = false;
+    Path directory = directories.get(key);
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == OVERFLOW) {
+        isOverflow = true;
+      } else if (directory != null) {
+        Path path = directory.resolve((Path) event.context());
+        changes.remove(path);
+        changes.put(path, event.kind());
+      }
+    }
+    if (!key.reset()) {
+      directories.remove(key);
+    }
+    return isOverflow;
+  }
+
+  private void report(Path path, WatchEvent.Kind<?> kind) {
+    try {
+      if (kind == ENTRY_DELETE) {
+        boolean isDirectory = directoryPaths.removeIf(p -> p.startsWith(path));
+        if (isDirectory || fileFilter.test(path)) {
+          listener.deleted(path);
+        }
+      } else if (Files.isDirectory(path, NOFOLLOW_LINKS)) {
+        if (kind == ENTRY_CREATE) {
+          // files may have been added before the directory was registered
+          registerAll(path);
+          try (Stream<Path> files = Files.walk(path)) {
+            files.filter(this::isWatchedFile)
+                .collect(Collectors.toList())
+                .forEach(listener::changed);
+          }
+        }
+      } else if (isWatchedFile(path)) {
+        listener.changed(path);
+      }
+    } catch (IOException | RuntimeException ex) {
+      logger.error("Failed to process change of {}: {}", path, ex.toString());
+    }
+  }
+
+  private boolean isWatchedFile(Path path) {
+    return Files.isRegularFile(path) && fileFilter.test(path);
+  }
+
+  private void registerAll(Path directory) throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      for (Path path : (Iterable<Path>) paths.filter(Files::isDirectory)::iterator) {
+        directories.put(
+            path.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), path);
+        directoryPaths.add(path);
+      }
+    }
+  }
+
+  /** Stop watching for changes. */
+  @Override
+  public void close() {
+    isClosed = true;
+    try {
+      watchService.close();
+    } catch (IOException ex) {
+      logger.warn("Failed to close watcher of {}: {}", root, ex.toString());
+    }
+  }
+
+  /** Listener to changes in a directory. */
+  public interface Listener {
+    /** A file was created or modified. */
+    void changed(Path path);
+
+    /** A file or directory was deleted. */
+    void deleted(Path path);
+
+    /** Changes may have been missed, so the whole directory should be read again. */
+    void overflow();
+  }
+}
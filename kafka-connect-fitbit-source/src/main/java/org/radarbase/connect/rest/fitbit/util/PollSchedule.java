@@ -0,0 +1,203 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.fitbit.util;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+/**
+ * Min-heap of next poll times in epoch milliseconds, by user index of a {@link UserStateStore}.
+ * The heap is stored in primitive arrays, and the heap position of each index is tracked, so
+ * rescheduling or removing an index takes O(log n) without leaving stale entries. This class is
+ * not thread-safe.
+ */
+public class PollSchedule {
+  private static final int INITIAL_CAPACITY = 64;
+
+  /** User indices in heap order. */
+  private int[] heap = new int[INITIAL_CAPACITY];
+  /** Scheduled time by heap position. */
+  private long[] times = new long[INITIAL_CAPACITY];
+  /** Heap position by user index, or -1 if the index is not scheduled. */
+  private int[] positions = newPositions(INITIAL_CAPACITY);
+  private int size;
+
+  /** Schedule given index at given time, replacing any previous time of that index. */
+  public void schedule(int index, long time) {
+    int position = getPosition(index);
+    if (position == -1) {
+      if (size == heap.length) {
+        heap = Arrays.copyOf(heap, size * 2);
+        times = Arrays.copyOf(times, size * 2);
+      }
+      ensurePositionCapacity(index);
+      position = size++;
+      heap[position] = index;
+      positions[index] = position;
+      times[position] = time;
+      siftUp(position);
+    } else {
+      long previous = times[position];
+      times[position] = time;
+      if (time < previous) {
+        siftUp(position);
+      } else {
+        siftDown(position);
+      }
+    }
+  }
+
+  /** Remove given index from the schedule. */
+  public void remove(int index) {
+    int position = getPosition(index);
+    if (position == -1) {
+      return;
+    }
+    positions[index] = -1;
+    size--;
+    if (position != size) {
+      long time = times[position];
+      move(size, position);
+      if (times[position] < time) {
+        siftUp(position);
+      } else {
+        siftDown(position);
+      }
+    }
+  }
+
+  /** Whether any index is scheduled. */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Time of the first scheduled index.
+   * @throws IllegalStateException if the schedule is empty.
+   */
+  public long peekTime() {
+    if (size == 0) {
+      throw new IllegalStateException("Schedule is empty");
+    }
+    return times[0];
+  }
+
+  /**
+   * Remove the first scheduled index if it is scheduled before given time.
+   * @return removed index or -1 if no index was scheduled before given time.
+   */
+  public int pollBefore(long time) {
+    if (size == 0 || times[0] >= time) {
+      return -1;
+    }
+    int index = heap[0];
+    remove(index);
+    return index;
+  }
+
+  /** Whether given index is scheduled. */
+  public boolean contains(int index) {
+    return getPosition(index) != -1;
+  }
+
+  /**
+   * Scheduled time of given index.
+   * @return time or {@code defaultValue} if the index is not scheduled.
+   */
+  public long get(int index, long defaultValue) {
+    int position = getPosition(index);
+    return position != -1 ? times[position] : defaultValue;
+  }
+
+  /** All scheduled indices in no particular order. */
+  public IntStream indices() {
+    return Arrays.stream(heap, 0, size);
+  }
+
+  /** All scheduled times in no particular order. */
+  public LongStream times() {
+    return Arrays.stream(times, 0, size);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  private int getPosition(int index) {
+    return index >= 0 && index < positions.length ? positions[index] : -1;
+  }
+
+  private void siftUp(int position) {
+    int index = heap[position];
+    long time = times[position];
+    while (position > 0) {
+      int parent = (position - 1) >>> 1;
+      if (times[parent] <= time) {
+        break;
+      }
+      move(parent, position);
+      position = parent;
+    }
+    set(position, index, time);
+  }
+
+  private void siftDown(int position) {
+    int index = heap[position];
+    long time = times[position];
+    int half = size >>> 1;
+    while (position < half) {
+      int child = 2 * position + 1;
+      int right = child + 1;
+      if (right < size && times[right] < times[child]) {
+        child = right;
+      }
+      if (time <= times[child]) {
+        break;
+      }
+      move(child, position);
+      position = child;
+    }
+    set(position, index, time);
+  }
+
+  /** Move the entry at heap position {@code from} to heap position {@code to}. */
+  private void move(int from, int to) {
+    set(to, heap[from], times[from]);
+  }
+
+  private void set(int position, int index, long time) {
+    heap[position] = index;
+    times[position] = time;
+    positions[index] = position;
+  }
+
+  private void ensurePositionCapacity(int index) {
+    if (index >= positions.length) {
+      int oldLength = positions.length;
+      positions = Arrays.copyOf(positions, Math.max(index + 1, oldLength * 2));
+      Arrays.fill(positions, oldLength, positions.length, -1);
+    }
+  }
+
+  private static int[] newPositions(int capacity) {
+    int[] positions = new int[capacity];
+    Arrays.fill(positions, -1);
+    return positions;
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.fitbit.util;
+
+import java.time.LocalTime;
+
+/**
+ * Parser for the {@code HH:mm:ss} and {@code HH:mm} times of day in Fitbit intraday datasets.
+ * Times are parsed directly from characters into milliseconds of the day, without creating
+ * intermediate strings or {@link LocalTime} objects.
+ */
+public final class TimeOfDayParser {
+  private TimeOfDayParser() {
+    // utility class
+  }
+
+  /**
+   * Parse a time of day.
+   * @param text characters containing the time.
+   * @param offset offset of the time in {@code text}.
+   * @param length length of the time.
+   * @return milliseconds of the day or -1 if the time is not formatted as {@code HH:mm:ss} or
+   *         {@code HH:mm}, or does not represent a valid time.
+   */
+  public static int parseMillisOfDay(char[] text, int offset, int length) {
+    if (length != 5 && length != 8) {
+      return -1;
+    }
+    int hours = parseTwoDigits(text, offset);
+    int minutes = parseTwoDigits(text, offset + 3);
+    int seconds = length == 8 ? parseTwoDigits(text, offset + 6) : 0;
+    if (text[offset + 2] != ':' || (length == 8 && text[offset + 5] != ':')
+        || hours < 0 || hours > 23 || minutes < 0 || minutes > 59
+        || seconds < 0 || seconds > 59) {
+      return -1;
+    }
+    return ((hours * 60 + minutes) * 60 + seconds) * 1000;
+  }
+
+  /**
+   * Parse a time of day in any format accepted by {@link LocalTime#parse(CharSequence)}. Only
+   * formats other than {@code HH:mm:ss} and {@code HH:mm} are parsed with LocalTime.
+   * @return milliseconds of the day.
+   * @throws java.time.format.DateTimeParseException if the time cannot be parsed.
+   */
+  public static int parseMillisOfDay(String text) {
+    char[] chars = text.toCharArray();
+    int millis = parseMillisOfDay(chars, 0, chars.length);
+    if (millis == -1) {
+      millis = (int) (LocalTime.parse(text).toNanoOfDay() / 1_000_000L);
+    }
+    return millis;
+  }
+
+  private static int parseTwoDigits(char[] text, int offset) {
+    int tens = text[offset] - '0';
+    int units = text[offset + 1] - '0';
+    if (tens < 0 || tens > 9 || units < 0 || units > 9) {
+      return -1;
+    }
+    return tens * 10 + units;
+  }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.fitbit.util;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * Compact per-user state, shared by all routes of a task. User IDs are interned to dense int
+ * indices, so that state of a user can be kept in primitive arrays instead of maps of boxed
+ * values, and state derived from a user version can be computed once and reused.
+ *
+ * <p>The index of a user does not change with its version, so the number of indices is bounded
+ * by the number of users. Instead, the store keeps the current version of each user, and clears
+ * the versioned columns of a user when its version changes. Indices are never reused; a user
+ * that is removed keeps its index, so that it keeps its state if it is added again. This class
+ * is thread-safe.
+ */
+public class UserStateStore {
+  private static final int INITIAL_CAPACITY = 64;
+
+  private final ConcurrentMap<String, Integer> indices = new ConcurrentHashMap<>();
+  private final AtomicInteger nextIndex = new AtomicInteger();
+  /** Current version by user index. Access is guarded by this store. */
+  private String[] versions = new String[INITIAL_CAPACITY];
+  private final List<Column> versionedColumns = new CopyOnWriteArrayList<>();
+
+  /** Index of given key, assigning a new index if the key was not known. */
+  public int intern(String key) {
+    Integer index = indices.get(key);
+    if (index == null) {
+      index = indices.computeIfAbsent(key, k -> nextIndex.getAndIncrement());
+    }
+    return index;
+  }
+
+  /**
+   * Index of given user ID, registering given version as its current version. If the user had
+   * another version, the values of that user in all versioned columns are cleared.
+   */
+  public synchronized int intern(String id, String version) {
+    int index = intern(id);
+    if (index >= versions.length) {
+      versions = Arrays.copyOf(versions, Math.max(index + 1, versions.length * 2));
+    }
+    if (!Objects.equals(versions[index], version)) {
+      versions[index] = version;
+      versionedColumns.forEach(c -> c.clear(index));
+    }
+    return index;
+  }
+
+  /** Index of given key, or -1 if the key was not interned. */
+  public int indexOf(String key) {
+    Integer index = indices.get(key);
+    return index != null ? index : -1;
+  }
+
+  /**
+   * Index of given user ID, or -1 if it was not interned or if given version is not its current
+   * version.
+   */
+  public synchronized int indexOf(String id, String version) {
+    int index = indexOf(id);
+    return index != -1 && Objects.equals(versionOf(index), version) ? index : -1;
+  }
+
+  /**
+   * Run given action with the index of given user version, if it is the current version. The
+   * version does not change while the action runs.
+   */
+  public synchronized void forVersion(String id, String version, IntConsumer action) {
+    int index = indexOf(id, version);
+    if (index != -1) {
+      action.accept(index);
+    }
+  }
+
+  /**
+   * Compute a value with the index of given user version, or with -1 if it is not the current
+   * version. The version does not change while the value is computed.
+   */
+  public synchronized <T> T computeForVersion(String id, String version,
+      IntFunction<? extends T> compute) {
+    return compute.apply(indexOf(id, version));
+  }
+
+  private String versionOf(int index) {
+    return index < versions.length ? versions[index] : null;
+  }
+
+  /** Number of interned keys. */
+  public int size() {
+    return nextIndex.get();
+  }
+
+  /** Create a new column of times, with a value per index of this store. */
+  public TimeColumn newTimeColumn() {
+    return new TimeColumn();
+  }
+
+  /**
+   * Create a new column of times that belong to the current version of a user, with a value per
+   * index of this store.
+   */
+  public TimeColumn newVersionedTimeColumn() {
+    TimeColumn column = new TimeColumn();
+    versionedColumns.add(column);
+    return column;
+  }
+
+  /**
+   * Create a new column of values that are derived from the current version of a user, with a
+   * value per index of this store.
+   */
+  public <T> ValueColumn<T> newValueColumn() {
+    ValueColumn<T> column = new ValueColumn<>();
+    versionedColumns.add(column);
+    return column;
+  }
+
+  /** Column of values by user index. */
+  private interface Column {
+    /** Remove the value with given index. */
+    void clear(int index);
+  }
+
+  /**
+   * Times in epoch milliseconds, by user index. Absent values are stored as
+   * {@link Long#MIN_VALUE}. Setting a time with index -1 has no effect. This class is
+   * thread-safe.
+   */
+  public static final class TimeColumn implements Column {
+    private static final long ABSENT = Long.MIN_VALUE;
+
+    private long[] values = newValues(INITIAL_CAPACITY);
+
+    private TimeColumn() {
+      // created by the store
+    }
+
+    /** Time with given index, or {@code defaultValue} if it is not set. */
+    public synchronized long get(int index, long defaultValue) {
+      long value = index >= 0 && index < values.length ? values[index] : ABSENT;
+      return value != ABSENT ? value : defaultValue;
+    }
+
+    /** Set the time with given index. */
+    public synchronized void set(int index, long value) {
+      if (index < 0) {
+        return;
+      }
+      ensureCapacity(index);
+      values[index] = value;
+    }
+
+    /** Set the time with given index if it is later than the current time. */
+    public synchronized void max(int index, long value) {
+      if (index < 0) {
+        return;
+      }
+      ensureCapacity(index);
+      if (value > values[index]) {
+        values[index] = value;
+      }
+    }
+
+    @Override
+    public synchronized void clear(int index) {
+      if (index < values.length) {
+        values[index] = ABSENT;
+      }
+    }
+
+    private void ensureCapacity(int index) {
+      if (index >= values.length) {
+        int oldLength = values.length;
+        values = Arrays.copyOf(values, Math.max(index + 1, oldLength * 2));
+        Arrays.fill(values, oldLength, values.length, ABSENT);
+      }
+    }
+
+    private static long[] newValues(int capacity) {
+      long[] values = new long[capacity];
+      Arrays.fill(values, ABSENT);
+      return values;
+    }
+  }
+
+  /**
+   * Values by user index, for state that is derived from a user version and should only be
+   * computed once. This class is thread-safe.
+   *
+   * @param <T> value type.
+   */
+  public static final class ValueColumn<T> implements Column {
+    private Object[] values = new Object[INITIAL_CAPACITY];
+
+    private ValueColumn() {
+      // created by the store
+    }
+
+    /**
+     * Value with given index, computing it with given function if it is not set. With index -1,
+     * the value is computed but not stored.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized T computeIfAbsent(int index, IntFunction<? extends T> compute) {
+      if (index < 0) {
+        return compute.apply(index);
+      }
+      if (index >= values.length) {
+        values = Arrays.copyOf(values, Math.max(index + 1, values.length * 2));
+      }
+      T value = (T) values[index];
+      if (value == null) {
+        value = compute.apply(index);
+        values[index] = value;
+      }
+      return value;
+    }
+
+    @Override
+    public synchronized void clear(int index) {
+      if (index < values.length) {
+        values[index] = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.fitbit.util;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.radarbase.connect.rest.fitbit.user.User;
+
+/**
+ * Assigns users to tasks with rendezvous hashing with bounded loads. Every user ranks all tasks
+ * by a hash of its ID and the task number, and is assigned to the first task in its ranking that
+ * still has capacity. Since the ranking of a user does not depend on other users or on the
+ * number of tasks, adding or removing a task only moves the users that rank it first, and users
+ * that overflowed to or from it.
+ *
+ * <p>The capacity of each task is a fixed factor above the average weight per task, so heavy
+ * users are spread evenly. Users are placed from heavy to light, so the assignment does not depend
+ * on the order of the given users.
+ */
+public class UserTaskAssignor {
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+  private final ToDoubleFunction<? super User> weight;
+  private final double loadFactor;
+
+  /**
+   * Assignor.
+   * @param weight estimated cost of polling a user. It must be positive.
+   * @param loadFactor maximum ratio of the weight of a task to the average weight of a task.
+   *                   It must be at least one.
+   */
+  public UserTaskAssignor(ToDoubleFunction<? super User> weight, double loadFactor) {
+    if (loadFactor < 1) {
+      throw new IllegalArgumentException("Load factor must be at least 1");
+    }
+    this.weight = weight;
+    this.loadFactor = loadFactor;
+  }
+
+  /** Weight that gives all users the same cost. */
+  public static double uniformWeight(User user) {
+    return 1.0;
+  }
+
+  /**
+   * Weight that estimates the cost of a user by the number of days of data that it may have,
+   * between its start date and its end date or now. The weight grows logarithmically, since the
+   * history of a user is only fetched once, while it keeps being polled for new data.
+   * @param now current time.
+   * @return weight function.
+   */
+  public static ToDoubleFunction<User> historyWeight(Instant now) {
+    return user -> {
+      Instant start = user.getStartDate();
+      Instant end = user.getEndDate();
+      if (start == null) {
+        return 1.0;
+      }
+      if (end == null || end.isAfter(now)) {
+        end = now;
+      }
+      long days = Math.max(0L, Duration.between(start, end).toDays());
+      return 1.0 + Math.log1p(days);
+    };
+  }
+
+  /**
+   * Assign users to tasks.
+   * @param users users to assign.
+   * @param numTasks number of tasks.
+   * @return users of each task, by task number. Tasks without users have an empty list.
+   */
+  public List<List<User>> assign(Collection<? extends User> users, int numTasks) {
+    if (numTasks <= 0) {
+      throw new IllegalArgumentException("Number of tasks must be positive");
+    }
+    List<WeightedUser> weightedUsers = users.stream()
+        .map(u -> new WeightedUser(u, weight.applyAsDouble(u)))
+        .sorted(Comparator.comparingDouble((WeightedUser u) -> u.weight).reversed()
+            .thenComparing(u -> u.id))
+        .collect(Collectors.toList());
+
+    double totalWeight = weightedUsers.stream().mapToDouble(u -> u.weight).sum();
+    double maxWeight = weightedUsers.isEmpty() ? 0 : weightedUsers.get(0).weight;
+    double capacity = Math.max(loadFactor * totalWeight / numTasks, maxWeight);
+
+    List<List<User>> assignment = IntStream.range(0, numTasks)
+        .mapToObj(i -> new ArrayList<User>())
+        .collect(Collectors.toList());
+    double[] loads = new double[numTasks];
+    long[] scores = new long[numTasks];
+
+    for (WeightedUser user : weightedUsers) {
+      long userHash = hash(user.id);
+      for (int task = 0; task < numTasks; task++) {
+        scores[task] = score(userHash, task);
+      }
+      int task = selectTask(scores, loads, user.weight, capacity);
+      loads[task] += user.weight;
+      assignment.get(task).add(user.user);
+    }
+    return assignment;
+  }
+
+  /**
+   * Task that ranks highest for given user, regardless of the load of tasks. Unlike
+   * {@link #assign(Collection, int)}, this does not need to know the other users, so tasks can
+   * determine independently which users they own. A change in the number of tasks only moves
+   * users to or from the added or removed tasks.
+   * @param user user to assign.
+   * @param numTasks number of tasks.
+   * @return task number.
+   */
+  public static int firstChoice(User user, int numTasks) {
+    long userHash = hash(user.getId());
+    int best = 0;
+    long bestScore = score(userHash, 0);
+    for (int task = 1; task < numTasks; task++) {
+      long taskScore = score(userHash, task);
+      if (Long.compareUnsigned(taskScore, bestScore) > 0) {
+        best = task;
+        bestScore = taskScore;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Highest scoring task that can still fit given weight. If none can, the least loaded task.
+   */
+  private static int selectTask(long[] scores, double[] loads, double weight, double capacity) {
+    int best = -1;
+    int leastLoaded = 0;
+    for (int task = 0; task < scores.length; task++) {
+      if (loads[task] < loads[leastLoaded]) {
+        leastLoaded = task;
+      }
+      if (loads[task] + weight <= capacity
+          && (best == -1 || Long.compareUnsigned(scores[task], scores[best]) > 0)) {
+        best = task;
+      }
+    }
+    return best != -1 ? best : leastLoaded;
+  }
+
+  private static long score(long userHash, int task) {
+    return mix(userHash ^ (task + 1) * GOLDEN_GAMMA);
+  }
+
+  /** 64-bit FNV-1a hash, which unlike String.hashCode is stable and well distributed. */
+  private static long hash(String value) {
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = 0; i < value.length(); i++) {
+      hash ^= value.charAt(i);
+      hash *= FNV_PRIME;
+    }
+    return hash;
+  }
+
+  /** Finalization step of MurmurHash3, to spread the bits of combined hashes. */
+  private static long mix(long value) {
+    long h = value;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb93e2fe53e53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private static final class WeightedUser {
+    private final User user;
+    private final String id;
+    private final double weight;
+
+    private WeightedUser(User user, double weight) {
+      this.user = user;
+      this.id = user.getId();
+      this.weight = weight;
+    }
+  }
+}
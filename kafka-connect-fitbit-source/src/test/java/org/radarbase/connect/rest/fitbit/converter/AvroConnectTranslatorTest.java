@@ -0,0 +1,136 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.fitbit.converter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.confluent.connect.avro.AvroData;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.kafka.connect.data.Struct;
+import org.junit.jupiter.api.Test;
+import org.radarcns.connector.fitbit.FitbitActivityHeartRate;
+import org.radarcns.connector.fitbit.FitbitActivityLevels;
+import org.radarcns.connector.fitbit.FitbitActivityLogRecord;
+import org.radarcns.connector.fitbit.FitbitIntradayHeartRate;
+import org.radarcns.connector.fitbit.FitbitManualDataEntry;
+import org.radarcns.connector.fitbit.FitbitSleepStage;
+import org.radarcns.connector.fitbit.FitbitSleepStageLevel;
+import org.radarcns.connector.fitbit.FitbitSource;
+
+class AvroConnectTranslatorTest {
+  private final AvroData avroData = new AvroData(20);
+  private final AvroConnectTranslator translator = new AvroConnectTranslator(avroData);
+
+  @Test
+  void translatesPrimitiveRecord() {
+    assertTranslated(new FitbitIntradayHeartRate(1.5e9, 1.6e9, 1, 60));
+  }
+
+  @Test
+  void translatesEnum() {
+    assertTranslated(new FitbitSleepStage("2020-01-01T00:00:00", 1.6e9, 30,
+        FitbitSleepStageLevel.REM));
+  }
+
+  @Test
+  void translatesNestedRecords() {
+    FitbitActivityLogRecord.Builder builder = FitbitActivityLogRecord.newBuilder()
+        .setTime(1.5e9)
+        .setTimeReceived(1.6e9)
+        .setTimeLastModified(1.55e9)
+        .setId(1L)
+        .setLogType("auto_detected")
+        .setType(null)
+        .setSpeed(null)
+        .setDistance(1.5f)
+        .setSteps(200)
+        .setEnergy(null)
+        .setDuration(60f)
+        .setDurationActive(50f)
+        .setTimeZoneOffset(3600)
+        .setName("Walk")
+        .setManualDataEntry(FitbitManualDataEntry.newBuilder()
+            .setSteps(false)
+            .setDistance(false)
+            .setEnergy(true)
+            .build())
+        .setLevels(null);
+
+    assertTranslated(builder
+        .setHeartRate(null)
+        .setSource(null)
+        .build());
+
+    assertTranslated(builder
+        .setHeartRate(FitbitActivityHeartRate.newBuilder()
+            .setMean(80)
+            .setMin(60)
+            .setMax(120)
+            .setMinFatBurn(null)
+            .setMinCardio(null)
+            .setMinPeak(null)
+            .setDurationOutOfRange(10)
+            .setDurationFatBurn(null)
+            .setDurationCardio(null)
+            .setDurationPeak(null)
+            .build())
+        .setLevels(FitbitActivityLevels.newBuilder()
+            .setDurationSedentary(60)
+            .setDurationLightly(null)
+            .setDurationFairly(null)
+            .setDurationVery(null)
+            .build())
+        .setSource(FitbitSource.newBuilder()
+            .setId("1")
+            .setName("Fitbit")
+            .setType("tracker")
+            .setUrl(null)
+            .build())
+        .build());
+  }
+
+  @Test
+  void translatesLogicalTypes() {
+    Schema schema = new Schema.Parser().parse("{\"type\":\"record\",\"name\":\"Logical\","
+        + "\"namespace\":\"org.radarbase.test\",\"fields\":["
+        + "{\"name\":\"date\",\"type\":{\"type\":\"int\",\"logicalType\":\"date\"}},"
+        + "{\"name\":\"time\",\"type\":{\"type\":\"int\","
+        + "\"logicalType\":\"time-millis\"}},"
+        + "{\"name\":\"timestamp\",\"type\":[\"null\",{\"type\":\"long\","
+        + "\"logicalType\":\"timestamp-millis\"}]},"
+        + "{\"name\":\"short\",\"type\":{\"type\":\"int\",\"connect.type\":\"int16\"}},"
+        + "{\"name\":\"plain\",\"type\":\"long\"}]}");
+    GenericData.Record record = new GenericData.Record(schema);
+    record.put("date", 18383);
+    record.put("time", 3_600_000);
+    record.put("timestamp", 1_588_291_200_000L);
+    record.put("short", 12);
+    record.put("plain", 5L);
+
+    assertTranslated(record);
+    Struct struct = (Struct) translator.toConnectData(record).value();
+    assertEquals((short) 12, struct.get("short"));
+  }
+
+  private void assertTranslated(IndexedRecord record) {
+    assertEquals(avroData.toConnectData(record.getSchema(), record),
+        translator.toConnectData(record));
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.fitbit.converter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.radarbase.connect.rest.converter.PayloadToSourceRecordConverter.TIMESTAMP_OFFSET_KEY;
+
+import io.confluent.connect.avro.AvroData;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Scanner;
+import java.util.stream.Collectors;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.kafka.connect.data.SchemaAndValue;
+import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.junit.jupiter.api.Test;
+import org.radarbase.connect.rest.RestSourceConnectorConfig;
+import org.radarbase.connect.rest.fitbit.request.FitbitRestRequest;
+import org.radarbase.connect.rest.fitbit.user.LocalUser;
+import org.radarbase.connect.rest.fitbit.util.DateRange;
+import org.radarcns.connector.fitbit.FitbitIntradaySteps;
+
+class FitbitIntradayAvroConverterTest {
+  private static final MediaType JSON = MediaType.parse("application/json");
+  private static final ZonedDateTime DAY = ZonedDateTime.of(
+      2020, 5, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+  private static final long DAY_MILLIS = DAY.toInstant().toEpochMilli();
+
+  private final StepsConverter converter = new StepsConverter();
+
+  @Test
+  void convertsRecordedResponse() throws IOException {
+    List<SourceRecord> records = convert(
+        new DateRange(DAY, DAY.plusDays(1).minusNanos(1)), fixture("intraday-steps.json"));
+
+    // the sample with an unparseable time is skipped
+    assertEquals(4, records.size());
+    assertOffsets(records, DAY_MILLIS, DAY_MILLIS + 60_000L, DAY_MILLIS + 180_000L,
+        DAY_MILLIS + 86_340_000L);
+    assertEquals(Collections.nCopies(4, "test_steps"), records.stream()
+        .map(SourceRecord::topic)
+        .collect(Collectors.toList()));
+
+    Struct steps = (Struct) records.get(1).value();
+    assertEquals(12, steps.get("steps"));
+    assertEquals(60, steps.get("timeInterval"));
+    assertEquals((DAY_MILLIS + 60_000L) / 1000d, steps.get("time"));
+  }
+
+  @Test
+  void usesIntervalBeforeDataset() throws IOException {
+    List<SourceRecord> records = convert(new DateRange(DAY, DAY.plusHours(1)),
+        "{\"activities-steps-intraday\":{\"datasetInterval\":15,\"unknown\":{\"a\":[1]},"
+            + "\"datasetType\":\"minute\",\"dataset\":["
+            + "{\"time\":\"00:00\",\"value\":5},{\"time\":\"00:15:00\",\"value\":6}]}}");
+
+    assertOffsets(records, DAY_MILLIS, DAY_MILLIS + 900_000L);
+    assertEquals(900, ((Struct) records.get(0).value()).get("timeInterval"));
+  }
+
+  @Test
+  void splitsMultiDayDatasetIntoDays() throws IOException {
+    List<SourceRecord> records = convert(new DateRange(DAY, DAY.plusDays(3).minusNanos(1)),
+        intraday("08:00", "20:00", "07:00", "21:00", "06:00"));
+
+    long day = 86_400_000L;
+    long hour = 3_600_000L;
+    assertOffsets(records, DAY_MILLIS + 8 * hour, DAY_MILLIS + 20 * hour,
+        DAY_MILLIS + day + 7 * hour, DAY_MILLIS + day + 21 * hour,
+        DAY_MILLIS + 2 * day + 6 * hour);
+  }
+
+  @Test
+  void failsOnMultiDayDatasetWithoutDayBoundary() {
+    // the second day starts after the first day ends, so the days cannot be told apart
+    assertThrows(IOException.class, () -> convert(
+        new DateRange(DAY, DAY.plusDays(2).minusNanos(1)),
+        intraday("09:00", "10:00", "11:00", "12:00")));
+  }
+
+  /** Intraday steps response with one sample for each of given times. */
+  private static String intraday(String... times) {
+    return Arrays.stream(times)
+        .map(t -> "{\"time\":\"" + t + ":00\",\"value\":1}")
+        .collect(Collectors.joining(",",
+            "{\"activities-steps-intraday\":{\"dataset\":[", "]}}"));
+  }
+
+  private List<SourceRecord> convert(DateRange dateRange, String body) throws IOException {
+    LocalUser user = new LocalUser();
+    user.setId("test");
+    Request httpRequest = new Request.Builder()
+        .url("https://api.fitbit.com/test")
+        .build();
+    FitbitRestRequest request = new FitbitRestRequest(null, httpRequest, user,
+        Collections.singletonMap("user", "test"), SchemaAndValue.NULL, null, dateRange, null);
+    Response response = new Response.Builder()
+        .request(httpRequest)
+        .protocol(Protocol.HTTP_1_1)
+        .code(200)
+        .message("OK")
+        .body(ResponseBody.create(JSON, body))
+        .build();
+    return new ArrayList<>(converter.convert(request, response));
+  }
+
+  private static void assertOffsets(List<SourceRecord> records, Long... offsets) {
+    List<Object> actual = records.stream()
+        .map(r -> r.sourceOffset().get(TIMESTAMP_OFFSET_KEY))
+        .collect(Collectors.toList());
+    assertEquals(Arrays.asList(offsets), actual);
+  }
+
+  private static String fixture(String name) throws IOException {
+    try (InputStream stream = FitbitIntradayAvroConverterTest.class
+        .getResourceAsStream("/fixtures/" + name)) {
+      Scanner scanner = new Scanner(stream, "UTF-8").useDelimiter("\\A");
+      return scanner.next();
+    }
+  }
+
+  /** Intraday steps converter with a fixed topic. */
+  private static class StepsConverter extends FitbitIntradayAvroConverter {
+    StepsConverter() {
+      super(new AvroData(20), "activities-steps-intraday", 60);
+    }
+
+    @Override
+    public void initialize(RestSourceConnectorConfig config) {
+      // topic is fixed
+    }
+
+    @Override
+    protected ZonedDateTime getStartDate(FitbitRestRequest request) {
+      return request.getDateRange().end();
+    }
+
+    @Override
+    protected String getTopic() {
+      return "test_steps";
+    }
+
+    @Override
+    protected IndexedRecord createRecord(
+        double time, double timeReceived, int interval, IntradaySample sample) {
+      return new FitbitIntradaySteps(time, timeReceived, interval, (int) sample.getValue());
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.fitbit.request;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.radarbase.connect.rest.fitbit.request.FitbitRateLimiter.RATE_LIMIT_REMAINING_HEADER;
+import static org.radarbase.connect.rest.fitbit.request.FitbitRateLimiter.RATE_LIMIT_RESET_HEADER;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.junit.jupiter.api.Test;
+import org.radarbase.connect.rest.fitbit.user.LocalUser;
+import org.radarbase.connect.rest.fitbit.user.User;
+
+class FitbitRateLimiterTest {
+  private final FitbitRateLimiter rateLimiter = new FitbitRateLimiter(2);
+  private final LocalUser user = newUser();
+
+  @Test
+  void consumesBudgetForSentRequests() throws IOException {
+    WireMockServer server = new WireMockServer(options().dynamicPort());
+    server.start();
+    try {
+      server.stubFor(get(urlEqualTo("/data")).willReturn(aResponse()
+          .withStatus(200)
+          .withHeader(RATE_LIMIT_REMAINING_HEADER, "10")
+          .withHeader(RATE_LIMIT_RESET_HEADER, "3600")
+          .withBody("{}")));
+
+      OkHttpClient client = new OkHttpClient.Builder()
+          .addNetworkInterceptor(rateLimiter)
+          .build();
+      Request request = new Request.Builder()
+          .url(server.baseUrl() + "/data")
+          .tag(User.class, user)
+          .build();
+
+      assertEquals(Integer.MAX_VALUE, rateLimiter.getRouteShare(user));
+      for (int i = 0; i < 3; i++) {
+        client.newCall(request).execute().close();
+      }
+      // the first response sets the budget, the other two requests consume from it
+      assertEquals(4, rateLimiter.getRouteShare(user));
+    } finally {
+      server.stop();
+    }
+  }
+
+  @Test
+  void ignoresOutdatedResponses() {
+    rateLimiter.update(user.getId(), response(200, "10", "3600"));
+    rateLimiter.update(user.getId(), response(200, "20", "3590"));
+    assertEquals(5, rateLimiter.getRouteShare(user));
+
+    rateLimiter.update(user.getId(), response(200, "4", "3580"));
+    assertEquals(2, rateLimiter.getRouteShare(user));
+  }
+
+  @Test
+  void startsNewWindow() {
+    rateLimiter.update(user.getId(), response(200, "0", "60"));
+    assertEquals(0, rateLimiter.getRouteShare(user));
+
+    rateLimiter.update(user.getId(), response(200, "150", "3660"));
+    assertEquals(75, rateLimiter.getRouteShare(user));
+  }
+
+  @Test
+  void exhaustsBudgetOnTooManyRequests() {
+    assertNull(rateLimiter.getReset(user));
+    rateLimiter.update(user.getId(), response(200, "10", "3600"));
+    rateLimiter.update(user.getId(), response(429, null, "1800"));
+
+    assertEquals(0, rateLimiter.getRouteShare(user));
+    Instant reset = rateLimiter.getReset(user);
+    assertTrue(reset.isAfter(Instant.now().plus(Duration.ofMinutes(59))),
+        "Reset " + reset + " should not move back");
+  }
+
+  private static Response response(int code, String remaining, String reset) {
+    Response.Builder builder = new Response.Builder()
+        .request(new Request.Builder().url("https://api.fitbit.com/test").build())
+        .protocol(Protocol.HTTP_1_1)
+        .code(code)
+        .message("test")
+        .header(RATE_LIMIT_RESET_HEADER, reset);
+    if (remaining != null) {
+      builder.header(RATE_LIMIT_REMAINING_HEADER, remaining);
+    }
+    return builder.build();
+  }
+
+  private static LocalUser newUser() {
+    LocalUser user = new LocalUser();
+    user.setId("a");
+    return user;
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.fitbit.route;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.radarbase.connect.rest.converter.PayloadToSourceRecordConverter.TIMESTAMP_OFFSET_KEY;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.radarbase.connect.rest.fitbit.FitbitRestSourceConnectorConfig;
+import org.radarbase.connect.rest.fitbit.request.FitbitRequestGenerator;
+import org.radarbase.connect.rest.fitbit.request.FitbitRestRequest;
+import org.radarbase.connect.rest.fitbit.simulator.FitbitApiSimulator;
+import org.radarbase.connect.rest.fitbit.user.User;
+import org.radarbase.connect.rest.fitbit.user.UserRepository;
+import org.radarbase.connect.rest.fitbit.user.YamlUserRepository;
+import org.radarbase.connect.rest.fitbit.util.DateRange;
+
+class FitbitIntradayRangeRouteTest {
+  private static final ZonedDateTime START = ZonedDateTime.of(
+      2017, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+
+  private FitbitIntradayRangeRoute route;
+  private User user;
+
+  @BeforeEach
+  void setUp(@TempDir Path userDirectory) throws IOException {
+    FitbitApiSimulator.writeUsers(userDirectory, 1, START.toInstant());
+    Map<String, String> props = new HashMap<>();
+    props.put("rest.source.base.url", "https://api.fitbit.com");
+    props.put("rest.source.destination.topics", "connect_fitbit");
+    props.put("rest.source.request.generator.class", FitbitRequestGenerator.class.getName());
+    props.put("fitbit.api.client", "test");
+    props.put("fitbit.api.secret", "test");
+    props.put("fitbit.api.intraday", "true");
+    props.put("fitbit.user.repository.class", YamlUserRepository.class.getName());
+    props.put("fitbit.user.dir", userDirectory.toString());
+    props.put("fitbit.intraday.backfill.max.days", "3");
+    FitbitRestSourceConnectorConfig config = new FitbitRestSourceConnectorConfig(props, false);
+    UserRepository repository = config.getUserRepository(null);
+    FitbitRequestGenerator generator = (FitbitRequestGenerator) config.getRequestGenerator();
+    route = generator.routes()
+        .filter(FitbitIntradayStepsRoute.class::isInstance)
+        .map(FitbitIntradayRangeRoute.class::cast)
+        .findAny()
+        .orElseThrow(IllegalStateException::new);
+    route.startPoll();
+    user = repository.stream().findAny().orElseThrow(IllegalStateException::new);
+  }
+
+  @Test
+  void mergesFullDays() {
+    // nothing is requested after a multi-day range in the same poll
+    assertEquals(Collections.singletonList(days(0, 2)), firstRanges(2));
+  }
+
+  @Test
+  void requestsDaysOfFailedRangeSeparately() {
+    FitbitRestRequest failed = route.newDateRangeRequest(user, days(1, 3));
+    assertEquals("/1/user/user-0/activities/steps/date/2017-01-02/2017-01-04/1min.json",
+        failed.getRequest().url().encodedPath());
+
+    route.requestFailed(failed, null);
+
+    assertEquals(Arrays.asList(days(0, 0), days(1, 1), days(2, 2), days(3, 3), days(4, 6)),
+        firstRanges(5));
+  }
+
+  @Test
+  void requestsFailedRangeAfterLaterRangesSucceed() {
+    complete(route.newDateRangeRequest(user, days(0, 0)), START.plusHours(12));
+
+    // a partial day and a multi-day range
+    List<FitbitRestRequest> requests = route.createRequests(user).collect(Collectors.toList());
+    assertEquals(Arrays.asList(
+        new DateRange(START.plusHours(12).plusMinutes(1), days(0, 0).end()), days(1, 3)),
+        requests.stream().map(FitbitRestRequest::getDateRange).collect(Collectors.toList()));
+
+    // the multi-day range fails before the other requests of the poll succeed
+    requests.stream()
+        .filter(r -> r.getDateRange().spansMultipleDays())
+        .forEach(r -> route.requestFailed(r, null));
+    requests.stream()
+        .filter(r -> !r.getDateRange().spansMultipleDays())
+        .forEach(r -> complete(r, r.getDateRange().end()));
+
+    assertEquals(Arrays.asList(days(1, 1), days(2, 2), days(3, 3), days(4, 6)), firstRanges(5));
+  }
+
+  /** Report a record at given time for given request. */
+  private void complete(FitbitRestRequest request, ZonedDateTime time) {
+    route.requestSucceeded(request, new SourceRecord(request.getPartition(),
+        Collections.singletonMap(TIMESTAMP_OFFSET_KEY, time.toInstant().toEpochMilli()),
+        "test", null, null));
+  }
+
+  private List<DateRange> firstRanges(int count) {
+    return route.createRequests(user)
+        .limit(count)
+        .map(FitbitRestRequest::getDateRange)
+        .collect(Collectors.toList());
+  }
+
+  /** Range of full days since the start date, inclusive. */
+  private static DateRange days(int first, int last) {
+    return new DateRange(START.plusDays(first), START.plusDays(last + 1).minusNanos(1));
+  }
+}
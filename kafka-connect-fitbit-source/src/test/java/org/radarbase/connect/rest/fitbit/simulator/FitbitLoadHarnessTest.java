@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.radarbase.connect.rest.fitbit.simulator;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FitbitLoadHarnessTest {
+  private FitbitApiSimulator simulator;
+
+  @BeforeEach
+  void setUp() {
+    simulator = new FitbitApiSimulator(8);
+    simulator.start();
+  }
+
+  @AfterEach
+  void tearDown() {
+    simulator.stop();
+  }
+
+  @Test
+  void pollsSimulatedApi(@TempDir Path userDirectory) throws IOException, InterruptedException {
+    FitbitApiSimulator.writeUsers(userDirectory, 5, Instant.now().minus(Duration.ofDays(2)));
+    Map<String, String> props = simulator.connectorProperties(userDirectory);
+    props.put("rest.source.request.concurrency", "4");
+
+    FitbitLoadHarness.LoadReport report = new FitbitLoadHarness(simulator, props)
+        .run(Duration.ofSeconds(5));
+
+    assertTrue(report.getRequests() > 0, "No requests were made");
+    assertTrue(report.getRecords() > 0, "No records were produced");
+  }
+
+  @Test
+  void defersUsersUntilRateLimitReset(@TempDir Path userDirectory)
+      throws IOException, InterruptedException {
+    int numberOfUsers = 3;
+    int rateLimit = 12;
+    simulator.setRateLimit(rateLimit);
+    FitbitApiSimulator.writeUsers(userDirectory, numberOfUsers,
+        Instant.now().minus(Duration.ofDays(30)));
+    Map<String, String> props = simulator.connectorProperties(userDirectory);
+    props.put("rest.source.request.concurrency", "4");
+
+    FitbitLoadHarness.LoadReport report = new FitbitLoadHarness(simulator, props)
+        .run(Duration.ofSeconds(5));
+
+    assertTrue(report.getRecords() > 0, "No records were produced");
+    // once the budget is used up, users are not polled again until the reset an hour later
+    assertTrue(report.getRequests() <= numberOfUsers * (rateLimit + 2),
+        "Too many requests: " + report);
+    assertTrue(simulator.getTooManyRequestsResponses() <= numberOfUsers * 2,
+        "Too many 429 responses: " + report);
+  }
+}
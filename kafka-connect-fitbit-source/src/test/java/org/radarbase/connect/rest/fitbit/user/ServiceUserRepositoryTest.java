@@ -0,0 +1,224 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.fitbit.user;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.absent;
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.radarbase.connect.rest.fitbit.FitbitRestSourceConnectorConfig;
+import org.radarbase.connect.rest.fitbit.FitbitSourceConnector;
+import org.radarbase.connect.rest.fitbit.request.FitbitRequestGenerator;
+
+class ServiceUserRepositoryTest {
+  private static final String[] USER_IDS = {"a", "b", "c"};
+
+  private WireMockServer server;
+  private Map<String, String> props;
+  private UserRepository repository;
+
+  @BeforeEach
+  void setUp() {
+    server = new WireMockServer(options().dynamicPort());
+    server.start();
+
+    server.stubFor(get(urlEqualTo("/users?source-type=FitBit"))
+        .willReturn(aResponse().withBody("{\"users\":" + userList(USER_IDS) + "}")));
+
+    props = new HashMap<>();
+    props.put("connector.class", FitbitSourceConnector.class.getName());
+    props.put("rest.source.base.url", server.baseUrl());
+    props.put("rest.source.destination.topics", "connect_fitbit");
+    props.put("rest.source.request.generator.class", FitbitRequestGenerator.class.getName());
+    props.put(FitbitRestSourceConnectorConfig.FITBIT_API_CLIENT_CONFIG, "test");
+    props.put(FitbitRestSourceConnectorConfig.FITBIT_API_SECRET_CONFIG, "test");
+    props.put(FitbitRestSourceConnectorConfig.FITBIT_USER_REPOSITORY_CONFIG,
+        ServiceUserRepository.class.getName());
+    props.put(FitbitRestSourceConnectorConfig.FITBIT_USER_REPOSITORY_URL_CONFIG,
+        server.baseUrl());
+    repository = new FitbitRestSourceConnectorConfig(props, false).getUserRepository(null);
+  }
+
+  @AfterEach
+  void tearDown() {
+    repository.close();
+    server.stop();
+  }
+
+  @Test
+  void fetchesTokensInBulk() throws Exception {
+    String expiresAt = Instant.now().plus(1, ChronoUnit.HOURS).toString();
+    String tokens = "{\"tokens\":{"
+        + "\"a\":{\"accessToken\":\"token-a\",\"expiresAt\":\"" + expiresAt + "\"},"
+        + "\"b\":{\"accessToken\":\"token-b\",\"expiresAt\":\"" + expiresAt + "\"},"
+        + "\"c\":{\"accessToken\":\"token-c\",\"expiresAt\":\"" + expiresAt + "\"}}}";
+    server.stubFor(get(urlPathEqualTo("/users/tokens"))
+        .willReturn(aResponse().withBody(tokens)));
+
+    List<? extends User> users = repository.stream().collect(Collectors.toList());
+    assertEquals(USER_IDS.length, users.size());
+    for (User user : users) {
+      assertEquals("token-" + user.getId(), repository.getAccessToken(user));
+      // cached
+      assertEquals("token-" + user.getId(), repository.getAccessToken(user));
+    }
+
+    server.verify(1, getRequestedFor(urlPathEqualTo("/users/tokens")));
+    server.verify(0, getRequestedFor(urlMatching("/users/[^/]+/token")));
+  }
+
+  @Test
+  void fetchesTokensWhileDispatcherIsFull() throws Exception {
+    String expiresAt = Instant.now().plus(1, ChronoUnit.HOURS).toString();
+    server.stubFor(get(urlPathEqualTo("/users/tokens"))
+        .willReturn(aResponse().withBody("{\"tokens\":{"
+            + "\"a\":{\"accessToken\":\"token-a\",\"expiresAt\":\"" + expiresAt + "\"}}}")));
+    server.stubFor(get(urlEqualTo("/data")).willReturn(aResponse().withBody("data")));
+
+    // a single dispatcher slot, taken by the call that needs the token
+    props.put("rest.source.http.max.requests", "1");
+    FitbitRestSourceConnectorConfig config = new FitbitRestSourceConnectorConfig(props, false);
+    UserRepository singleRepository = config.getUserRepository(null);
+    try {
+      User user = singleRepository.stream()
+          .filter(u -> u.getId().equals("a"))
+          .findAny()
+          .orElseThrow(IllegalStateException::new);
+      OkHttpClient client = config.getHttpClient().newBuilder()
+          .addInterceptor(chain -> chain.proceed(chain.request().newBuilder()
+              .header("Authorization", "Bearer " + singleRepository.getAccessToken(user))
+              .build()))
+          .build();
+
+      CompletableFuture<String> authorization = new CompletableFuture<>();
+      client.newCall(new Request.Builder().url(server.baseUrl() + "/data").build())
+          .enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException ex) {
+              authorization.completeExceptionally(ex);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+              response.close();
+              authorization.complete(response.request().header("Authorization"));
+            }
+          });
+
+      assertEquals("Bearer token-a", authorization.get(10, TimeUnit.SECONDS));
+    } finally {
+      singleRepository.close();
+    }
+  }
+
+  @Test
+  void mergesUserChanges() throws Exception {
+    server.stubFor(get(urlEqualTo("/users?source-type=FitBit"))
+        .willReturn(aResponse()
+            .withHeader("ETag", "\"v1\"")
+            .withBody("{\"users\":" + userList(USER_IDS) + ",\"timestamp\":\"t1\"}")));
+    server.stubFor(get(urlEqualTo("/users?source-type=FitBit&since=t1"))
+        .withHeader("If-None-Match", absent())
+        .willReturn(aResponse()
+            .withHeader("ETag", "\"v2\"")
+            .withBody("{\"users\":" + userList("d") + ",\"deleted\":[\"a\"]"
+                + ",\"timestamp\":\"t2\"}")));
+    server.stubFor(get(urlEqualTo("/users?source-type=FitBit&since=t2"))
+        .withHeader("If-None-Match", absent())
+        .willReturn(aResponse()
+            .withHeader("ETag", "\"v3\"")
+            .withBody("{\"users\":[],\"timestamp\":\"t2\"}")));
+    server.stubFor(get(urlEqualTo("/users?source-type=FitBit&since=t2"))
+        .withHeader("If-None-Match", containing("v3"))
+        .willReturn(aResponse().withStatus(304)));
+
+    repository.applyPendingUpdates();
+    assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), userIds());
+    repository.applyPendingUpdates();
+    assertEquals(new HashSet<>(Arrays.asList("b", "c", "d")), userIds());
+    // the ETag of another URL is not sent
+    repository.applyPendingUpdates();
+    assertEquals(new HashSet<>(Arrays.asList("b", "c", "d")), userIds());
+    repository.applyPendingUpdates();
+    assertEquals(new HashSet<>(Arrays.asList("b", "c", "d")), userIds());
+
+    server.verify(1, getRequestedFor(urlEqualTo("/users?source-type=FitBit&since=t1")));
+    server.verify(2, getRequestedFor(urlEqualTo("/users?source-type=FitBit&since=t2")));
+    server.verify(1, getRequestedFor(urlEqualTo("/users?source-type=FitBit&since=t2"))
+        .withHeader("If-None-Match", containing("v3")));
+  }
+
+  @Test
+  void fallsBackToSingleTokens() throws Exception {
+    server.stubFor(get(urlPathEqualTo("/users/tokens"))
+        .willReturn(aResponse().withStatus(404)));
+    for (String id : USER_IDS) {
+      server.stubFor(get(urlEqualTo("/users/" + id + "/token"))
+          .willReturn(aResponse().withBody("{\"accessToken\":\"token-" + id + "\"}")));
+    }
+
+    for (User user : repository.stream().collect(Collectors.toList())) {
+      assertEquals("token-" + user.getId(), repository.getAccessToken(user));
+    }
+
+    server.verify(1, getRequestedFor(urlPathEqualTo("/users/tokens")));
+    for (String id : USER_IDS) {
+      server.verify(1, getRequestedFor(urlEqualTo("/users/" + id + "/token")));
+    }
+  }
+
+  private Set<String> userIds() throws IOException {
+    return repository.stream().map(User::getId).collect(Collectors.toSet());
+  }
+
+  private static String userList(String... ids) {
+    return Arrays.stream(ids)
+        .map(id -> "{\"id\":\"" + id + "\",\"projectId\":\"p\",\"userId\":\"u-" + id
+            + "\",\"startDate\":\"2019-01-01T00:00:00Z\""
+            + ",\"endDate\":\"2030-01-01T00:00:00Z\"}")
+        .collect(Collectors.joining(",", "[", "]"));
+  }
+}
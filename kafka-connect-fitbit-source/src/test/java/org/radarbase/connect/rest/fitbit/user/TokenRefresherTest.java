@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.fitbit.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class TokenRefresherTest {
+  @Test
+  void refreshesOnceForConcurrentCallers() throws Exception {
+    AtomicInteger refreshCount = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch joined = new CountDownLatch(3);
+    TokenRefresher refresher = new TokenRefresher(u -> {
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException ex) {
+        throw new IOException(ex);
+      }
+      return "token-" + refreshCount.incrementAndGet();
+    }) {
+      @Override
+      void joined(User user) {
+        joined.countDown();
+      }
+    };
+    LocalUser user = newUser("a");
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<String>> results = new ArrayList<>();
+      results.add(executor.submit(() -> refresher.refresh(user)));
+      started.await();
+      for (int i = 0; i < 3; i++) {
+        results.add(executor.submit(() -> refresher.refresh(user)));
+      }
+      assertTrue(joined.await(5, TimeUnit.SECONDS));
+      release.countDown();
+      for (Future<String> result : results) {
+        assertEquals("token-1", result.get(5, TimeUnit.SECONDS));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(1, refreshCount.get());
+
+    assertEquals("token-2", refresher.refresh(user));
+  }
+
+  @Test
+  void doesNotKeepFailures() throws IOException {
+    AtomicInteger refreshCount = new AtomicInteger();
+    TokenRefresher refresher = new TokenRefresher(u -> {
+      if (refreshCount.incrementAndGet() == 1) {
+        throw new IOException("unavailable");
+      }
+      return "token";
+    });
+    LocalUser user = newUser("a");
+
+    assertThrows(IOException.class, () -> refresher.refresh(user));
+    assertEquals("token", refresher.refresh(user));
+  }
+
+  private static LocalUser newUser(String id) {
+    LocalUser user = new LocalUser();
+    user.setId(id);
+    return user;
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.radarbase.connect.rest.fitbit.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CoalescingFileWriterTest {
+  private CoalescingFileWriter<String> writer;
+  private Path file;
+
+  @BeforeEach
+  void setUp(@TempDir Path directory) {
+    writer = new CoalescingFileWriter<>("test-writer", s -> s.getBytes(UTF_8));
+    file = directory.resolve("user.yml");
+  }
+
+  @AfterEach
+  void tearDown() {
+    writer.close();
+  }
+
+  @Test
+  void writesLatestValue() throws Exception {
+    CompletableFuture<Void> first = writer.write(file, "a");
+    CompletableFuture<Void> second = writer.write(file, "b");
+    first.get(5, TimeUnit.SECONDS);
+    second.get(5, TimeUnit.SECONDS);
+
+    assertEquals("b", new String(Files.readAllBytes(file), UTF_8));
+  }
+
+  @Test
+  void recognizesOwnChanges() throws Exception {
+    writer.write(file, "a").get(5, TimeUnit.SECONDS);
+
+    assertTrue(writer.isOwnChange(file, Files.readAllBytes(file)));
+    // external edit
+    Files.write(file, "c".getBytes(UTF_8));
+    assertFalse(writer.isOwnChange(file, Files.readAllBytes(file)));
+  }
+
+  @Test
+  void recognizesChangesDuringWrite() throws Exception {
+    CountDownLatch serializing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CoalescingFileWriter<String> blockingWriter = new CoalescingFileWriter<>("test-writer", s -> {
+      serializing.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      return s.getBytes(UTF_8);
+    });
+    try {
+      CompletableFuture<Void> stored = blockingWriter.write(file, "a");
+      assertTrue(serializing.await(5, TimeUnit.SECONDS));
+      // an older version of the file is replaced by the write in progress
+      assertTrue(blockingWriter.isOwnChange(file, "old".getBytes(UTF_8)));
+      release.countDown();
+      stored.get(5, TimeUnit.SECONDS);
+      assertFalse(blockingWriter.isOwnChange(file, "old".getBytes(UTF_8)));
+      assertTrue(blockingWriter.isOwnChange(file, "a".getBytes(UTF_8)));
+    } finally {
+      release.countDown();
+      blockingWriter.close();
+    }
+  }
+
+  @Test
+  void rejectsWritesAfterClose() throws Exception {
+    writer.write(file, "a");
+    writer.close();
+    assertEquals("a", new String(Files.readAllBytes(file), UTF_8));
+
+    CompletableFuture<Void> rejected = writer.write(file, "b");
+    ExecutionException ex = assertThrows(ExecutionException.class,
+        () -> rejected.get(5, TimeUnit.SECONDS));
+    assertTrue(ex.getCause() instanceof IllegalStateException);
+    assertEquals("a", new String(Files.readAllBytes(file), UTF_8));
+  }
+
+  @Test
+  void forgetsDeletedFiles() throws Exception {
+    writer.write(file, "a").get(5, TimeUnit.SECONDS);
+    Files.delete(file);
+    writer.forget(file);
+
+    // the same content is written again by someone else
+    Files.write(file, "a".getBytes(UTF_8));
+    assertFalse(writer.isOwnChange(file, Files.readAllBytes(file)));
+  }
+}
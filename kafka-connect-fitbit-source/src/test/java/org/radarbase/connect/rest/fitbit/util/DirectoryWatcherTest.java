@@ -0,0 +1,123 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.radarbase.connect.rest.fitbit.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DirectoryWatcherTest {
+  private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+  private Path root;
+  private DirectoryWatcher watcher;
+
+  @BeforeEach
+  void setUp(@TempDir Path directory) throws IOException {
+    root = directory;
+    watcher = new DirectoryWatcher(root, p -> p.toString().endsWith(".yml"),
+        new DirectoryWatcher.Listener() {
+          @Override
+          public void changed(Path path) {
+            String content;
+            try {
+              content = new String(Files.readAllBytes(path), UTF_8);
+            } catch (IOException ex) {
+              content = ex.toString();
+            }
+            events.add("changed " + root.relativize(path) + ": " + content);
+          }
+
+          @Override
+          public void deleted(Path path) {
+            events.add("deleted " + root.relativize(path));
+          }
+
+          @Override
+          public void overflow() {
+            events.add("overflow");
+          }
+        });
+    watcher.start();
+  }
+
+  @AfterEach
+  void tearDown() {
+    watcher.close();
+  }
+
+  @Test
+  void reportsExternalEdits() throws Exception {
+    Files.write(root.resolve("a.txt"), "a".getBytes(UTF_8));
+    Path file = root.resolve("a.yml");
+    Files.write(file, "a".getBytes(UTF_8));
+    awaitEvent("changed a.yml: a");
+
+    Files.write(file, "b".getBytes(UTF_8));
+    awaitEvent("changed a.yml: b");
+  }
+
+  @Test
+  void reportsDeletes() throws Exception {
+    Path file = root.resolve("a.yml");
+    Files.write(file, "a".getBytes(UTF_8));
+    awaitEvent("changed a.yml: a");
+
+    Files.delete(file);
+    awaitEvent("deleted a.yml");
+  }
+
+  @Test
+  void reportsFilesInNewDirectories() throws Exception {
+    Path directory = Files.createDirectory(root.resolve("sub"));
+    Path file = directory.resolve("b.yml");
+    Files.write(file, "b".getBytes(UTF_8));
+    awaitEvent("changed " + root.relativize(file) + ": b");
+
+    Files.delete(file);
+    awaitEvent("deleted " + root.relativize(file));
+    Files.delete(directory);
+    awaitEvent("deleted sub");
+  }
+
+  /**
+   * Wait for given event. A single write may be reported more than once, so other events of the
+   * same file are skipped, but events of files that should not be reported fail the test.
+   */
+  private void awaitEvent(String expected) throws InterruptedException {
+    String event;
+    do {
+      // file systems without native change notification are polled every few seconds
+      event = events.poll(20, TimeUnit.SECONDS);
+      assertNotNull(event, "Missing event " + expected);
+      assertFalse(event.contains(".txt"), "Unexpected event " + event);
+      assertFalse(event.equals("overflow"), "Unexpected overflow");
+    } while (!event.equals(expected));
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.fitbit.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.jupiter.api.Test;
+
+class PollScheduleTest {
+  @Test
+  void pollsInTimeOrder() {
+    PollSchedule schedule = new PollSchedule();
+    schedule.schedule(0, 30L);
+    schedule.schedule(1, 10L);
+    schedule.schedule(2, 20L);
+    schedule.schedule(0, 5L);
+    schedule.remove(2);
+
+    assertEquals(2, schedule.size());
+    assertEquals(5L, schedule.peekTime());
+    assertEquals(-1, schedule.pollBefore(5L));
+    assertEquals(0, schedule.pollBefore(6L));
+    assertEquals(1, schedule.pollBefore(100L));
+    assertTrue(schedule.isEmpty());
+  }
+
+  @Test
+  void matchesReference() {
+    Random random = new Random(1L);
+    PollSchedule schedule = new PollSchedule();
+    TreeMap<Integer, Long> reference = new TreeMap<>();
+
+    for (int i = 0; i < 10_000; i++) {
+      int index = random.nextInt(500);
+      if (random.nextInt(4) == 0) {
+        schedule.remove(index);
+        reference.remove(index);
+      } else {
+        long time = random.nextInt(1000);
+        schedule.schedule(index, time);
+        reference.put(index, time);
+      }
+      assertEquals(reference.size(), schedule.size());
+    }
+
+    long previous = Long.MIN_VALUE;
+    while (!schedule.isEmpty()) {
+      long time = schedule.peekTime();
+      int index = schedule.pollBefore(Long.MAX_VALUE);
+      assertEquals((long) reference.remove(index), time);
+      assertTrue(time >= previous);
+      previous = time;
+    }
+    assertTrue(reference.isEmpty());
+    assertFalse(schedule.contains(0));
+  }
+}
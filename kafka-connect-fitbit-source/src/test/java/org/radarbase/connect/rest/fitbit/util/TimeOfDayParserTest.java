@@ -0,0 +1,53 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.fitbit.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import org.junit.jupiter.api.Test;
+
+class TimeOfDayParserTest {
+  @Test
+  void parsesFitbitTimes() {
+    for (String time : new String[] {"00:00:00", "00:00", "09:05:01", "12:34", "23:59:59"}) {
+      assertEquals(LocalTime.parse(time).toSecondOfDay() * 1000, parse(time), time);
+    }
+  }
+
+  @Test
+  void rejectsOtherFormats() {
+    for (String time : new String[] {"", "1:00", "24:00", "12:60:00", "12:00:60", "12-00-00",
+        "1a:00:00", "12:00:00.5"}) {
+      assertEquals(-1, parse(time), time);
+    }
+  }
+
+  @Test
+  void parsesOtherFormatsWithLocalTime() {
+    assertEquals(43_200_500, TimeOfDayParser.parseMillisOfDay("12:00:00.5"));
+    assertThrows(DateTimeParseException.class, () -> TimeOfDayParser.parseMillisOfDay("24:00"));
+  }
+
+  private static int parse(String time) {
+    char[] chars = ("  " + time + " ").toCharArray();
+    return TimeOfDayParser.parseMillisOfDay(chars, 2, time.length());
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.fitbit.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+import org.radarbase.connect.rest.fitbit.util.UserStateStore.TimeColumn;
+import org.radarbase.connect.rest.fitbit.util.UserStateStore.ValueColumn;
+
+class UserStateStoreTest {
+  @Test
+  void keepsIndexOverVersions() {
+    UserStateStore store = new UserStateStore();
+    TimeColumn lastPoll = store.newTimeColumn();
+    TimeColumn offsets = store.newVersionedTimeColumn();
+    ValueColumn<String> keys = store.newValueColumn();
+
+    int index = store.intern("a", "1");
+    lastPoll.set(index, 10L);
+    offsets.set(index, 20L);
+    keys.computeIfAbsent(index, i -> "a#1");
+
+    for (int version = 2; version < 100; version++) {
+      assertEquals(index, store.intern("a", Integer.toString(version)));
+    }
+    assertEquals(1, store.size());
+    assertEquals(10L, lastPoll.get(index, -1L));
+    assertEquals(-1L, offsets.get(index, -1L));
+    assertEquals("a#99", keys.computeIfAbsent(index, i -> "a#99"));
+  }
+
+  @Test
+  void ignoresOutdatedVersions() {
+    UserStateStore store = new UserStateStore();
+    TimeColumn offsets = store.newVersionedTimeColumn();
+    int index = store.intern("a", "2");
+
+    assertEquals(-1, store.indexOf("a", "1"));
+    store.forVersion("a", "1", i -> offsets.set(i, 20L));
+    assertEquals(-1L, offsets.get(index, -1L));
+
+    store.forVersion("a", "2", i -> offsets.set(i, 30L));
+    assertEquals(30L, offsets.get(store.indexOf("a", "2"), -1L));
+  }
+}
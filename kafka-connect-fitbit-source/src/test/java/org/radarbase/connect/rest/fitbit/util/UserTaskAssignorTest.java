@@ -0,0 +1,78 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.fitbit.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+import org.radarbase.connect.rest.fitbit.user.LocalUser;
+import org.radarbase.connect.rest.fitbit.user.User;
+
+class UserTaskAssignorTest {
+  private final UserTaskAssignor assignor = new UserTaskAssignor(
+      UserTaskAssignor::uniformWeight, 1.25);
+
+  @Test
+  void balancesUsers() {
+    List<User> users = users(1000);
+    List<List<User>> assignment = assignor.assign(users, 8);
+
+    assertEquals(8, assignment.size());
+    assertEquals(1000, assignment.stream().mapToInt(List::size).sum());
+    assignment.forEach(taskUsers -> assertTrue(taskUsers.size() <= 1000 * 1.25 / 8));
+  }
+
+  @Test
+  void movesFewUsersWhenAddingTask() {
+    List<User> users = users(1000);
+    Map<String, Integer> before = taskPerUser(assignor.assign(users, 8));
+    Map<String, Integer> after = taskPerUser(assignor.assign(users, 9));
+
+    long moved = users.stream()
+        .filter(u -> !before.get(u.getId()).equals(after.get(u.getId())))
+        .count();
+    // ideally 1/9 of users move to the new task
+    assertTrue(moved < 1000 / 9 * 2, "Moved " + moved + " users");
+  }
+
+  private static Map<String, Integer> taskPerUser(List<List<User>> assignment) {
+    Map<String, Integer> result = new HashMap<>();
+    for (int task = 0; task < assignment.size(); task++) {
+      for (User user : assignment.get(task)) {
+        result.put(user.getId(), task);
+      }
+    }
+    return result;
+  }
+
+  private static List<User> users(int n) {
+    return IntStream.range(0, n)
+        .mapToObj(i -> {
+          LocalUser user = new LocalUser();
+          user.setId("user-" + i);
+          return user;
+        })
+        .collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.radarbase.connect.rest.fitbit.simulator;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.any;
+import static com.github.tomakehurst.wiremock.client.WireMock.anyUrl;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.radarbase.connect.rest.fitbit.FitbitRestSourceConnectorConfig;
+import org.radarbase.connect.rest.fitbit.FitbitSourceConnector;
+import org.radarbase.connect.rest.fitbit.request.FitbitRequestGenerator;
+import org.radarbase.connect.rest.fitbit.user.YamlUserRepository;
+
+/**
+ * Local stand-in for the Fitbit API, for load and integration tests of the connector. It serves
+ * synthetic data for any user on all endpoints that the routes use, and refreshes tokens on the
+ * OAuth 2.0 token endpoint. Error responses, rate limits and latency can be injected, also while
+ * the simulator is running.
+ */
+public class FitbitApiSimulator implements Closeable {
+  static final String TOKEN_PATH = "/oauth2/token";
+
+  final AtomicLong apiRequests = new AtomicLong();
+  final AtomicLong tokenRequests = new AtomicLong();
+  final AtomicLong unauthorizedResponses = new AtomicLong();
+  final AtomicLong tooManyRequestsResponses = new AtomicLong();
+
+  volatile int minLatencyMs;
+  volatile int maxLatencyMs;
+  volatile double unauthorizedRate;
+  volatile double tooManyRequestsRate;
+  volatile int rateLimit = Integer.MAX_VALUE;
+  volatile Duration tokenExpiry = Duration.ofHours(8);
+
+  private final WireMockServer server;
+
+  /** Simulator with default number of server threads. */
+  public FitbitApiSimulator() {
+    this(64);
+  }
+
+  /**
+   * Simulator.
+   * @param threads number of server threads. Delayed responses do not occupy a server thread.
+   */
+  public FitbitApiSimulator(int threads) {
+    server = new WireMockServer(options()
+        .dynamicPort()
+        .containerThreads(threads)
+        .asynchronousResponseEnabled(true)
+        .asynchronousResponseThreads(threads)
+        .disableRequestJournal()
+        .extensions(new FitbitApiTransformer(this)));
+  }
+
+  /** Start serving requests. */
+  public void start() {
+    server.start();
+    server.stubFor(any(anyUrl())
+        .willReturn(aResponse().withTransformers(FitbitApiTransformer.NAME)));
+  }
+
+  /** Stop serving requests. */
+  public void stop() {
+    server.stop();
+  }
+
+  @Override
+  public void close() {
+    stop();
+  }
+
+  /** Base URL to use as {@code rest.source.base.url}. */
+  public String getBaseUrl() {
+    return "http://localhost:" + server.port();
+  }
+
+  /** Token URL to use as {@code fitbit.api.token.url}. */
+  public String getTokenUrl() {
+    return getBaseUrl() + TOKEN_PATH;
+  }
+
+  /** Delay every response by a uniformly distributed time in milliseconds. */
+  public FitbitApiSimulator setLatency(int minMs, int maxMs) {
+    this.minLatencyMs = minMs;
+    this.maxLatencyMs = maxMs;
+    return this;
+  }
+
+  /** Fraction of API requests that are answered with 401 Unauthorized. */
+  public FitbitApiSimulator setUnauthorizedRate(double rate) {
+    this.unauthorizedRate = rate;
+    return this;
+  }
+
+  /** Fraction of API requests that are answered with 429 Too Many Requests. */
+  public FitbitApiSimulator setTooManyRequestsRate(double rate) {
+    this.tooManyRequestsRate = rate;
+    return this;
+  }
+
+  /**
+   * Number of API requests per user per hour, after which 429 Too Many Requests is returned.
+   * The Fitbit API uses a limit of 150.
+   */
+  public FitbitApiSimulator setRateLimit(int requestsPerHour) {
+    this.rateLimit = requestsPerHour;
+    return this;
+  }
+
+  /** Lifetime of access tokens returned by the token endpoint. */
+  public FitbitApiSimulator setTokenExpiry(Duration tokenExpiry) {
+    this.tokenExpiry = tokenExpiry;
+    return this;
+  }
+
+  /** Number of API requests served, excluding token requests. */
+  public long getApiRequests() {
+    return apiRequests.get();
+  }
+
+  public long getTokenRequests() {
+    return tokenRequests.get();
+  }
+
+  public long getUnauthorizedResponses() {
+    return unauthorizedResponses.get();
+  }
+
+  public long getTooManyRequestsResponses() {
+    return tooManyRequestsResponses.get();
+  }
+
+  /**
+   * Write users for {@link YamlUserRepository} to given directory. Users are named
+   * {@code user-0} to {@code user-(n-1)} and have valid access tokens.
+   * @param directory user directory, to use as {@code fitbit.user.dir}.
+   * @param numberOfUsers number of users to write.
+   * @param startDate time from which to collect data.
+   * @throws IOException if the users cannot be written.
+   */
+  public static void writeUsers(Path directory, int numberOfUsers, Instant startDate)
+      throws IOException {
+    Files.createDirectories(directory);
+    String expiresAt = Instant.now().plus(Duration.ofDays(1)).toString();
+    for (int i = 0; i < numberOfUsers; i++) {
+      String id = "user-" + i;
+      String user = "---\n"
+          + "id: " + id + "\n"
+          + "projectId: simulation\n"
+          + "userId: " + id + "\n"
+          + "sourceId: simulated-fitbit\n"
+          + "startDate: " + startDate + "\n"
+          + "externalUserId: " + id + "\n"
+          + "oauth2:\n"
+          + "  accessToken: access-" + id + "\n"
+          + "  refreshToken: refresh-" + id + "\n"
+          + "  expiresAt: " + expiresAt + "\n";
+      Files.write(directory.resolve(id + ".yml"), user.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * Connector properties to poll this simulator with intraday access.
+   * @param userDirectory directory with users written by {@link #writeUsers(Path, int, Instant)}.
+   */
+  public Map<String, String> connectorProperties(Path userDirectory) {
+    Map<String, String> props = new HashMap<>();
+    props.put("connector.class", FitbitSourceConnector.class.getName());
+    props.put("rest.source.base.url", getBaseUrl());
+    props.put("rest.source.destination.topics", "connect_fitbit");
+    props.put("rest.source.request.generator.class", FitbitRequestGenerator.class.getName());
+    props.put(FitbitRestSourceConnectorConfig.FITBIT_API_CLIENT_CONFIG, "simulation");
+    props.put(FitbitRestSourceConnectorConfig.FITBIT_API_SECRET_CONFIG, "simulation");
+    props.put(FitbitRestSourceConnectorConfig.FITBIT_API_TOKEN_URL_CONFIG, getTokenUrl());
+    props.put(FitbitRestSourceConnectorConfig.FITBIT_API_INTRADAY_ACCESS_CONFIG, "true");
+    props.put(FitbitRestSourceConnectorConfig.FITBIT_USER_REPOSITORY_CONFIG,
+        YamlUserRepository.class.getName());
+    props.put(FitbitRestSourceConnectorConfig.FITBIT_USER_CREDENTIALS_DIR_CONFIG,
+        userDirectory.toString());
+    return props;
+  }
+}
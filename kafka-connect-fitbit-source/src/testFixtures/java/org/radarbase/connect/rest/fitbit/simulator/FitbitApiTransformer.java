@@ -0,0 +1,213 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.radarbase.connect.rest.fitbit.simulator;
+
+import static java.time.ZoneOffset.UTC;
+
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+import com.github.tomakehurst.wiremock.common.FileSource;
+import com.github.tomakehurst.wiremock.extension.Parameters;
+import com.github.tomakehurst.wiremock.extension.ResponseDefinitionTransformer;
+import com.github.tomakehurst.wiremock.http.Request;
+import com.github.tomakehurst.wiremock.http.RequestMethod;
+import com.github.tomakehurst.wiremock.http.ResponseDefinition;
+import java.net.URI;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import okhttp3.HttpUrl;
+
+/**
+ * Serves all Fitbit API endpoints used by the connector routes, and the OAuth 2.0 token
+ * endpoint. Faults and latency are read from the simulator settings on every request, so they
+ * can be changed while the simulator is running.
+ */
+class FitbitApiTransformer extends ResponseDefinitionTransformer {
+  static final String NAME = "fitbit-api";
+
+  private static final Pattern INTRADAY_DAY_PATTERN = Pattern.compile(
+      "/1/user/([^/]+)/activities/(heart|steps|calories)/date/(\\d{4}-\\d{2}-\\d{2})"
+          + "/1d/1(?:sec|min)/time/(\\d{2}:\\d{2})/(\\d{2}:\\d{2})\\.json");
+  private static final Pattern INTRADAY_RANGE_PATTERN = Pattern.compile(
+      "/1/user/([^/]+)/activities/(steps|calories)/date/(\\d{4}-\\d{2}-\\d{2})"
+          + "/(\\d{4}-\\d{2}-\\d{2})/1min\\.json");
+  private static final Pattern SLEEP_PATTERN = Pattern.compile(
+      "/1\\.2/user/([^/]+)/sleep/list\\.json");
+  private static final Pattern ACTIVITY_PATTERN = Pattern.compile(
+      "/1/user/([^/]+)/activities/list\\.json");
+  private static final Pattern PROFILE_PATTERN = Pattern.compile(
+      "/1/user/([^/]+)/profile\\.json");
+  private static final Pattern USER_PATTERN = Pattern.compile("/1(?:\\.2)?/user/([^/]+)/.*");
+
+  private final FitbitApiSimulator simulator;
+  private final ConcurrentMap<String, Budget> budgets = new ConcurrentHashMap<>();
+  private final AtomicLong tokenCounter = new AtomicLong();
+
+  FitbitApiTransformer(FitbitApiSimulator simulator) {
+    this.simulator = simulator;
+  }
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public boolean applyGlobally() {
+    return false;
+  }
+
+  @Override
+  public ResponseDefinition transform(Request request, ResponseDefinition responseDefinition,
+      FileSource files, Parameters parameters) {
+    String path = URI.create(request.getUrl()).getPath();
+    ResponseDefinitionBuilder response;
+    if (path.equals(FitbitApiSimulator.TOKEN_PATH)) {
+      simulator.tokenRequests.incrementAndGet();
+      response = tokenResponse(request);
+    } else {
+      simulator.apiRequests.incrementAndGet();
+      response = apiResponse(request, path);
+    }
+
+    int minLatency = simulator.minLatencyMs;
+    int maxLatency = simulator.maxLatencyMs;
+    if (maxLatency > 0) {
+      response = response.withUniformRandomDelay(minLatency, maxLatency);
+    }
+    return response.build();
+  }
+
+  private ResponseDefinitionBuilder tokenResponse(Request request) {
+    if (!request.getMethod().equals(RequestMethod.POST)
+        || !request.getBodyAsString().contains("grant_type=refresh_token")) {
+      return json(400, SyntheticFitbitData.error("invalid_request", "Missing grant type"));
+    }
+    long token = tokenCounter.incrementAndGet();
+    return json(200, SyntheticFitbitData.token(
+        "access-" + token, "refresh-" + token, simulator.tokenExpiry.getSeconds()));
+  }
+
+  private ResponseDefinitionBuilder apiResponse(Request request, String path) {
+    String authorization = request.getHeader("Authorization");
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    if (authorization == null || !authorization.startsWith("Bearer ")
+        || random.nextDouble() < simulator.unauthorizedRate) {
+      simulator.unauthorizedResponses.incrementAndGet();
+      return json(401, SyntheticFitbitData.error("expired_token", "Access token expired"));
+    }
+
+    Matcher userMatcher = USER_PATTERN.matcher(path);
+    if (!userMatcher.matches()) {
+      return json(404, SyntheticFitbitData.error("not_found", "Unknown path " + path));
+    }
+    Budget budget = budgets.computeIfAbsent(userMatcher.group(1), k -> new Budget());
+    int remaining = budget.consume(simulator.rateLimit);
+    long reset = budget.secondsUntilReset();
+    if (remaining < 0 || random.nextDouble() < simulator.tooManyRequestsRate) {
+      simulator.tooManyRequestsResponses.incrementAndGet();
+      return json(429, SyntheticFitbitData.error("system", "Too Many Requests"))
+          .withHeader("Retry-After", Long.toString(reset))
+          .withHeader("Fitbit-Rate-Limit-Limit", Integer.toString(simulator.rateLimit))
+          .withHeader("Fitbit-Rate-Limit-Remaining", "0")
+          .withHeader("Fitbit-Rate-Limit-Reset", Long.toString(reset));
+    }
+
+    return json(200, body(request, path))
+        .withHeader("Fitbit-Rate-Limit-Limit", Integer.toString(simulator.rateLimit))
+        .withHeader("Fitbit-Rate-Limit-Remaining", Integer.toString(remaining))
+        .withHeader("Fitbit-Rate-Limit-Reset", Long.toString(reset));
+  }
+
+  private static String body(Request request, String path) {
+    Matcher matcher = INTRADAY_DAY_PATTERN.matcher(path);
+    if (matcher.matches()) {
+      return SyntheticFitbitData.intradayDay(matcher.group(1), matcher.group(2),
+          LocalDate.parse(matcher.group(3)), LocalTime.parse(matcher.group(4)),
+          LocalTime.parse(matcher.group(5)).withSecond(59));
+    }
+    matcher = INTRADAY_RANGE_PATTERN.matcher(path);
+    if (matcher.matches()) {
+      return SyntheticFitbitData.intradayRange(matcher.group(1), matcher.group(2),
+          LocalDate.parse(matcher.group(3)), LocalDate.parse(matcher.group(4)));
+    }
+    HttpUrl url = HttpUrl.get("http://localhost" + request.getUrl());
+    matcher = SLEEP_PATTERN.matcher(path);
+    if (matcher.matches()) {
+      return SyntheticFitbitData.sleepList(matcher.group(1), afterDate(url), limit(url));
+    }
+    matcher = ACTIVITY_PATTERN.matcher(path);
+    if (matcher.matches()) {
+      return SyntheticFitbitData.activityList(matcher.group(1), afterDate(url), limit(url));
+    }
+    if (PROFILE_PATTERN.matcher(path).matches()) {
+      return SyntheticFitbitData.profile();
+    }
+    return "{}";
+  }
+
+  private static LocalDateTime afterDate(HttpUrl url) {
+    String afterDate = url.queryParameter("afterDate");
+    if (afterDate == null) {
+      return LocalDateTime.now(UTC).minusDays(1);
+    } else if (afterDate.length() == 10) {
+      return LocalDate.parse(afterDate).atStartOfDay();
+    } else {
+      return LocalDateTime.parse(afterDate);
+    }
+  }
+
+  private static int limit(HttpUrl url) {
+    String limit = url.queryParameter("limit");
+    return limit != null ? Integer.parseInt(limit) : 20;
+  }
+
+  private static ResponseDefinitionBuilder json(int status, String body) {
+    return ResponseDefinitionBuilder.responseDefinition()
+        .withStatus(status)
+        .withHeader("Content-Type", "application/json;charset=UTF-8")
+        .withBody(body);
+  }
+
+  /** Hourly request budget of a single user, as applied by the Fitbit API. */
+  private static final class Budget {
+    private long hour = -1L;
+    private int used;
+
+    /** Use one request of the budget and return the remaining budget, negative if exceeded. */
+    synchronized int consume(int limit) {
+      long currentHour = Instant.now().getEpochSecond() / 3600L;
+      if (currentHour != hour) {
+        hour = currentHour;
+        used = 0;
+      }
+      used++;
+      return limit - used;
+    }
+
+    synchronized long secondsUntilReset() {
+      return (hour + 1) * 3600L - Instant.now().getEpochSecond();
+    }
+  }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.radarbase.connect.rest.fitbit.simulator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.apache.kafka.connect.source.SourceTaskContext;
+import org.apache.kafka.connect.storage.OffsetStorageReader;
+import org.radarbase.connect.rest.RestSourceTask;
+
+/**
+ * Drives a {@link RestSourceTask} against a {@link FitbitApiSimulator} for a fixed time and
+ * reports its throughput. Run with {@code ./gradlew :kafka-connect-fitbit-source:loadTest}, and
+ * pass options as {@code key=value} arguments, for example
+ * {@code --args='users=1000 duration=120 concurrency=16 latency=50,200'}.
+ *
+ * <p>Options:
+ * <ul>
+ *   <li>{@code users}: number of simulated users, default 100.</li>
+ *   <li>{@code history}: days of history to collect per user, default 7.</li>
+ *   <li>{@code duration}: seconds to poll, default 60.</li>
+ *   <li>{@code latency}: minimum and maximum response latency in milliseconds, default 0,0.</li>
+ *   <li>{@code unauthorized}: fraction of 401 responses, default 0.</li>
+ *   <li>{@code tooManyRequests}: fraction of 429 responses, default 0.</li>
+ *   <li>{@code rateLimit}: requests per user per hour, default unlimited.</li>
+ * </ul>
+ * Any other option is passed to the connector with the {@code rest.source.} or {@code fitbit.}
+ * prefix, for example {@code rest.source.request.concurrency=16}. The {@code concurrency}
+ * option is short for that property.
+ */
+public class FitbitLoadHarness {
+  private final FitbitApiSimulator simulator;
+  private final Map<String, String> connectorProperties;
+
+  /**
+   * Harness for a running simulator.
+   * @param simulator started simulator.
+   * @param connectorProperties connector properties, including users that the simulator serves.
+   */
+  public FitbitLoadHarness(FitbitApiSimulator simulator, Map<String, String> connectorProperties) {
+    this.simulator = simulator;
+    this.connectorProperties = connectorProperties;
+  }
+
+  /**
+   * Poll the connector task for given time. The task is stopped afterwards.
+   * @return load statistics.
+   * @throws InterruptedException if the current thread is interrupted.
+   */
+  public LoadReport run(Duration duration) throws InterruptedException {
+    RestSourceTask task = new RestSourceTask();
+    task.initialize(new SimulatedTaskContext(connectorProperties));
+    task.start(connectorProperties);
+
+    long startRequests = simulator.getApiRequests();
+    List<Long> pollLatencies = Collections.synchronizedList(new ArrayList<>());
+    long[] records = new long[1];
+
+    Thread poller = new Thread(() -> {
+      try {
+        while (!Thread.currentThread().isInterrupted()) {
+          long pollStart = System.nanoTime();
+          List<SourceRecord> result = task.poll();
+          long pollTime = System.nanoTime() - pollStart;
+          if (result != null && !result.isEmpty()) {
+            synchronized (records) {
+              records[0] += result.size();
+            }
+            pollLatencies.add(pollTime);
+          }
+        }
+      } catch (InterruptedException ex) {
+        // stop polling
+      }
+    }, "fitbit-load-harness");
+
+    long start = System.nanoTime();
+    poller.start();
+    poller.join(duration.toMillis());
+    poller.interrupt();
+    poller.join();
+    long elapsed = System.nanoTime() - start;
+    task.stop();
+
+    synchronized (records) {
+      return new LoadReport(elapsed, records[0], simulator.getApiRequests() - startRequests,
+          simulator.getTokenRequests(), simulator.getUnauthorizedResponses(),
+          simulator.getTooManyRequestsResponses(), pollLatencies);
+    }
+  }
+
+  /** Run the harness from the command line. */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      int separator = arg.indexOf('=');
+      if (separator <= 0) {
+        throw new IllegalArgumentException("Argument " + arg + " is not formatted as key=value");
+      }
+      options.put(arg.substring(0, separator), arg.substring(separator + 1));
+    }
+
+    int users = Integer.parseInt(options.getOrDefault("users", "100"));
+    Duration history = Duration.ofDays(Long.parseLong(options.getOrDefault("history", "7")));
+    Duration duration = Duration.ofSeconds(
+        Long.parseLong(options.getOrDefault("duration", "60")));
+    String[] latency = options.getOrDefault("latency", "0,0").split(",");
+
+    Path userDirectory = Files.createTempDirectory("fitbit-load-users");
+    try (FitbitApiSimulator simulator = new FitbitApiSimulator()) {
+      simulator.setLatency(Integer.parseInt(latency[0].trim()), Integer.parseInt(
+          latency[latency.length - 1].trim()))
+          .setUnauthorizedRate(Double.parseDouble(options.getOrDefault("unauthorized", "0")))
+          .setTooManyRequestsRate(
+              Double.parseDouble(options.getOrDefault("tooManyRequests", "0")))
+          .setRateLimit(Integer.parseInt(
+              options.getOrDefault("rateLimit", Integer.toString(Integer.MAX_VALUE))));
+      simulator.start();
+
+      FitbitApiSimulator.writeUsers(userDirectory, users, Instant.now().minus(history));
+      Map<String, String> props = simulator.connectorProperties(userDirectory);
+      props.put("rest.source.poll.interval.ms", "1000");
+      props.put("fitbit.user.poll.interval", "5");
+      if (options.containsKey("concurrency")) {
+        props.put("rest.source.request.concurrency", options.get("concurrency"));
+      }
+      options.forEach((k, v) -> {
+        if (k.startsWith("rest.source.") || k.startsWith("fitbit.")) {
+          props.put(k, v);
+        }
+      });
+
+      System.out.println(new FitbitLoadHarness(simulator, props).run(duration));
+    } finally {
+      try (Stream<Path> files = Files.walk(userDirectory)) {
+        files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+      }
+    }
+  }
+
+  /** Result of a load test. */
+  public static class LoadReport {
+    private final long elapsedNanos;
+    private final long records;
+    private final long requests;
+    private final long tokenRequests;
+    private final long unauthorizedResponses;
+    private final long tooManyRequestsResponses;
+    private final long[] pollLatencies;
+
+    LoadReport(long elapsedNanos, long records, long requests, long tokenRequests,
+        long unauthorizedResponses, long tooManyRequestsResponses,
+        Collection<Long> pollLatencies) {
+      this.elapsedNanos = elapsedNanos;
+      this.records = records;
+      this.requests = requests;
+      this.tokenRequests = tokenRequests;
+      this.unauthorizedResponses = unauthorizedResponses;
+      this.tooManyRequestsResponses = tooManyRequestsResponses;
+      this.pollLatencies = pollLatencies.stream().mapToLong(Long::longValue).sorted().toArray();
+    }
+
+    public long getRecords() {
+      return records;
+    }
+
+    public long getRequests() {
+      return requests;
+    }
+
+    public double getRecordsPerSecond() {
+      return records / getElapsedSeconds();
+    }
+
+    public double getRequestsPerSecond() {
+      return requests / getElapsedSeconds();
+    }
+
+    /**
+     * Latency percentile of polls that returned records.
+     * @param percentile percentile between 0 and 100.
+     * @return latency, or {@link Duration#ZERO} if no poll returned records.
+     */
+    public Duration getPollLatency(double percentile) {
+      if (pollLatencies.length == 0) {
+        return Duration.ZERO;
+      }
+      int index = (int) Math.ceil(percentile / 100d * pollLatencies.length) - 1;
+      return Duration.ofNanos(pollLatencies[Math.max(0, index)]);
+    }
+
+    private double getElapsedSeconds() {
+      return elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US, "Polled for %.1f s:%n"
+              + "  records:     %d (%.1f records/s)%n"
+              + "  requests:    %d (%.1f requests/s)%n"
+              + "  token refreshes: %d, 401 responses: %d, 429 responses: %d%n"
+              + "  polls:       %d, latency p50 %d ms, p99 %d ms",
+          getElapsedSeconds(), records, getRecordsPerSecond(), requests, getRequestsPerSecond(),
+          tokenRequests, unauthorizedResponses, tooManyRequestsResponses,
+          pollLatencies.length, getPollLatency(50).toMillis(), getPollLatency(99).toMillis());
+    }
+  }
+
+  /** Task context without stored offsets. */
+  private static final class SimulatedTaskContext implements SourceTaskContext {
+    private final Map<String, String> configs;
+
+    private SimulatedTaskContext(Map<String, String> configs) {
+      this.configs = configs;
+    }
+
+    @Override
+    public Map<String, String> configs() {
+      return configs;
+    }
+
+    @Override
+    public OffsetStorageReader offsetStorageReader() {
+      return new OffsetStorageReader() {
+        @Override
+        public <T> Map<String, Object> offset(Map<String, T> partition) {
+          return null;
+        }
+
+        @Override
+        public <T> Map<Map<String, T>, Map<String, Object>> offsets(
+            Collection<Map<String, T>> partitions) {
+          return Collections.emptyMap();
+        }
+      };
+    }
+  }
+}
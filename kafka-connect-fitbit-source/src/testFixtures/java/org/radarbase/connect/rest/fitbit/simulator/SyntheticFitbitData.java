@@ -0,0 +1,275 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.radarbase.connect.rest.fitbit.simulator;
+
+import static java.time.ZoneOffset.UTC;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.SplittableRandom;
+
+/**
+ * Generates Fitbit API response bodies with synthetic data. Values are derived from the user and
+ * the time, so the same request always gives the same data. No data is generated after the
+ * current time.
+ */
+class SyntheticFitbitData {
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+  private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+  private static final DateTimeFormatter LOCAL_DATE_TIME_FORMAT =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS");
+  private static final String[] SLEEP_LEVELS = {"wake", "light", "deep", "rem"};
+  /** Seconds between heart rate samples in 1sec detail level. */
+  private static final int HEART_RATE_INTERVAL = 10;
+  private static final int SLEEP_START_HOUR = 23;
+  private static final int SLEEP_STAGES = 16;
+  private static final int SLEEP_STAGE_SECONDS = 1800;
+  private static final int ACTIVITY_START_HOUR = 12;
+  private static final int ACTIVITY_MINUTES = 45;
+
+  private SyntheticFitbitData() {
+    // utility class
+  }
+
+  /**
+   * Intraday dataset of a single day between two times of day, inclusive.
+   * @param type one of heart, steps or calories.
+   */
+  static String intradayDay(String userId, String type, LocalDate date, LocalTime start,
+      LocalTime end) {
+    return write(gen -> {
+      gen.writeStartObject();
+      gen.writeFieldName("activities-" + type + "-intraday");
+      gen.writeStartObject();
+      gen.writeArrayFieldStart("dataset");
+      writeSamples(gen, userId, type, date, start, end);
+      gen.writeEndArray();
+      writeDatasetInterval(gen, type);
+      gen.writeEndObject();
+      gen.writeEndObject();
+    });
+  }
+
+  /**
+   * Intraday dataset of consecutive full days, as returned for date range requests.
+   * @param type one of steps or calories.
+   */
+  static String intradayRange(String userId, String type, LocalDate start, LocalDate end) {
+    return write(gen -> {
+      gen.writeStartObject();
+      gen.writeFieldName("activities-" + type + "-intraday");
+      gen.writeStartObject();
+      gen.writeArrayFieldStart("dataset");
+      for (LocalDate date = start; !date.isAfter(end); date = date.plusDays(1)) {
+        writeSamples(gen, userId, type, date, LocalTime.MIN, LocalTime.MAX);
+      }
+      gen.writeEndArray();
+      writeDatasetInterval(gen, type);
+      gen.writeEndObject();
+      gen.writeEndObject();
+    });
+  }
+
+  private static void writeDatasetInterval(JsonGenerator gen, String type) throws IOException {
+    gen.writeNumberField("datasetInterval", 1);
+    gen.writeStringField("datasetType", type.equals("heart") ? "second" : "minute");
+  }
+
+  private static void writeSamples(JsonGenerator gen, String userId, String type,
+      LocalDate date, LocalTime start, LocalTime end) throws IOException {
+    int step = type.equals("heart") ? HEART_RATE_INTERVAL : 60;
+    int startSecond = start.toSecondOfDay();
+    startSecond += (step - startSecond % step) % step;
+    int endSecond = end.toSecondOfDay();
+    long now = Instant.now().getEpochSecond();
+    long dayStart = date.atStartOfDay(UTC).toEpochSecond();
+
+    for (int second = startSecond; second <= endSecond; second += step) {
+      if (dayStart + second > now) {
+        break;
+      }
+      SplittableRandom random = random(userId, dayStart + second);
+      gen.writeStartObject();
+      gen.writeStringField("time", LocalTime.ofSecondOfDay(second).format(TIME_FORMAT));
+      switch (type) {
+        case "heart":
+          gen.writeNumberField("value", 55 + random.nextInt(60));
+          break;
+        case "steps":
+          gen.writeNumberField("value", random.nextInt(4) == 0 ? random.nextInt(120) : 0);
+          break;
+        default:
+          int level = random.nextInt(4);
+          gen.writeNumberField("level", level);
+          gen.writeNumberField("mets", 10 + level * 10 + random.nextInt(10));
+          gen.writeNumberField("value", 1 + level + random.nextDouble());
+          break;
+      }
+      gen.writeEndObject();
+    }
+  }
+
+  /** Sleep logs that started after given time and have already ended, at most {@code limit}. */
+  static String sleepList(String userId, LocalDateTime afterDate, int limit) {
+    LocalDateTime now = LocalDateTime.now(UTC);
+    return write(gen -> {
+      gen.writeStartObject();
+      gen.writeArrayFieldStart("sleep");
+      LocalDateTime start = afterDate.toLocalDate().atTime(SLEEP_START_HOUR, 0);
+      if (start.isBefore(afterDate)) {
+        start = start.plusDays(1);
+      }
+      Duration duration = Duration.ofSeconds(SLEEP_STAGES * SLEEP_STAGE_SECONDS);
+      for (int i = 0; i < limit && !start.plus(duration).isAfter(now); i++) {
+        writeSleep(gen, userId, start, duration);
+        start = start.plusDays(1);
+      }
+      gen.writeEndArray();
+      gen.writeEndObject();
+    });
+  }
+
+  private static void writeSleep(JsonGenerator gen, String userId, LocalDateTime start,
+      Duration duration) throws IOException {
+    long startSecond = start.toEpochSecond(UTC);
+    gen.writeStartObject();
+    gen.writeStringField("dateOfSleep", start.plusDays(1).toLocalDate().toString());
+    gen.writeNumberField("duration", duration.toMillis());
+    gen.writeNumberField("efficiency", 90);
+    gen.writeStringField("endTime", start.plus(duration).format(LOCAL_DATE_TIME_FORMAT));
+    gen.writeBooleanField("isMainSleep", true);
+    gen.writeObjectFieldStart("levels");
+    gen.writeArrayFieldStart("data");
+    for (int i = 0; i < SLEEP_STAGES; i++) {
+      long offset = (long) i * SLEEP_STAGE_SECONDS;
+      gen.writeStartObject();
+      gen.writeStringField("dateTime",
+          start.plusSeconds(offset).format(LOCAL_DATE_TIME_FORMAT));
+      gen.writeStringField("level",
+          SLEEP_LEVELS[random(userId, startSecond + offset).nextInt(SLEEP_LEVELS.length)]);
+      gen.writeNumberField("seconds", SLEEP_STAGE_SECONDS);
+      gen.writeEndObject();
+    }
+    gen.writeEndArray();
+    gen.writeEndObject();
+    gen.writeNumberField("logId", startSecond);
+    gen.writeNumberField("minutesAsleep", duration.toMinutes());
+    gen.writeStringField("startTime", start.format(LOCAL_DATE_TIME_FORMAT));
+    gen.writeNumberField("timeInBed", duration.toMinutes());
+    gen.writeStringField("type", "stages");
+    gen.writeEndObject();
+  }
+
+  /** Activities that started after given time and have already ended, at most {@code limit}. */
+  static String activityList(String userId, LocalDateTime afterDate, int limit) {
+    LocalDateTime now = LocalDateTime.now(UTC);
+    return write(gen -> {
+      gen.writeStartObject();
+      gen.writeArrayFieldStart("activities");
+      LocalDateTime start = afterDate.toLocalDate().atTime(ACTIVITY_START_HOUR, 0);
+      if (start.isBefore(afterDate)) {
+        start = start.plusDays(1);
+      }
+      Duration duration = Duration.ofMinutes(ACTIVITY_MINUTES);
+      for (int i = 0; i < limit && !start.plus(duration).isAfter(now); i++) {
+        writeActivity(gen, userId, start, duration);
+        start = start.plusDays(1);
+      }
+      gen.writeEndArray();
+      gen.writeEndObject();
+    });
+  }
+
+  private static void writeActivity(JsonGenerator gen, String userId, LocalDateTime start,
+      Duration duration) throws IOException {
+    long startSecond = start.toEpochSecond(UTC);
+    SplittableRandom random = random(userId, startSecond);
+    gen.writeStartObject();
+    gen.writeNumberField("activeDuration", duration.toMillis());
+    gen.writeStringField("activityName", "Walk");
+    gen.writeNumberField("activityTypeId", 90013);
+    gen.writeNumberField("averageHeartRate", 90 + random.nextInt(40));
+    gen.writeNumberField("calories", 100 + random.nextInt(200));
+    gen.writeNumberField("duration", duration.toMillis());
+    gen.writeStringField("lastModified", start.plus(duration).toInstant(UTC).toString());
+    gen.writeNumberField("logId", startSecond);
+    gen.writeStringField("logType", "auto_detected");
+    gen.writeStringField("startTime", start.atOffset(UTC).toString());
+    gen.writeNumberField("steps", 2000 + random.nextInt(4000));
+    gen.writeEndObject();
+  }
+
+  /** User profile in UTC. */
+  static String profile() {
+    return "{\"user\":{\"timezone\":\"UTC\",\"offsetFromUTCMillis\":0}}";
+  }
+
+  /** Successful token response. */
+  static String token(String accessToken, String refreshToken, long expiresIn) {
+    return write(gen -> {
+      gen.writeStartObject();
+      gen.writeStringField("access_token", accessToken);
+      gen.writeNumberField("expires_in", expiresIn);
+      gen.writeStringField("refresh_token", refreshToken);
+      gen.writeStringField("token_type", "Bearer");
+      gen.writeEndObject();
+    });
+  }
+
+  /** Fitbit error response. */
+  static String error(String type, String message) {
+    return write(gen -> {
+      gen.writeStartObject();
+      gen.writeArrayFieldStart("errors");
+      gen.writeStartObject();
+      gen.writeStringField("errorType", type);
+      gen.writeStringField("message", message);
+      gen.writeEndObject();
+      gen.writeEndArray();
+      gen.writeBooleanField("success", false);
+      gen.writeEndObject();
+    });
+  }
+
+  private static SplittableRandom random(String userId, long time) {
+    return new SplittableRandom(31L * userId.hashCode() + time);
+  }
+
+  private static String write(JsonWriter writer) {
+    StringWriter out = new StringWriter();
+    try (JsonGenerator gen = JSON_FACTORY.createGenerator(out)) {
+      writer.write(gen);
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+    return out.toString();
+  }
+
+  @FunctionalInterface
+  private interface JsonWriter {
+    void write(JsonGenerator gen) throws IOException;
+  }
+}
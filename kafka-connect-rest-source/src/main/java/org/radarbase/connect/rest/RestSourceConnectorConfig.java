@@ -26,6 +26,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
+import okhttp3.OkHttpClient;
 import org.apache.kafka.common.config.AbstractConfig;
 import org.apache.kafka.common.config.ConfigDef;
 import org.apache.kafka.common.config.ConfigDef.ConfigKey;
@@ -40,6 +41,7 @@ import org.radarbase.connect.rest.request.RequestGenerator;
 import org.radarbase.connect.rest.selector.SimpleTopicSelector;
 import org.radarbase.connect.rest.selector.TopicSelector;
 import org.radarbase.connect.rest.single.SingleRequestGenerator;
+import org.radarbase.connect.rest.util.HttpClientFactory;
 import org.radarbase.connect.rest.util.VersionUtil;
 
 public class RestSourceConnectorConfig extends AbstractConfig {
@@ -81,6 +83,66 @@ public class RestSourceConnectorConfig extends AbstractConfig {
       "Class to be used to generate REST requests";
   private static final String REQUEST_GENERATOR_DISPLAY = "Request generator class";
 
+  private static final String SOURCE_REQUEST_CONCURRENCY_CONFIG = "rest.source.request.concurrency";
+  private static final String SOURCE_REQUEST_CONCURRENCY_DOC =
+      "Maximum number of requests that a single task keeps in flight at the same time.";
+  private static final String SOURCE_REQUEST_CONCURRENCY_DISPLAY = "Concurrent requests per task";
+  private static final int SOURCE_REQUEST_CONCURRENCY_DEFAULT = 1;
+
+  private static final String SOURCE_MAX_RECORDS_PER_POLL_CONFIG = "rest.source.max.records.per.poll";
+  private static final String SOURCE_MAX_RECORDS_PER_POLL_DOC =
+      "Maximum number of records that a single poll returns. Records of responses that do not "
+          + "fit in a poll are returned by the next polls.";
+  private static final String SOURCE_MAX_RECORDS_PER_POLL_DISPLAY = "Maximum records per poll";
+  private static final int SOURCE_MAX_RECORDS_PER_POLL_DEFAULT = 10000;
+
+  private static final String SOURCE_MAX_BYTES_IN_FLIGHT_CONFIG =
+      "rest.source.max.bytes.in.flight";
+  private static final String SOURCE_MAX_BYTES_IN_FLIGHT_DOC =
+      "Number of bytes of response bodies after which a poll stops making new requests. "
+          + "Responses with records that did not fit in a previous poll also count, and each "
+          + "request in flight counts as rest.source.max.response.bytes until its size is known. "
+          + "All records of a single response are converted at once, so this limits the memory "
+          + "of converted records only through the size of the responses.";
+  private static final String SOURCE_MAX_BYTES_IN_FLIGHT_DISPLAY = "Maximum bytes in flight";
+  private static final long SOURCE_MAX_BYTES_IN_FLIGHT_DEFAULT = 64L * 1024L * 1024L;
+
+  private static final String SOURCE_MAX_RESPONSE_BYTES_CONFIG =
+      "rest.source.max.response.bytes";
+  private static final String SOURCE_MAX_RESPONSE_BYTES_DOC =
+      "Maximum number of bytes of a single response body. Larger responses fail the request "
+          + "without being read further.";
+  private static final String SOURCE_MAX_RESPONSE_BYTES_DISPLAY = "Maximum response bytes";
+  private static final long SOURCE_MAX_RESPONSE_BYTES_DEFAULT = 16L * 1024L * 1024L;
+
+  private static final String HTTP_MAX_REQUESTS_CONFIG = "rest.source.http.max.requests";
+  private static final String HTTP_MAX_REQUESTS_DOC =
+      "Maximum number of concurrent HTTP requests, shared by all tasks in the same worker.";
+  private static final String HTTP_MAX_REQUESTS_DISPLAY = "Maximum concurrent HTTP requests";
+  private static final int HTTP_MAX_REQUESTS_DEFAULT = 64;
+
+  private static final String HTTP_MAX_REQUESTS_PER_HOST_CONFIG =
+      "rest.source.http.max.requests.per.host";
+  private static final String HTTP_MAX_REQUESTS_PER_HOST_DOC =
+      "Maximum number of concurrent HTTP requests to a single host, shared by all tasks in the "
+          + "same worker.";
+  private static final String HTTP_MAX_REQUESTS_PER_HOST_DISPLAY =
+      "Maximum concurrent HTTP requests per host";
+  private static final int HTTP_MAX_REQUESTS_PER_HOST_DEFAULT = 32;
+
+  private static final String HTTP_MAX_IDLE_CONNECTIONS_CONFIG =
+      "rest.source.http.max.idle.connections";
+  private static final String HTTP_MAX_IDLE_CONNECTIONS_DOC =
+      "Maximum number of idle HTTP connections to keep open.";
+  private static final String HTTP_MAX_IDLE_CONNECTIONS_DISPLAY = "Maximum idle HTTP connections";
+  private static final int HTTP_MAX_IDLE_CONNECTIONS_DEFAULT = 32;
+
+  private static final String HTTP_KEEP_ALIVE_CONFIG = "rest.source.http.keep.alive.ms";
+  private static final String HTTP_KEEP_ALIVE_DOC =
+      "Time in milliseconds to keep an idle HTTP connection open.";
+  private static final String HTTP_KEEP_ALIVE_DISPLAY = "HTTP keep-alive time";
+  private static final long HTTP_KEEP_ALIVE_DEFAULT = 300_000L;
+
   private final TopicSelector topicSelector;
   private final PayloadToSourceRecordConverter payloadToSourceRecordConverter;
   private final RequestGenerator requestGenerator;
@@ -171,6 +233,94 @@ public class RestSourceConnectorConfig extends AbstractConfig {
             ++orderInGroup,
             Width.SHORT,
             REQUEST_GENERATOR_DISPLAY)
+
+        .define(SOURCE_REQUEST_CONCURRENCY_CONFIG,
+            Type.INT,
+            SOURCE_REQUEST_CONCURRENCY_DEFAULT,
+            ConfigDef.Range.atLeast(1),
+            Importance.MEDIUM,
+            SOURCE_REQUEST_CONCURRENCY_DOC,
+            group,
+            ++orderInGroup,
+            Width.SHORT,
+            SOURCE_REQUEST_CONCURRENCY_DISPLAY)
+
+        .define(SOURCE_MAX_RECORDS_PER_POLL_CONFIG,
+            Type.INT,
+            SOURCE_MAX_RECORDS_PER_POLL_DEFAULT,
+            ConfigDef.Range.atLeast(1),
+            Importance.LOW,
+            SOURCE_MAX_RECORDS_PER_POLL_DOC,
+            group,
+            ++orderInGroup,
+            Width.SHORT,
+            SOURCE_MAX_RECORDS_PER_POLL_DISPLAY)
+
+        .define(SOURCE_MAX_BYTES_IN_FLIGHT_CONFIG,
+            Type.LONG,
+            SOURCE_MAX_BYTES_IN_FLIGHT_DEFAULT,
+            ConfigDef.Range.atLeast(1),
+            Importance.LOW,
+            SOURCE_MAX_BYTES_IN_FLIGHT_DOC,
+            group,
+            ++orderInGroup,
+            Width.SHORT,
+            SOURCE_MAX_BYTES_IN_FLIGHT_DISPLAY)
+
+        .define(SOURCE_MAX_RESPONSE_BYTES_CONFIG,
+            Type.LONG,
+            SOURCE_MAX_RESPONSE_BYTES_DEFAULT,
+            ConfigDef.Range.atLeast(1),
+            Importance.LOW,
+            SOURCE_MAX_RESPONSE_BYTES_DOC,
+            group,
+            ++orderInGroup,
+            Width.SHORT,
+            SOURCE_MAX_RESPONSE_BYTES_DISPLAY)
+
+        .define(HTTP_MAX_REQUESTS_CONFIG,
+            Type.INT,
+            HTTP_MAX_REQUESTS_DEFAULT,
+            ConfigDef.Range.atLeast(1),
+            Importance.LOW,
+            HTTP_MAX_REQUESTS_DOC,
+            group,
+            ++orderInGroup,
+            Width.SHORT,
+            HTTP_MAX_REQUESTS_DISPLAY)
+
+        .define(HTTP_MAX_REQUESTS_PER_HOST_CONFIG,
+            Type.INT,
+            HTTP_MAX_REQUESTS_PER_HOST_DEFAULT,
+            ConfigDef.Range.atLeast(1),
+            Importance.LOW,
+            HTTP_MAX_REQUESTS_PER_HOST_DOC,
+            group,
+            ++orderInGroup,
+            Width.SHORT,
+            HTTP_MAX_REQUESTS_PER_HOST_DISPLAY)
+
+        .define(HTTP_MAX_IDLE_CONNECTIONS_CONFIG,
+            Type.INT,
+            HTTP_MAX_IDLE_CONNECTIONS_DEFAULT,
+            ConfigDef.Range.atLeast(0),
+            Importance.LOW,
+            HTTP_MAX_IDLE_CONNECTIONS_DOC,
+            group,
+            ++orderInGroup,
+            Width.SHORT,
+            HTTP_MAX_IDLE_CONNECTIONS_DISPLAY)
+
+        .define(HTTP_KEEP_ALIVE_CONFIG,
+            Type.LONG,
+            HTTP_KEEP_ALIVE_DEFAULT,
+            ConfigDef.Range.atLeast(1),
+            Importance.LOW,
+            HTTP_KEEP_ALIVE_DOC,
+            group,
+            ++orderInGroup,
+            Width.SHORT,
+            HTTP_KEEP_ALIVE_DISPLAY)
         ;
   }
 
@@ -178,6 +328,34 @@ public class RestSourceConnectorConfig extends AbstractConfig {
     return Duration.ofMillis(this.getLong(SOURCE_POLL_INTERVAL_CONFIG));
   }
 
+  public int getRequestConcurrency() {
+    return this.getInt(SOURCE_REQUEST_CONCURRENCY_CONFIG);
+  }
+
+  public int getMaxRecordsPerPoll() {
+    return this.getInt(SOURCE_MAX_RECORDS_PER_POLL_CONFIG);
+  }
+
+  public long getMaxBytesInFlight() {
+    return this.getLong(SOURCE_MAX_BYTES_IN_FLIGHT_CONFIG);
+  }
+
+  public long getMaxResponseBytes() {
+    return this.getLong(SOURCE_MAX_RESPONSE_BYTES_CONFIG);
+  }
+
+  /**
+   * HTTP client that shares its connection pool and dispatcher with all other clients of the
+   * same configuration in this JVM.
+   */
+  public OkHttpClient getHttpClient() {
+    return HttpClientFactory.getClient(
+        getInt(HTTP_MAX_REQUESTS_CONFIG),
+        getInt(HTTP_MAX_REQUESTS_PER_HOST_CONFIG),
+        getInt(HTTP_MAX_IDLE_CONNECTIONS_CONFIG),
+        getLong(HTTP_KEEP_ALIVE_CONFIG));
+  }
+
   public String getUrl() {
     return this.getString(SOURCE_URL_CONFIG);
   }
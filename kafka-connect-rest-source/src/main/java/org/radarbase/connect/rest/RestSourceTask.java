@@ -18,17 +18,27 @@
 package org.radarbase.connect.rest;
 
 import static java.time.temporal.ChronoUnit.MILLIS;
+import static org.radarbase.connect.rest.request.PollingRequestRoute.max;
 import static org.radarbase.connect.rest.util.ThrowingFunction.tryOrNull;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -36,18 +46,37 @@ import org.apache.kafka.connect.errors.ConnectException;
 import org.apache.kafka.connect.source.SourceRecord;
 import org.apache.kafka.connect.source.SourceTask;
 import org.radarbase.connect.rest.request.RequestGenerator;
+import org.radarbase.connect.rest.request.RequestGeneratorRouter;
+import org.radarbase.connect.rest.request.RequestRoute;
 import org.radarbase.connect.rest.request.RestRequest;
+import org.radarbase.connect.rest.util.PollWaiter;
 import org.radarbase.connect.rest.util.VersionUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class RestSourceTask extends SourceTask {
   private static Logger logger = LoggerFactory.getLogger(RestSourceTask.class);
+  /** Minimum wait after a round in which no requests could be made. */
+  private static final Duration IDLE_BACKOFF = Duration.ofSeconds(1);
 
   private RequestGenerator requestGenerator;
+  private int concurrency;
+  private int maxRecordsPerPoll;
+  private long maxBytesInFlight;
+  private long maxResponseBytes;
+  /** Records of handled responses that did not fit in a previous poll, in order. */
+  private final Deque<PendingRecords> pendingRecords = new ArrayDeque<>();
+  private List<RequestRoute> routes;
+  private RestSourceTaskMetrics metrics;
+  private final PollWaiter waiter = new PollWaiter();
+  /** Requests of the current poll round, cancelled when the task is stopped. */
+  private final Deque<InFlightRequest> inFlight = new ConcurrentLinkedDeque<>();
+  private volatile boolean isStopped;
 
   @Override
   public void start(Map<String, String> map) {
+    isStopped = false;
+    pendingRecords.clear();
     RestSourceConnectorConfig connectorConfig;
     try {
       Class<?> connector = Class.forName(map.get("connector.class"));
@@ -61,55 +90,218 @@ public class RestSourceTask extends SourceTask {
     }
     requestGenerator = connectorConfig.getRequestGenerator();
     requestGenerator.setOffsetStorageReader(context.offsetStorageReader());
+    requestGenerator.setWakeup(waiter::wakeup);
+    concurrency = connectorConfig.getRequestConcurrency();
+    maxRecordsPerPoll = connectorConfig.getMaxRecordsPerPoll();
+    maxBytesInFlight = connectorConfig.getMaxBytesInFlight();
+    maxResponseBytes = connectorConfig.getMaxResponseBytes();
+
+    if (requestGenerator instanceof RequestGeneratorRouter) {
+      routes = ((RequestGeneratorRouter) requestGenerator).routes()
+          .collect(Collectors.toList());
+    } else if (requestGenerator instanceof RequestRoute) {
+      routes = Collections.singletonList((RequestRoute) requestGenerator);
+    } else {
+      routes = Collections.emptyList();
+    }
+    metrics = new RestSourceTaskMetrics(map.get("name"));
+    routes.forEach(metrics::registerRoute);
   }
 
+  /**
+   * Poll for records. At most {@code rest.source.max.records.per.poll} records are returned.
+   * Records of responses that do not fit are kept and returned first by the next polls, without
+   * making new requests. No new requests are made either once the response bodies read in this
+   * poll, together with those of records that were kept and {@code rest.source.max.response.bytes}
+   * for each request in flight, would exceed {@code rest.source.max.bytes.in.flight}. A single
+   * request is always allowed if nothing else is in flight, so a poll can make progress.
+   */
   @Override
   public List<SourceRecord> poll() throws InterruptedException {
     long requestsGenerated = 0;
-    List<SourceRecord> requests = Collections.emptyList();
+    List<SourceRecord> records = new ArrayList<>();
+    long bytesInFlight = pendingRecords.stream().mapToLong(p -> p.bytes).sum();
+    takePendingRecords(records);
+    boolean isIdle = false;
+
+    while (records.isEmpty() && !isStopped) {
+      Instant nextRequest = requestGenerator.getTimeOfNextRequest();
+      if (isIdle) {
+        // Nothing could be requested in the previous round, so do not retry straight away.
+        nextRequest = max(nextRequest, Instant.now().plus(IDLE_BACKOFF));
+      }
+      waitUntil(nextRequest);
+      if (isStopped) {
+        break;
+      }
 
-    do {
-      long timeout = MILLIS.between(Instant.now(), requestGenerator.getTimeOfNextRequest());
-      if (timeout > 0) {
-        logger.info("Waiting {} milliseconds for next available request", timeout);
-        Thread.sleep(timeout);
+      Instant now = Instant.now();
+      for (RequestRoute route : routes) {
+        metrics.updateLag(route, MILLIS.between(route.getTimeOfNextRequest(), now));
       }
 
+      long previousRequestsGenerated = requestsGenerated;
       Iterator<? extends RestRequest> requestIterator = requestGenerator.requests()
           .iterator();
 
+      // Requests run on the HTTP client dispatcher. Their results are collected in the order
+      // that they were made, so that records of the same partition stay ordered.
+      try {
+        while (!inFlight.isEmpty()
+            || (canRequest(records, bytesInFlight) && requestIterator.hasNext())) {
+          while (inFlight.size() < concurrency
+              && canRequest(records, bytesInFlight)
+              && requestIterator.hasNext()) {
+            RestRequest request = requestIterator.next();
 
-      while (requests.isEmpty() && requestIterator.hasNext()) {
-        RestRequest request = requestIterator.next();
+            if (!request.isStillValid()) {
+              continue;
+            }
 
-        if (!request.isStillValid()) {
-          continue;
-        }
+            logger.info("Requesting {}", request.getRequest().url());
+            requestsGenerated++;
 
-        logger.info("Requesting {}", request.getRequest().url());
-        requestsGenerated++;
+            metrics.requestStarted(request);
+            InFlightRequest started =
+                new InFlightRequest(request,
+                    request.handleRequestAsync(metrics, maxResponseBytes));
+            inFlight.add(started);
+            if (isStopped) {
+              // stop() may have cancelled the other requests before this one was added
+              started.result.cancel(true);
+            }
+          }
 
-        try {
-          requests = request.handleRequest()
-              .collect(Collectors.toList());
-        } catch (IOException ex) {
-          logger.warn("Failed to make request: {}", ex.toString());
+          // keep the request in flight while waiting, so that stop() can cancel it
+          InFlightRequest next = inFlight.peek();
+          if (next == null) {
+            continue;
+          }
+          try {
+            Collection<SourceRecord> result = next.result.get();
+            long bytes = next.request.getResponseBytes();
+            bytesInFlight += bytes;
+            if (!result.isEmpty()) {
+              pendingRecords.add(new PendingRecords(result.iterator(), bytes));
+              takePendingRecords(records);
+            }
+          } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+              // a bug in converting the response, rather than a failed request
+              throw new ConnectException("Failed to process response of "
+                  + next.request.getRequest().url(), cause);
+            }
+            logger.warn("Failed to make request: {}", cause.toString());
+          } catch (CancellationException ex) {
+            logger.debug("Request {} was cancelled", next.request.getRequest().url());
+          } finally {
+            inFlight.poll();
+          }
+        }
+      } finally {
+        InFlightRequest remaining;
+        while ((remaining = inFlight.poll()) != null) {
+          remaining.result.cancel(true);
         }
       }
-    } while (requests.isEmpty());
+      isIdle = requestsGenerated == previousRequestsGenerated;
+    }
+
+    if (records.isEmpty()) {
+      logger.debug("Source task stopped while polling");
+      return null;
+    }
+
+    logger.info("Processed {} records from {} URLs", records.size(), requestsGenerated);
+    metrics.recordsProduced(records);
+
+    return records;
+  }
+
+  /**
+   * Whether a new request may be made in the current poll. Requests in flight, including the new
+   * one, count as the maximum response size.
+   */
+  private boolean canRequest(List<SourceRecord> records, long bytesInFlight) {
+    if (isStopped || records.size() >= maxRecordsPerPoll) {
+      return false;
+    }
+    if (inFlight.isEmpty() && bytesInFlight == 0) {
+      return true;
+    }
+    long reserved = (inFlight.size() + 1) * maxResponseBytes;
+    return bytesInFlight + reserved <= maxBytesInFlight;
+  }
 
-    logger.info("Processed {} records from {} URLs", requests.size(), requestsGenerated);
+  /** Move pending records to given poll result, until it reaches the maximum size. */
+  private void takePendingRecords(List<SourceRecord> records) {
+    PendingRecords pending;
+    while (records.size() < maxRecordsPerPoll && (pending = pendingRecords.peek()) != null) {
+      while (records.size() < maxRecordsPerPoll && pending.records.hasNext()) {
+        records.add(pending.records.next());
+      }
+      if (!pending.records.hasNext()) {
+        pendingRecords.poll();
+      }
+    }
+  }
 
-    return requests;
+  /**
+   * Wait until given time, or until the task is stopped. The time spent waiting is recorded in
+   * the task metrics.
+   */
+  private void waitUntil(Instant time) throws InterruptedException {
+    long timeout = MILLIS.between(Instant.now(), time);
+    if (timeout <= 0 || isStopped) {
+      return;
+    }
+    logger.info("Waiting {} milliseconds for next available request", timeout);
+    long startWait = System.nanoTime();
+    waiter.awaitUntil(time);
+    metrics.pollSlept(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startWait));
   }
 
   @Override
   public void stop() {
     logger.debug("Stopping source task");
+    isStopped = true;
+    waiter.wakeup();
+    inFlight.forEach(f -> f.result.cancel(true));
+    if (requestGenerator != null) {
+      requestGenerator.close();
+    }
+    if (metrics != null) {
+      metrics.close();
+    }
   }
 
   @Override
   public String version() {
     return VersionUtil.getVersion();
   }
+
+  /** Request that is being handled. */
+  private static final class InFlightRequest {
+    private final RestRequest request;
+    private final CompletableFuture<Collection<SourceRecord>> result;
+
+    private InFlightRequest(RestRequest request,
+        CompletableFuture<Collection<SourceRecord>> result) {
+      this.request = request;
+      this.result = result;
+    }
+  }
+
+  /** Remaining records of a handled response. */
+  private static final class PendingRecords {
+    private final Iterator<SourceRecord> records;
+    /** Size of the response body. */
+    private final long bytes;
+
+    private PendingRecords(Iterator<SourceRecord> records, long bytes) {
+      this.records = records;
+      this.bytes = bytes;
+    }
+  }
 }
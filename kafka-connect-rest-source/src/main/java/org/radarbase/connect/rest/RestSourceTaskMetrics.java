@@ -0,0 +1,252 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.Response;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.Gauge;
+import org.apache.kafka.common.metrics.JmxReporter;
+import org.apache.kafka.common.metrics.MetricConfig;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.CumulativeSum;
+import org.apache.kafka.common.metrics.stats.Max;
+import org.apache.kafka.common.metrics.stats.Meter;
+import org.apache.kafka.common.metrics.stats.Percentile;
+import org.apache.kafka.common.metrics.stats.Percentiles;
+import org.apache.kafka.common.metrics.stats.Percentiles.BucketSizing;
+import org.apache.kafka.common.metrics.stats.Rate;
+import org.apache.kafka.common.utils.Time;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.radarbase.connect.rest.request.RequestListener;
+import org.radarbase.connect.rest.request.RequestRoute;
+import org.radarbase.connect.rest.request.RestRequest;
+
+/**
+ * Metrics of a single source task, reported over JMX in the {@value #JMX_PREFIX} domain. Per
+ * request route, it tracks the number of requests by outcome, the HTTP latency and the lag of
+ * the route behind its schedule. Per topic, it tracks the number of records produced. For the
+ * task, it tracks the time that {@link RestSourceTask#poll()} spends waiting for requests to
+ * become due.
+ *
+ * <p>Kafka Connect does not expose its metrics registry to plugins in this version, so the task
+ * keeps its own registry. Tasks are tagged with the connector name and a sequence number, since
+ * the task ID is not available to the task itself.
+ */
+public class RestSourceTaskMetrics implements RequestListener, AutoCloseable {
+  public static final String JMX_PREFIX = "kafka.connect.rest";
+
+  private static final String ROUTE_GROUP = "rest-source-route-metrics";
+  private static final String TOPIC_GROUP = "rest-source-topic-metrics";
+  private static final String TASK_GROUP = "rest-source-task-metrics";
+  private static final double MAX_LATENCY_MS = 60_000d;
+  private static final int LATENCY_HISTOGRAM_BYTES = 4000;
+  private static final AtomicInteger TASK_SEQUENCE = new AtomicInteger();
+
+  private final Metrics metrics;
+  private final Map<String, String> taskTags;
+  private final ConcurrentMap<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Sensor> topics = new ConcurrentHashMap<>();
+  private final Sensor pollSleepTime;
+
+  /**
+   * Create and register the metrics of a task.
+   * @param connectorName name of the connector that the task belongs to.
+   */
+  public RestSourceTaskMetrics(String connectorName) {
+    this(connectorName, new Metrics(new MetricConfig(),
+        Collections.singletonList(new JmxReporter(JMX_PREFIX)), Time.SYSTEM));
+  }
+
+  /**
+   * Create the metrics of a task in an existing registry.
+   * @param connectorName name of the connector that the task belongs to.
+   * @param metrics registry to add the metrics to. It is closed with these metrics.
+   */
+  public RestSourceTaskMetrics(String connectorName, Metrics metrics) {
+    this.metrics = metrics;
+    String name = connectorName != null ? connectorName : "rest-source";
+    this.taskTags = Collections.singletonMap(
+        "task", name + "-" + TASK_SEQUENCE.getAndIncrement());
+
+    pollSleepTime = metrics.sensor("poll-sleep-time");
+    pollSleepTime.add(metrics.metricName("poll-sleep-time-total", TASK_GROUP,
+        "Total time in milliseconds that poll waited for requests to become due.", taskTags),
+        new CumulativeSum());
+    pollSleepTime.add(metrics.metricName("poll-sleep-time-avg", TASK_GROUP,
+        "Average time in milliseconds that a single wait for requests took.", taskTags),
+        new Avg());
+    pollSleepTime.add(metrics.metricName("poll-sleep-ratio", TASK_GROUP,
+        "Fraction of time that poll waited for requests to become due.", taskTags),
+        new Rate(TimeUnit.MILLISECONDS));
+  }
+
+  /** Register the lag metric of a route, before it makes any requests. */
+  public void registerRoute(RequestRoute route) {
+    route(route.getName());
+  }
+
+  /**
+   * Update the lag of a route: the time that its oldest due request has been waiting.
+   * @param route route to update.
+   * @param lagMs lag in milliseconds, zero if no request is overdue.
+   */
+  public void updateLag(RequestRoute route, long lagMs) {
+    route(route.getName()).lagMs = Math.max(0L, lagMs);
+  }
+
+  /** Record that a request is made. */
+  public void requestStarted(RestRequest request) {
+    route(request.getRoute().getName()).requests.record();
+  }
+
+  @Override
+  public void requestSucceeded(
+      RestRequest request, Response response, Collection<SourceRecord> records) {
+    RouteMetrics route = route(request.getRoute().getName());
+    route.succeeded.record();
+    route.recordLatency(response);
+  }
+
+  @Override
+  public void requestEmpty(RestRequest request, Response response) {
+    RouteMetrics route = route(request.getRoute().getName());
+    route.empty.record();
+    route.recordLatency(response);
+  }
+
+  @Override
+  public void requestFailed(RestRequest request, Response response) {
+    RouteMetrics route = route(request.getRoute().getName());
+    route.failed.record();
+    if (response != null) {
+      if (response.code() == 429) {
+        route.tooManyRequests.record();
+      }
+      route.recordLatency(response);
+    }
+  }
+
+  /** Record the records that a poll produced, per topic. */
+  public void recordsProduced(Collection<SourceRecord> records) {
+    Map<String, Integer> counts = new LinkedHashMap<>();
+    for (SourceRecord record : records) {
+      counts.merge(record.topic(), 1, Integer::sum);
+    }
+    counts.forEach((topic, count) -> topics.computeIfAbsent(topic, this::createTopicSensor)
+        .record(count));
+  }
+
+  /** Record the time that poll waited for requests to become due. */
+  public void pollSlept(long sleepMs) {
+    pollSleepTime.record(sleepMs);
+  }
+
+  @Override
+  public void close() {
+    metrics.close();
+  }
+
+  private RouteMetrics route(String name) {
+    return routes.computeIfAbsent(name, RouteMetrics::new);
+  }
+
+  private Sensor createTopicSensor(String topic) {
+    Map<String, String> tags = tags("topic", topic);
+    Sensor sensor = metrics.sensor("topic-records:" + topic);
+    sensor.add(new Meter(
+        metrics.metricName("record-rate", TOPIC_GROUP,
+            "Average number of records produced per second.", tags),
+        metrics.metricName("record-total", TOPIC_GROUP,
+            "Total number of records produced.", tags)));
+    return sensor;
+  }
+
+  private Map<String, String> tags(String key, String value) {
+    Map<String, String> tags = new LinkedHashMap<>(taskTags);
+    tags.put(key, value);
+    return tags;
+  }
+
+  /** Metrics of a single route. */
+  private final class RouteMetrics {
+    private final Sensor requests;
+    private final Sensor succeeded;
+    private final Sensor empty;
+    private final Sensor failed;
+    private final Sensor tooManyRequests;
+    private final Sensor latency;
+    private volatile long lagMs;
+
+    private RouteMetrics(String route) {
+      Map<String, String> tags = tags("route", route);
+      requests = meter(route, "request", "made", tags);
+      succeeded = meter(route, "request-success", "that produced records", tags);
+      empty = meter(route, "request-empty", "that produced no records", tags);
+      failed = meter(route, "request-error", "that failed", tags);
+      tooManyRequests = meter(route, "request-too-many",
+          "that were rejected with HTTP status 429", tags);
+
+      latency = metrics.sensor("route-latency:" + route);
+      latency.add(metrics.metricName("request-latency-avg", ROUTE_GROUP,
+          "Average HTTP latency of a request in milliseconds.", tags), new Avg());
+      latency.add(metrics.metricName("request-latency-max", ROUTE_GROUP,
+          "Maximum HTTP latency of a request in milliseconds.", tags), new Max());
+      latency.add(new Percentiles(LATENCY_HISTOGRAM_BYTES, MAX_LATENCY_MS, BucketSizing.LINEAR,
+          percentile(50, tags), percentile(95, tags), percentile(99, tags)));
+
+      MetricName lagName = metrics.metricName("route-lag-ms", ROUTE_GROUP,
+          "Time in milliseconds that the oldest due request of the route has been waiting.",
+          tags);
+      metrics.addMetric(lagName, (Gauge<Long>) (config, now) -> lagMs);
+    }
+
+    private Sensor meter(String route, String name, String description,
+        Map<String, String> tags) {
+      Sensor sensor = metrics.sensor("route-" + name + ":" + route);
+      sensor.add(new Meter(
+          metrics.metricName(name + "-rate", ROUTE_GROUP,
+              "Average number of requests per second " + description + ".", tags),
+          metrics.metricName(name + "-total", ROUTE_GROUP,
+              "Total number of requests " + description + ".", tags)));
+      return sensor;
+    }
+
+    private Percentile percentile(int percentile, Map<String, String> tags) {
+      return new Percentile(metrics.metricName("request-latency-p" + percentile, ROUTE_GROUP,
+          "HTTP latency of a request in milliseconds at percentile " + percentile + ".", tags),
+          percentile);
+    }
+
+    private void recordLatency(Response response) {
+      long latencyMs = response.receivedResponseAtMillis() - response.sentRequestAtMillis();
+      if (latencyMs >= 0) {
+        latency.record(latencyMs);
+      }
+    }
+  }
+}
@@ -39,4 +39,19 @@ public interface RequestGenerator extends RestSourceTool {
    * @param offsetStorageReader possibly null offset storage reader.
    */
   void setOffsetStorageReader(OffsetStorageReader offsetStorageReader);
+
+  /**
+   * Set a callback to call when requests may have become due before the time that
+   * {@link #getTimeOfNextRequest()} returned, for example because a new user was added. The
+   * task then stops waiting and asks for requests again. The callback may be called from any
+   * thread.
+   */
+  default void setWakeup(Runnable wakeup) {
+    // requests only become due at the announced time
+  }
+
+  /** Release any resources or listeners that the generator holds. */
+  default void close() {
+    // nothing to close
+  }
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.request;
+
+import java.util.Collection;
+import okhttp3.Response;
+import org.apache.kafka.connect.source.SourceRecord;
+
+/**
+ * Listener to the outcome of requests, for example to keep metrics. It is called after the
+ * callbacks of the originating route, possibly on an HTTP client thread.
+ */
+public interface RequestListener {
+  /** Listener that does nothing. */
+  RequestListener NONE = new RequestListener() {};
+
+  /**
+   * Called when the request succeeded and produced records.
+   * @param request non-null request
+   * @param response non-null response, the body of which has already been consumed
+   * @param records non-empty resulting records
+   */
+  default void requestSucceeded(
+      RestRequest request, Response response, Collection<SourceRecord> records) {
+  }
+
+  /** Called when the request succeeded but did not produce any records. */
+  default void requestEmpty(RestRequest request, Response response) {
+  }
+
+  /**
+   * Called when the request failed.
+   * @param request non-null request
+   * @param response unsuccessful response, or {@code null} if no response was received or the
+   *                 response could not be parsed
+   */
+  default void requestFailed(RestRequest request, Response response) {
+  }
+}
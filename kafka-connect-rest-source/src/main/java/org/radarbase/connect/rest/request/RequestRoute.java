@@ -26,6 +26,11 @@ public interface RequestRoute extends RequestGenerator {
   /** Data converter from data that is returned from the route. */
   PayloadToSourceRecordConverter converter();
 
+  /** Name of the route, used to identify it in metrics and logs. */
+  default String getName() {
+    return getClass().getSimpleName();
+  }
+
   /**
    * Called when the request from this route succeeded.
    *
@@ -19,12 +19,21 @@ package org.radarbase.connect.rest.request;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
 import org.apache.kafka.connect.source.SourceRecord;
 
 /**
@@ -36,6 +45,7 @@ public class RestRequest {
   private final RequestRoute route;
   private final OkHttpClient client;
   private final Predicate<RestRequest> isValid;
+  private long responseBytes;
 
   /**
    * Single RestRequest.
@@ -66,6 +76,18 @@ public class RestRequest {
     return partition;
   }
 
+  public RequestRoute getRoute() {
+    return route;
+  }
+
+  /**
+   * Number of bytes of the response body that were read to convert the response. This is only
+   * known after the request has been handled.
+   */
+  public long getResponseBytes() {
+    return responseBytes;
+  }
+
   public boolean isStillValid() {
     return isValid == null || isValid.test(this);
   }
@@ -81,21 +103,141 @@ public class RestRequest {
     }
 
     try (Response response = client.newCall(request).execute()) {
-      if (!response.isSuccessful()) {
-        route.requestFailed(this, response);
-        return Stream.empty();
+      return processResponse(response, RequestListener.NONE, Long.MAX_VALUE).stream();
+    } catch (IOException | RuntimeException ex) {
+      route.requestFailed(this, null);
+      throw ex;
+    }
+  }
+
+  /**
+   * Handle the request asynchronously on the dispatcher of the internal client, using the
+   * request route converter. Cancelling the returned future cancels the underlying call.
+   * @return future of the resulting source records. It completes exceptionally with an
+   *         IOException if making or parsing the request failed, or with a RuntimeException if
+   *         the converter failed.
+   */
+  public CompletableFuture<Collection<SourceRecord>> handleRequestAsync() {
+    return handleRequestAsync(RequestListener.NONE);
+  }
+
+  /**
+   * Handle the request asynchronously, like {@link #handleRequestAsync()}, and report its outcome
+   * to given listener.
+   * @param listener listener to the outcome of the request.
+   * @return future of the resulting source records.
+   */
+  public CompletableFuture<Collection<SourceRecord>> handleRequestAsync(
+      RequestListener listener) {
+    return handleRequestAsync(listener, Long.MAX_VALUE);
+  }
+
+  /**
+   * Handle the request asynchronously, like {@link #handleRequestAsync(RequestListener)}, but fail
+   * the request if its response body is larger than given size. The body is then not read
+   * further.
+   * @param listener listener to the outcome of the request.
+   * @param maxResponseBytes maximum size of the response body in bytes.
+   * @return future of the resulting source records.
+   */
+  public CompletableFuture<Collection<SourceRecord>> handleRequestAsync(
+      RequestListener listener, long maxResponseBytes) {
+    if (!isStillValid()) {
+      return CompletableFuture.completedFuture(Collections.emptyList());
+    }
+
+    Call call = client.newCall(request);
+    CompletableFuture<Collection<SourceRecord>> future =
+        new CompletableFuture<Collection<SourceRecord>>() {
+          @Override
+          public boolean cancel(boolean mayInterruptIfRunning) {
+            call.cancel();
+            return super.cancel(mayInterruptIfRunning);
+          }
+        };
+
+    call.enqueue(new Callback() {
+      @Override
+      public void onFailure(Call call, IOException ex) {
+        route.requestFailed(RestRequest.this, null);
+        listener.requestFailed(RestRequest.this, null);
+        future.completeExceptionally(ex);
       }
 
-      Collection<SourceRecord> records = route.converter().convert(this, response);
-      if (records.isEmpty()) {
-        route.requestEmpty(this);
-      } else {
-        records.forEach(r -> route.requestSucceeded(this, r));
+      @Override
+      public void onResponse(Call call, Response response) {
+        try (Response r = response) {
+          future.complete(processResponse(r, listener, maxResponseBytes));
+        } catch (IOException ex) {
+          route.requestFailed(RestRequest.this, null);
+          listener.requestFailed(RestRequest.this, null);
+          future.completeExceptionally(ex);
+        } catch (RuntimeException ex) {
+          route.requestFailed(RestRequest.this, null);
+          listener.requestFailed(RestRequest.this, null);
+          future.completeExceptionally(ex);
+        }
       }
-      return records.stream();
-    } catch (IOException ex) {
-      route.requestFailed(this, null);
-      throw ex;
+    });
+
+    return future;
+  }
+
+  private Collection<SourceRecord> processResponse(Response response, RequestListener listener,
+      long maxResponseBytes) throws IOException {
+    if (!response.isSuccessful()) {
+      route.requestFailed(this, response);
+      listener.requestFailed(this, response);
+      return Collections.emptyList();
+    }
+
+    ResponseBody body = response.body();
+    Collection<SourceRecord> records;
+    if (body != null) {
+      if (body.contentLength() > maxResponseBytes) {
+        throw new IOException("Response of " + request.url() + " has " + body.contentLength()
+            + " bytes, more than the maximum of " + maxResponseBytes + " bytes");
+      }
+      CountingSource source = new CountingSource(body.source(), maxResponseBytes);
+      records = route.converter().convert(this, response.newBuilder()
+          .body(ResponseBody.create(body.contentType(), body.contentLength(),
+              Okio.buffer(source)))
+          .build());
+      responseBytes = source.count;
+    } else {
+      records = route.converter().convert(this, response);
+    }
+    if (records.isEmpty()) {
+      route.requestEmpty(this);
+      listener.requestEmpty(this, response);
+    } else {
+      records.forEach(r -> route.requestSucceeded(this, r));
+      listener.requestSucceeded(this, response, records);
+    }
+    return records;
+  }
+
+  /** Source that counts the number of bytes read, and fails if too many bytes are read. */
+  private final class CountingSource extends ForwardingSource {
+    private final long maxCount;
+    private long count;
+
+    private CountingSource(Source delegate, long maxCount) {
+      super(delegate);
+      this.maxCount = maxCount;
+    }
+
+    @Override
+    public long read(Buffer sink, long byteCount) throws IOException {
+      long read = super.read(sink, byteCount);
+      if (read > 0) {
+        count += read;
+        if (count > maxCount) {
+          throw new IOException("Response of " + request.url()
+              + " is larger than the maximum of " + maxCount + " bytes");
+        }
+      }
+      return read;
     }
   }
 }
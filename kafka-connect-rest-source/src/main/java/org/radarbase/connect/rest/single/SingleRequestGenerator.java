@@ -46,12 +46,12 @@ import org.slf4j.LoggerFactory;
 public class SingleRequestGenerator implements RequestRoute {
   private static final Logger logger = LoggerFactory.getLogger(SingleRequestGenerator.class);
 
-  private Instant lastTimestamp;
+  private volatile Instant lastTimestamp;
   private HttpUrl url;
   private String method;
   private RequestBody body;
   private Duration pollInterval;
-  private Instant lastPoll;
+  private volatile Instant lastPoll;
   private Map<String, Object> key;
   private Headers headers;
   private PayloadToSourceRecordConverter converter;
@@ -85,7 +85,7 @@ public class SingleRequestGenerator implements RequestRoute {
     }
 
     converter = config.getPayloadToSourceRecordConverter();
-    client = new OkHttpClient();
+    client = config.getHttpClient();
   }
 
   @Override
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.util;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
+/**
+ * Factory for HTTP clients that share a connection pool and dispatcher. All clients created with
+ * the same settings in the same JVM reuse the same connections, so tasks and user repositories
+ * do not each open their own TLS connections to the same host. Clients that need a different
+ * authenticator or timeouts should be derived with {@link OkHttpClient#newBuilder()}, which
+ * keeps the shared pool and dispatcher.
+ *
+ * <p>Runtime exceptions thrown while making a call, for example by an authenticator, are
+ * rethrown as IOException. Otherwise, OkHttp would not report them to the callback of an
+ * asynchronous call, and that call would never complete.
+ */
+public final class HttpClientFactory {
+  private static final ConcurrentMap<Settings, OkHttpClient> CLIENTS = new ConcurrentHashMap<>();
+
+  private HttpClientFactory() {
+    // utility class
+  }
+
+  /**
+   * Get a client with a connection pool and dispatcher shared with all other clients with the
+   * same settings.
+   * @param maxRequests maximum number of concurrent requests.
+   * @param maxRequestsPerHost maximum number of concurrent requests to a single host.
+   * @param maxIdleConnections maximum number of idle connections to keep in the pool.
+   * @param keepAliveMs time in milliseconds to keep an idle connection open.
+   * @return shared client.
+   */
+  public static OkHttpClient getClient(int maxRequests, int maxRequestsPerHost,
+      int maxIdleConnections, long keepAliveMs) {
+    return CLIENTS.computeIfAbsent(
+        new Settings(maxRequests, maxRequestsPerHost, maxIdleConnections, keepAliveMs),
+        HttpClientFactory::createClient);
+  }
+
+  private static OkHttpClient createClient(Settings settings) {
+    Dispatcher dispatcher = new Dispatcher();
+    dispatcher.setMaxRequests(settings.maxRequests);
+    dispatcher.setMaxRequestsPerHost(settings.maxRequestsPerHost);
+
+    return new OkHttpClient.Builder()
+        .dispatcher(dispatcher)
+        .connectionPool(new ConnectionPool(
+            settings.maxIdleConnections, settings.keepAliveMs, TimeUnit.MILLISECONDS))
+        .addInterceptor(HttpClientFactory::wrapRuntimeExceptions)
+        .build();
+  }
+
+  private static Response wrapRuntimeExceptions(Interceptor.Chain chain) throws IOException {
+    try {
+      return chain.proceed(chain.request());
+    } catch (RuntimeException ex) {
+      throw new IOException("Failed to make request " + chain.request().url(), ex);
+    }
+  }
+
+  private static final class Settings {
+    private final int maxRequests;
+    private final int maxRequestsPerHost;
+    private final int maxIdleConnections;
+    private final long keepAliveMs;
+
+    private Settings(int maxRequests, int maxRequestsPerHost, int maxIdleConnections,
+        long keepAliveMs) {
+      this.maxRequests = maxRequests;
+      this.maxRequestsPerHost = maxRequestsPerHost;
+      this.maxIdleConnections = maxIdleConnections;
+      this.keepAliveMs = keepAliveMs;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      Settings other = (Settings) o;
+      return maxRequests == other.maxRequests
+          && maxRequestsPerHost == other.maxRequestsPerHost
+          && maxIdleConnections == other.maxIdleConnections
+          && keepAliveMs == other.keepAliveMs;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(maxRequests, maxRequestsPerHost, maxIdleConnections, keepAliveMs);
+    }
+  }
+}
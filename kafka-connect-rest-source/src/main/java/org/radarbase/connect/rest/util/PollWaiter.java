@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018 The Hyve
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.radarbase.connect.rest.util;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Waits until a deadline, unless woken up earlier from another thread. A wake-up that arrives
+ * while no thread is waiting is remembered, so it ends the next wait immediately.
+ */
+public class PollWaiter {
+  private final Lock lock = new ReentrantLock();
+  private final Condition wokenUp = lock.newCondition();
+  private boolean isWokenUp;
+
+  /**
+   * Wait until given time or until {@link #wakeup()} is called.
+   * @param deadline time to wait until.
+   * @return {@code true} if the wait was ended by a wake-up, {@code false} if the deadline
+   *         passed.
+   * @throws InterruptedException if the thread was interrupted while waiting.
+   */
+  public boolean awaitUntil(Instant deadline) throws InterruptedException {
+    lock.lock();
+    try {
+      long remainingNanos = Duration.between(Instant.now(), deadline).toNanos();
+      while (!isWokenUp && remainingNanos > 0) {
+        remainingNanos = wokenUp.awaitNanos(remainingNanos);
+      }
+      boolean result = isWokenUp;
+      isWokenUp = false;
+      return result;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** End the current or next wait. */
+  public void wakeup() {
+    lock.lock();
+    try {
+      isWokenUp = true;
+      wokenUp.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -19,6 +19,8 @@ package org.radarbase.connect.rest;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
 import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.matching;
 import static com.github.tomakehurst.wiremock.client.WireMock.post;
 import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
@@ -29,15 +31,29 @@ import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
 import static com.github.tomakehurst.wiremock.client.WireMock.verify;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import com.github.tomakehurst.wiremock.WireMockServer;
 import com.github.tomakehurst.wiremock.client.VerificationException;
 import com.github.tomakehurst.wiremock.client.WireMock;
 import com.github.tomakehurst.wiremock.verification.LoggedRequest;
 import com.github.tomakehurst.wiremock.verification.NearMiss;
+import java.time.Instant;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
 import org.apache.kafka.connect.source.SourceRecord;
 import org.apache.kafka.connect.source.SourceTaskContext;
 import org.apache.kafka.connect.storage.OffsetStorageReader;
@@ -51,7 +67,10 @@ import org.junit.jupiter.api.extension.ParameterResolutionException;
 import org.junit.jupiter.api.extension.ParameterResolver;
 import org.radarbase.connect.rest.RestTaskTest.WireMockRule;
 import org.radarbase.connect.rest.converter.BytesPayloadConverter;
+import org.radarbase.connect.rest.converter.PayloadToSourceRecordConverter;
 import org.radarbase.connect.rest.converter.StringPayloadConverter;
+import org.radarbase.connect.rest.request.RequestRoute;
+import org.radarbase.connect.rest.request.RestRequest;
 import org.radarbase.connect.rest.selector.SimpleTopicSelector;
 import org.radarbase.connect.rest.single.SingleRestSourceConnector;
 import org.radarbase.connect.rest.single.SingleRestSourceConnectorConfig;
@@ -76,6 +95,7 @@ public class RestTaskTest {
   private static final String DATA = "{\"A\":\"B\"}";
   private static final String RESPONSE_BODY = "{\"B\":\"A\"}";
   private static final String PATH = "/my/resource";
+  private static final String SEQUENCE_PATH = "/sequence/";
 
   @Test
   public void restTest(WireMockRule wireMock) throws InterruptedException {
@@ -144,6 +164,221 @@ public class RestTaskTest {
       .withHeader(CONTENT_TYPE, matching(APPLICATION_JSON)));
   }
 
+  @Test
+  public void concurrentRequestsKeepOrder(WireMockRule wireMock) throws InterruptedException {
+    stubSequence(4);
+    // the first response is the slowest
+    stubFor(get(urlEqualTo(SEQUENCE_PATH + 0))
+        .willReturn(aResponse().withFixedDelay(300).withBody("0")));
+
+    RestSourceTask sourceTask = startSequenceTask(wireMock, 4, "4", "100", "1000000");
+    List<SourceRecord> messages = sourceTask.poll();
+    sourceTask.stop();
+
+    assertEquals("Message count: ", 4, messages.size());
+    for (int i = 0; i < 4; i++) {
+      assertEquals("Response order: ", String.valueOf(i), messages.get(i).value());
+    }
+  }
+
+  @Test
+  public void recordCapCarriesOverRecords(WireMockRule wireMock) throws InterruptedException {
+    stubSequence(4);
+    RestSourceTask sourceTask = startSequenceTask(wireMock, 4, "4", "3", "1000000");
+
+    List<SourceRecord> messages = sourceTask.poll();
+    assertEquals("Message count: ", 3, messages.size());
+    verify(4, getRequestedFor(urlMatching(SEQUENCE_PATH + "[0-9]+")));
+
+    messages = sourceTask.poll();
+    sourceTask.stop();
+    assertEquals("Message count: ", 1, messages.size());
+    assertEquals("Carried over record: ", "3", messages.get(0).value());
+    verify(4, getRequestedFor(urlMatching(SEQUENCE_PATH + "[0-9]+")));
+  }
+
+  @Test
+  public void byteCapStopsRequests(WireMockRule wireMock) throws InterruptedException {
+    stubSequence(4);
+    RestSourceTask sourceTask = startSequenceTask(wireMock, 4, "1", "100", "1");
+
+    List<SourceRecord> messages = sourceTask.poll();
+    assertEquals("Message count: ", 1, messages.size());
+    assertEquals("First record: ", "0", messages.get(0).value());
+    verify(1, getRequestedFor(urlMatching(SEQUENCE_PATH + "[0-9]+")));
+
+    messages = sourceTask.poll();
+    sourceTask.stop();
+    assertEquals("Message count: ", 1, messages.size());
+    assertEquals("Next record: ", "1", messages.get(0).value());
+    verify(2, getRequestedFor(urlMatching(SEQUENCE_PATH + "[0-9]+")));
+  }
+
+  @Test
+  public void failsResponsesOverMaximumSize(WireMockRule wireMock) throws InterruptedException {
+    stubFor(get(urlEqualTo(SEQUENCE_PATH + 0))
+        .willReturn(aResponse().withBody("0123456789")));
+    stubFor(get(urlEqualTo(SEQUENCE_PATH + 1))
+        .willReturn(aResponse().withBody("1")));
+    RestSourceTask sourceTask = startSequenceTask(wireMock, 2, "1", "100", "1000000", "5");
+
+    List<SourceRecord> messages = sourceTask.poll();
+    sourceTask.stop();
+    assertEquals("Message count: ", 1, messages.size());
+    assertEquals("Record of small response: ", "1", messages.get(0).value());
+  }
+
+  @Test
+  public void requestsInFlightCountAsMaximumSize(WireMockRule wireMock)
+      throws InterruptedException {
+    for (int i = 0; i < 3; i++) {
+      stubFor(get(urlEqualTo(SEQUENCE_PATH + i))
+          .willReturn(aResponse().withFixedDelay(200).withBody(String.valueOf(i))));
+    }
+    // room for a single request of the maximum size
+    RestSourceTask sourceTask = startSequenceTask(wireMock, 3, "3", "100", "1500", "1000");
+
+    List<SourceRecord> messages = sourceTask.poll();
+    sourceTask.stop();
+    assertEquals("Message count: ", 3, messages.size());
+
+    List<Long> requestTimes = wireMock.findAll(getRequestedFor(urlMatching(SEQUENCE_PATH + ".*")))
+        .stream()
+        .map(r -> r.getLoggedDate().getTime())
+        .sorted()
+        .collect(Collectors.toList());
+    assertEquals("Request count: ", 3, requestTimes.size());
+    for (int i = 1; i < requestTimes.size(); i++) {
+      assertTrue("Request made before the previous response",
+          requestTimes.get(i) - requestTimes.get(i - 1) >= 190L);
+    }
+  }
+
+  @Test
+  public void stopCancelsRequestInFlight(WireMockRule wireMock) throws Exception {
+    stubFor(get(urlEqualTo(SEQUENCE_PATH + 0))
+        .willReturn(aResponse().withFixedDelay(10_000).withBody("0")));
+    RestSourceTask sourceTask = startSequenceTask(wireMock, 1, "2", "100", "1000000");
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<List<SourceRecord>> result = executor.submit(sourceTask::poll);
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (wireMock.findAll(getRequestedFor(urlEqualTo(SEQUENCE_PATH + 0))).isEmpty()) {
+        assertTrue("Request was not made", System.nanoTime() < deadline);
+        Thread.sleep(10L);
+      }
+      sourceTask.stop();
+      assertNull("Stopped poll result: ", result.get(2, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static void stubSequence(int numberOfRequests) {
+    for (int i = 0; i < numberOfRequests; i++) {
+      stubFor(get(urlEqualTo(SEQUENCE_PATH + i))
+          .willReturn(aResponse().withBody(String.valueOf(i))));
+    }
+  }
+
+  private static RestSourceTask startSequenceTask(WireMockRule wireMock, int numberOfRequests,
+      String concurrency, String maxRecordsPerPoll, String maxBytesInFlight) {
+    return startSequenceTask(wireMock, numberOfRequests, concurrency, maxRecordsPerPoll,
+        maxBytesInFlight, "1000");
+  }
+
+  private static RestSourceTask startSequenceTask(WireMockRule wireMock, int numberOfRequests,
+      String concurrency, String maxRecordsPerPoll, String maxBytesInFlight,
+      String maxResponseBytes) {
+    SequenceRequestGenerator.numberOfRequests = numberOfRequests;
+    Map<String, String> props = new HashMap<>();
+    props.put("connector.class", SingleRestSourceConnector.class.getName());
+    props.put(RestSourceConnectorConfig.SOURCE_URL_CONFIG, wireMock.url(SEQUENCE_PATH));
+    props.put(SingleRestSourceConnectorConfig.SOURCE_PROPERTIES_LIST_CONFIG, PROPERTIES_LIST);
+    props.put(RestSourceConnectorConfig.SOURCE_TOPIC_SELECTOR_CONFIG, TOPIC_SELECTOR);
+    props.put(RestSourceConnectorConfig.SOURCE_TOPIC_LIST_CONFIG, REST_SOURCE_DESTINATION_TOPIC_LIST);
+    props.put(RestSourceConnectorConfig.SOURCE_PAYLOAD_CONVERTER_CONFIG, STRING_PAYLOAD_CONVERTER);
+    props.put("rest.source.request.generator.class", SequenceRequestGenerator.class.getName());
+    props.put("rest.source.request.concurrency", concurrency);
+    props.put("rest.source.max.records.per.poll", maxRecordsPerPoll);
+    props.put("rest.source.max.bytes.in.flight", maxBytesInFlight);
+    props.put("rest.source.max.response.bytes", maxResponseBytes);
+
+    RestSourceTask sourceTask = new RestSourceTask();
+    sourceTask.initialize(new SourceTaskContext() {
+      @Override
+      public Map<String, String> configs() {
+        return props;
+      }
+
+      @Override
+      public OffsetStorageReader offsetStorageReader() {
+        return null;
+      }
+    });
+    sourceTask.start(props);
+    return sourceTask;
+  }
+
+  /** Makes a fixed number of GET requests, numbered from zero, in a single round. */
+  public static class SequenceRequestGenerator implements RequestRoute {
+    private static volatile int numberOfRequests;
+
+    private final Map<String, Object> partition = Collections.singletonMap("route", "sequence");
+    private OkHttpClient client;
+    private String url;
+    private PayloadToSourceRecordConverter converter;
+    private int next;
+
+    @Override
+    public void initialize(RestSourceConnectorConfig config) {
+      client = config.getHttpClient();
+      url = config.getUrl();
+      converter = config.getPayloadToSourceRecordConverter();
+    }
+
+    @Override
+    public Instant getTimeOfNextRequest() {
+      return next < numberOfRequests ? Instant.now() : Instant.now().plusSeconds(3600L);
+    }
+
+    @Override
+    public Stream<RestRequest> requests() {
+      return IntStream.range(next, numberOfRequests)
+          .mapToObj(i -> {
+            next = i + 1;
+            return new RestRequest(this, client,
+                new Request.Builder().url(url + i).build(), partition, null);
+          });
+    }
+
+    @Override
+    public void setOffsetStorageReader(OffsetStorageReader offsetStorageReader) {
+      // no offsets
+    }
+
+    @Override
+    public PayloadToSourceRecordConverter converter() {
+      return converter;
+    }
+
+    @Override
+    public void requestSucceeded(RestRequest request, SourceRecord record) {
+      // no state
+    }
+
+    @Override
+    public void requestEmpty(RestRequest request) {
+      // no state
+    }
+
+    @Override
+    public void requestFailed(RestRequest request, Response response) {
+      // no state
+    }
+  }
+
   public static class WireMockRule extends WireMockServer implements BeforeEachCallback,
       AfterEachCallback, ParameterResolver {
 